@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package jtermios.linux;
+
+import static jtermios.JTermios.JTermiosLogging.log;
+
+import jtermios.JTermios.JTermiosInterface;
+
+/**
+ * Java 22 version of {@link Foreign}, see the base version for how this is
+ * packaged.
+ */
+final class Foreign {
+
+    private Foreign() {
+    }
+
+    /**
+     * Returns the FFM backend or null if it is not available or not wanted.
+     * <p>
+     * Calling native code through FFM without native access enabled for the
+     * calling module prints a warning on Java 22 and later, so by default the
+     * FFM backend is only used when it is, for example with
+     * <code>--enable-native-access=ALL-UNNAMED</code> when running from the
+     * class path. <code>-Dpurejavacomm.ffm=true</code> uses it anyway,
+     * <code>-Dpurejavacomm.ffm=false</code> never. It is also not available
+     * if native access was denied with
+     * <code>--illegal-native-access=deny</code>.
+     */
+    static JTermiosInterface newTermios() {
+        String ffm = System.getProperty("purejavacomm.ffm");
+        if (ffm != null ? !Boolean.parseBoolean(ffm) : !Foreign.class.getModule().isNativeAccessEnabled()) {
+            return null;
+        }
+        try {
+            return new ForeignJTermiosImpl();
+        } catch (LinkageError e) {
+            // ExceptionInInitializerError if the downcalls could not be set up
+            log = log && log(1, "FFM backend not available, using JNA: %s\n", e);
+        } catch (IllegalCallerException e) {
+            log = log && log(1, "FFM backend not allowed, using JNA: %s\n", e);
+        } catch (UnsupportedOperationException e) {
+            log = log && log(1, "FFM backend not supported, using JNA: %s\n", e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package jtermios.linux;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.jna.Native;
+
+import jtermios.Pollfd;
+import jtermios.Termios;
+import jtermios.TimeSpec;
+
+/**
+ * The Linux backend with the calls on the data path, and the termios calls,
+ * made through the Foreign Function and Memory API instead of JNA.
+ * <p>
+ * Everything else is inherited from the JNA backend. To keep
+ * <code>errno()</code> right whichever way a call was made, a failing call
+ * here hands its captured errno to JNA with
+ * <code>Native.setLastError()</code>, so a successful call costs nothing
+ * extra.
+ * <p>
+ * Native memory for the structures and for staging heap buffers is kept per
+ * thread, direct buffers are passed as they are.
+ */
+final class ForeignJTermiosImpl extends JTermiosImpl {
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final StructLayout CAPTURE = Linker.Option.captureStateLayout();
+    private static final long ERRNO = CAPTURE.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+    private static final Linker.Option SAVE_ERRNO = Linker.Option.captureCallState("errno");
+
+    // all of these take the errno capture segment as their first argument
+    private static final MethodHandle OPEN = handle("open", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle CLOSE = handle("close", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    // the buffer is passed as a raw address so that no segment needs to be
+    // made for a direct buffer
+    private static final MethodHandle READ = handle("read", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, JAVA_LONG, JAVA_LONG));
+    private static final MethodHandle WRITE = handle("write", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, JAVA_LONG, JAVA_LONG));
+    private static final MethodHandle POLL = handle("poll", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT));
+    private static final MethodHandle PPOLL = handle("ppoll", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, ADDRESS, ADDRESS));
+    private static final MethodHandle IOCTL = handle("ioctl", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, ADDRESS), Linker.Option.firstVariadicArg(2));
+    private static final MethodHandle FCNTL = handle("fcntl", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT), Linker.Option.firstVariadicArg(2));
+    private static final MethodHandle TCGETATTR = handle("tcgetattr", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS));
+    private static final MethodHandle TCSETATTR = handle("tcsetattr", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS));
+    private static final MethodHandle TCDRAIN = handle("tcdrain", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    private static final MethodHandle TCFLUSH = handle("tcflush", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT));
+
+    // struct pollfd { int fd; short events; short revents; }
+    private static final int POLLFD_SIZE = 8;
+    // struct termios as in glibc, c_cc has NCCS = 32 entries and the speeds
+    // are aligned to 4 after it
+    private static final int TERMIOS_SIZE = 60;
+    private static final int TERMIOS_C_LINE = 16;
+    private static final int TERMIOS_C_CC = 17;
+    private static final int NCCS = 32;
+    private static final int TERMIOS_C_ISPEED = 52;
+    private static final int TERMIOS_C_OSPEED = 56;
+
+    private static MethodHandle handle(String name, FunctionDescriptor function, Linker.Option... options) {
+        java.util.Optional<MemorySegment> address = LINKER.defaultLookup().find(name);
+        if (!address.isPresent()) {
+            throw new UnsatisfiedLinkError("symbol " + name + " not found");
+        }
+        Linker.Option[] all = new Linker.Option[options.length + 1];
+        all[0] = SAVE_ERRNO;
+        System.arraycopy(options, 0, all, 1, options.length);
+        return LINKER.downcallHandle(address.get(), function, all);
+    }
+
+    private static final class Scratch {
+
+        final MemorySegment m_State = Arena.ofAuto().allocate(CAPTURE);
+        final MemorySegment m_Termios = Arena.ofAuto().allocate(TERMIOS_SIZE, 8);
+        final MemorySegment m_Time = Arena.ofAuto().allocate(16, 8);
+        private MemorySegment m_PollFDs = Arena.ofAuto().allocate(4 * POLLFD_SIZE, 8);
+        private MemorySegment m_Ints = Arena.ofAuto().allocate(4 * 4, 8);
+        private MemorySegment m_Stage = Arena.ofAuto().allocate(2048, 8);
+        // the last direct buffer used on this thread and its base address
+        private WeakReference<ByteBuffer> m_Buffer = new WeakReference<ByteBuffer>(null);
+        private long m_BufferAddress;
+
+        MemorySegment pollfds(int nfds) {
+            if (m_PollFDs.byteSize() < (long) nfds * POLLFD_SIZE) {
+                m_PollFDs = Arena.ofAuto().allocate((long) nfds * POLLFD_SIZE, 8);
+            }
+            return m_PollFDs;
+        }
+
+        MemorySegment ints(int n) {
+            if (m_Ints.byteSize() < 4L * n) {
+                m_Ints = Arena.ofAuto().allocate(4L * n, 8);
+            }
+            return m_Ints;
+        }
+
+        long address(ByteBuffer buffer) {
+            if (m_Buffer.get() != buffer) {
+                m_BufferAddress = MemorySegment.ofBuffer(buffer).address() - buffer.position();
+                m_Buffer = new WeakReference<ByteBuffer>(buffer);
+            }
+            return m_BufferAddress + buffer.position();
+        }
+
+        // native memory for the bytes of heap buffers and arrays
+        MemorySegment stage(int n) {
+            if (m_Stage.byteSize() < n) {
+                m_Stage = Arena.ofAuto().allocate(Math.max(n, 2 * m_Stage.byteSize()), 8);
+            }
+            return m_Stage;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> m_Scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    ForeignJTermiosImpl() {
+        super();
+    }
+
+    private static int check(int ret, MemorySegment state) {
+        if (ret < 0) {
+            Native.setLastError(state.get(JAVA_INT, ERRNO));
+        }
+        return ret;
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+    @Override
+    public int open(String s, int t) {
+        if (s != null && !s.startsWith("/")) {
+            s = "/dev/" + s;
+        }
+        byte[] path = s.getBytes(StandardCharsets.UTF_8);
+        Scratch scratch = m_Scratch.get();
+        MemorySegment p = scratch.stage(path.length + 1);
+        MemorySegment.copy(path, 0, p, JAVA_BYTE, 0, path.length);
+        p.set(JAVA_BYTE, path.length, (byte) 0);
+        try {
+            return check((int) OPEN.invokeExact(scratch.m_State, p, t), scratch.m_State);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    @Override
+    public int close(int fd) {
+        MemorySegment state = m_Scratch.get().m_State;
+        try {
+            return check((int) CLOSE.invokeExact(state, fd), state);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static int read(MemorySegment state, int fd, long address, long count) {
+        try {
+            return check((int) (long) READ.invokeExact(state, fd, address, count), state);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static int write(MemorySegment state, int fd, long address, long count) {
+        try {
+            return check((int) (long) WRITE.invokeExact(state, fd, address, count), state);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    @Override
+    public int read(int fd, byte[] buffer, int len) {
+        return read(fd, buffer, 0, len);
+    }
+
+    @Override
+    public int write(int fd, byte[] buffer, int len) {
+        return write(fd, buffer, 0, len);
+    }
+
+    @Override
+    public int read(int fd, byte[] buffer, int offset, int len) {
+        Scratch scratch = m_Scratch.get();
+        MemorySegment stage = scratch.stage(len);
+        int n = read(scratch.m_State, fd, stage.address(), len);
+        if (n > 0) {
+            MemorySegment.copy(stage, JAVA_BYTE, 0, buffer, offset, n);
+        }
+        return n;
+    }
+
+    @Override
+    public int write(int fd, byte[] buffer, int offset, int len) {
+        Scratch scratch = m_Scratch.get();
+        MemorySegment stage = scratch.stage(len);
+        MemorySegment.copy(buffer, offset, stage, JAVA_BYTE, 0, len);
+        return write(scratch.m_State, fd, stage.address(), len);
+    }
+
+    @Override
+    public int read(int fd, ByteBuffer buffer) {
+        Scratch scratch = m_Scratch.get();
+        int len = buffer.remaining();
+        int n;
+        if (buffer.isDirect()) {
+            n = read(scratch.m_State, fd, scratch.address(buffer), len);
+        } else {
+            MemorySegment stage = scratch.stage(len);
+            n = read(scratch.m_State, fd, stage.address(), len);
+            if (n > 0) {
+                MemorySegment.copy(stage, JAVA_BYTE, 0, buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+            }
+        }
+        if (n > 0) {
+            buffer.position(buffer.position() + n);
+        }
+        return n;
+    }
+
+    @Override
+    public int write(int fd, ByteBuffer buffer) {
+        Scratch scratch = m_Scratch.get();
+        int len = buffer.remaining();
+        int n;
+        if (buffer.isDirect()) {
+            n = write(scratch.m_State, fd, scratch.address(buffer), len);
+        } else if (buffer.hasArray()) {
+            MemorySegment stage = scratch.stage(len);
+            MemorySegment.copy(buffer.array(), buffer.arrayOffset() + buffer.position(), stage, JAVA_BYTE, 0, len);
+            n = write(scratch.m_State, fd, stage.address(), len);
+        } else { // read only heap buffer
+            MemorySegment stage = scratch.stage(len);
+            MemorySegment.copy(MemorySegment.ofBuffer(buffer), 0, stage, 0, len);
+            n = write(scratch.m_State, fd, stage.address(), len);
+        }
+        if (n > 0) {
+            buffer.position(buffer.position() + n);
+        }
+        return n;
+    }
+
+    @Override
+    public int poll(Pollfd[] fds, int nfds, int timeout) {
+        return poll(fds, nfds, timeout, null, false);
+    }
+
+    @Override
+    public int ppoll(Pollfd[] fds, int nfds, TimeSpec timeout) {
+        return poll(fds, nfds, 0, timeout, true);
+    }
+
+    private int poll(Pollfd[] fds, int nfds, int timeout, TimeSpec ts, boolean ppoll) {
+        if (nfds <= 0 || nfds > fds.length) {
+            throw new java.lang.IllegalArgumentException("nfds " + nfds + " must be <= fds.length " + fds.length);
+        }
+        Scratch scratch = m_Scratch.get();
+        MemorySegment pfds = scratch.pollfds(nfds);
+        for (int i = 0; i < nfds; i++) {
+            pfds.set(JAVA_INT, i * POLLFD_SIZE, fds[i].fd);
+            pfds.set(JAVA_SHORT, i * POLLFD_SIZE + 4, fds[i].events);
+            pfds.set(JAVA_SHORT, i * POLLFD_SIZE + 6, (short) 0);
+        }
+        int ret;
+        try {
+            if (ppoll) {
+                MemorySegment time = MemorySegment.NULL;
+                if (ts != null) {
+                    time = scratch.m_Time;
+                    time.set(JAVA_LONG, 0, ts.tv_sec);
+                    time.set(JAVA_LONG, 8, ts.tv_nsec);
+                }
+                ret = (int) PPOLL.invokeExact(scratch.m_State, pfds, (long) nfds, time, MemorySegment.NULL);
+            } else {
+                ret = (int) POLL.invokeExact(scratch.m_State, pfds, (long) nfds, timeout);
+            }
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        for (int i = 0; i < nfds; i++) {
+            fds[i].revents = pfds.get(JAVA_SHORT, i * POLLFD_SIZE + 6);
+        }
+        return check(ret, scratch.m_State);
+    }
+
+    @Override
+    public int ioctl(int fd, int cmd, int... data) {
+        Scratch scratch = m_Scratch.get();
+        MemorySegment ints = scratch.ints(Math.max(1, data.length));
+        for (int i = 0; i < data.length; i++) {
+            ints.setAtIndex(JAVA_INT, i, data[i]);
+        }
+        int ret;
+        try {
+            ret = (int) IOCTL.invokeExact(scratch.m_State, fd, cmd & 0xFFFFFFFFL, ints);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        for (int i = 0; i < data.length; i++) {
+            data[i] = ints.getAtIndex(JAVA_INT, i);
+        }
+        return check(ret, scratch.m_State);
+    }
+
+    @Override
+    public int fcntl(int fd, int cmd, int arg) {
+        MemorySegment state = m_Scratch.get().m_State;
+        try {
+            return check((int) FCNTL.invokeExact(state, fd, cmd, arg), state);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    @Override
+    public int tcgetattr(int fd, Termios termios) {
+        Scratch scratch = m_Scratch.get();
+        MemorySegment t = scratch.m_Termios;
+        int ret;
+        try {
+            ret = (int) TCGETATTR.invokeExact(scratch.m_State, fd, t);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        if (ret == 0) {
+            termios.c_iflag = t.get(JAVA_INT, 0);
+            termios.c_oflag = t.get(JAVA_INT, 4);
+            termios.c_cflag = t.get(JAVA_INT, 8);
+            termios.c_lflag = t.get(JAVA_INT, 12);
+            MemorySegment.copy(t, JAVA_BYTE, TERMIOS_C_CC, termios.c_cc, 0, Math.min(NCCS, termios.c_cc.length));
+            termios.c_ispeed = t.get(JAVA_INT, TERMIOS_C_ISPEED);
+            termios.c_ospeed = t.get(JAVA_INT, TERMIOS_C_OSPEED);
+        }
+        return check(ret, scratch.m_State);
+    }
+
+    @Override
+    public int tcsetattr(int fd, int cmd, Termios termios) {
+        Scratch scratch = m_Scratch.get();
+        MemorySegment t = scratch.m_Termios;
+        t.fill((byte) 0);
+        t.set(JAVA_INT, 0, termios.c_iflag);
+        t.set(JAVA_INT, 4, termios.c_oflag);
+        t.set(JAVA_INT, 8, termios.c_cflag);
+        t.set(JAVA_INT, 12, termios.c_lflag);
+        t.set(JAVA_BYTE, TERMIOS_C_LINE, (byte) 0);
+        MemorySegment.copy(termios.c_cc, 0, t, JAVA_BYTE, TERMIOS_C_CC, Math.min(NCCS, termios.c_cc.length));
+        t.set(JAVA_INT, TERMIOS_C_ISPEED, termios.c_ispeed);
+        t.set(JAVA_INT, TERMIOS_C_OSPEED, termios.c_ospeed);
+        try {
+            return check((int) TCSETATTR.invokeExact(scratch.m_State, fd, cmd, t), scratch.m_State);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    @Override
+    public int tcdrain(int fd) {
+        MemorySegment state = m_Scratch.get().m_State;
+        try {
+            return check((int) TCDRAIN.invokeExact(state, fd), state);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    @Override
+    public int tcflush(int fd, int b) {
+        MemorySegment state = m_Scratch.get().m_State;
+        try {
+            return check((int) TCFLUSH.invokeExact(state, fd, b), state);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+}
@@ -32,6 +32,7 @@ package jtermios;
 
 import static jtermios.JTermios.JTermiosLogging.*;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -56,18 +57,17 @@ public class JTermios {
 
 	// Note About the read/write methods and the buffers
 	//
-	// This library provides read/write(byte[] buffer,int length) without an offset
-	// to the buffer. This is because it appears that there is a bug in JNA's use of
-	// ByteBuffer.wrap(byte[] buffer,int offset,int length) in that the offset gets
-	// ignored. So this needs to be handled in the JTermiosImpl classes
-	// or somewhere else. Handling the offset requires a buffer to hold 
-	// temporarily the bytes. I deemed that it is better to pass the buck ie burden 
-	// to the clients of JTermios as they know better what size of buffer (if any) 
-	// is best and because then the implementation of that buffer is in one place, 
-	// not in each of the JTermiosImpl classes. In this way Mac OS X (and presumably
-	// Linux/Unix) does need not a buffer at all in JTermiosImpl. Windows needs a
-	// JNA Memory buffer anyway because of the limitations inherent in using 
-	// Overlapped I/O with JNA.
+	// Originally this library provided only read/write(byte[] buffer,int length) 
+	// without an offset to the buffer, because it appeared that there was a bug 
+	// in JNA's use of ByteBuffer.wrap(byte[] buffer,int offset,int length) in 
+	// that the offset got ignored, which left the clients of JTermios to handle
+	// the offset with a buffer of their own. With JNA direct mapping the position
+	// of a Buffer argument is honoured, so read/write(byte[] buffer,int offset,int length)
+	// and read/write(ByteBuffer buffer) are now provided too. On Linux these 
+	// go straight to the system call with the offset applied to the pointer, 
+	// other backends may fall back to a temporary buffer. Windows needs a JNA 
+	// Memory buffer anyway because of the limitations inherent in using 
+	// Overlapped I/O with JNA, so it can apply the offset when copying to/from that.
 
 	// The 'constants' here, which are equivalent to the corresponding #defines in C
 	// come from Mac OS X 10.6.6 / x86_64 architecture
@@ -79,6 +79,8 @@ public class JTermios {
 
 	// sys/filio.h stuff
 	public static int FIONREAD = 0x4004667F;
+	// sys/ttycom.h stuff
+	public static int TIOCOUTQ = 0x40047473;
 	// fcntl.h stuff
 	public static int O_RDWR = 0x00000002;
 	public static int O_NONBLOCK = 0x00000004;
@@ -200,7 +202,11 @@ public class JTermios {
 	//public static short POLLWRBAND = 0x0100; // Not Linux
 	public static short POLLERR = 0x0008;
 	public static short POLLERR_OUT = 0x0008;
+	public static short POLLHUP = 0x0010;
 	public static short POLLNVAL = 0x0020;
+	// sys/eventfd.h stuff, only Linux has eventfd() so these are its values
+	public static int EFD_CLOEXEC = 02000000;
+	public static int EFD_NONBLOCK = 04000;
 
 	// misc stuff
 	public static int DC1 = 0x11; // Ctrl-Q;
@@ -250,6 +256,17 @@ public class JTermios {
 
 		int pipe(int[] fds);
 
+		/**
+		 * Creates an eventfd, a single descriptor with a 64 bit counter that
+		 * can be used instead of a pipe to wake up a thread blocking in
+		 * poll()/select(), writing 8 bytes adds to the counter and reading 8
+		 * bytes returns and clears it.
+		 * <p>
+		 * Only the Linux backend has this, elsewhere this returns -1 and
+		 * callers should fall back to pipe().
+		 */
+		int eventfd(int initval, int flags);
+
 		void shutDown();
 
 		int errno();
@@ -286,12 +303,55 @@ public class JTermios {
 
 		int read(int fd, byte[] buffer, int len);
 
+		int write(int fd, byte[] buffer, int offset, int len);
+
+		int read(int fd, byte[] buffer, int offset, int len);
+
+		/**
+		 * Writes up to <code>buffer.remaining()</code> bytes starting at the
+		 * buffer's position and advances the position by the number of bytes
+		 * written. Direct buffers are passed to the system call as is.
+		 */
+		int write(int fd, ByteBuffer buffer);
+
+		/**
+		 * Reads up to <code>buffer.remaining()</code> bytes into the buffer
+		 * starting at its position and advances the position by the number
+		 * of bytes read. Direct buffers are passed to the system call as is.
+		 */
+		int read(int fd, ByteBuffer buffer);
+
+		/**
+		 * Gathers the remaining bytes of <code>length</code> buffers starting
+		 * at <code>buffers[offset]</code> into a single write, advancing the
+		 * buffer positions by the number of bytes written. Like any write this
+		 * may write less than all of them, also because the system limits the
+		 * number of buffers per call.
+		 */
+		int writev(int fd, ByteBuffer[] buffers, int offset, int length);
+
+		/**
+		 * Scatters a single read into <code>length</code> buffers starting at
+		 * <code>buffers[offset]</code>, filling them in order and advancing
+		 * their positions by the number of bytes read.
+		 */
+		int readv(int fd, ByteBuffer[] buffers, int offset, int length);
+
 		int ioctl(int fd, int cmd, int... data);
 
 		int select(int n, FDSet read, FDSet write, FDSet error, TimeVal timeout);
 
 		int poll(Pollfd[] fds, int nfds, int timeout);
 
+		/**
+		 * Like poll() but with a nanosecond resolution timeout, a
+		 * <code>null</code> timeout blocks indefinitely. Where there is no
+		 * native ppoll() the timeout is rounded up to milliseconds and poll()
+		 * is used instead. Unlike the C version this does not take a signal
+		 * mask.
+		 */
+		int ppoll(Pollfd[] fds, int nfds, TimeSpec timeout);
+
 		/**
 		 * poll() on Windows has not been implemented and while implemented on
 		 * Mac OS X, does not work for devices.
@@ -317,7 +377,7 @@ public class JTermios {
 		} else if (Platform.isWindows()) {
 			m_Termios = new jtermios.windows.JTermiosImpl();
 		} else if (Platform.isLinux()) {
-			m_Termios = new jtermios.linux.JTermiosImpl();
+			m_Termios = jtermios.linux.JTermiosImpl.newInstance();
 		} else if (Platform.isSolaris()) {
 			m_Termios = new jtermios.solaris.JTermiosImpl();
 		} else if (Platform.isFreeBSD()) {
@@ -445,6 +505,48 @@ public class JTermios {
 		return ret;
 	}
 
+	static public int write(int fd, byte[] buffer, int offset, int len) {
+		log = log && log(5, "> write(%d,%s,%d,%d)\n", fd, log(buffer, 8), offset, len);
+		int ret = m_Termios.write(fd, buffer, offset, len);
+		log = log && log(3, "< write(%d,%s,%d,%d) => %d\n", fd, log(buffer, 8), offset, len, ret);
+		return ret;
+	}
+
+	static public int read(int fd, byte[] buffer, int offset, int len) {
+		log = log && log(5, "> read(%d,%s,%d,%d)\n", fd, log(buffer, 8), offset, len);
+		int ret = m_Termios.read(fd, buffer, offset, len);
+		log = log && log(3, "< read(%d,%s,%d,%d) => %d\n", fd, log(buffer, 8), offset, len, ret);
+		return ret;
+	}
+
+	static public int write(int fd, ByteBuffer buffer) {
+		log = log && log(5, "> write(%d,%s)\n", fd, buffer);
+		int ret = m_Termios.write(fd, buffer);
+		log = log && log(3, "< write(%d,%s) => %d\n", fd, buffer, ret);
+		return ret;
+	}
+
+	static public int read(int fd, ByteBuffer buffer) {
+		log = log && log(5, "> read(%d,%s)\n", fd, buffer);
+		int ret = m_Termios.read(fd, buffer);
+		log = log && log(3, "< read(%d,%s) => %d\n", fd, buffer, ret);
+		return ret;
+	}
+
+	static public int writev(int fd, ByteBuffer[] buffers, int offset, int length) {
+		log = log && log(5, "> writev(%d,%s,%d,%d)\n", fd, log(buffers, 8), offset, length);
+		int ret = m_Termios.writev(fd, buffers, offset, length);
+		log = log && log(3, "< writev(%d,%s,%d,%d) => %d\n", fd, log(buffers, 8), offset, length, ret);
+		return ret;
+	}
+
+	static public int readv(int fd, ByteBuffer[] buffers, int offset, int length) {
+		log = log && log(5, "> readv(%d,%s,%d,%d)\n", fd, log(buffers, 8), offset, length);
+		int ret = m_Termios.readv(fd, buffers, offset, length);
+		log = log && log(3, "< readv(%d,%s,%d,%d) => %d\n", fd, log(buffers, 8), offset, length, ret);
+		return ret;
+	}
+
 	static public int ioctl(int fd, int cmd, int... data) {
 		log = log && log(5, "> ioctl(%d,%d,[%s])\n", fd, cmd, Arrays.toString(data));
 		int ret = m_Termios.ioctl(fd, cmd, data);
@@ -482,6 +584,24 @@ public class JTermios {
 		return ret;
 	}
 
+	static public int ppoll(Pollfd[] fds, int nfds, TimeSpec timeout) {
+		log = log && log(5, "> ppoll(%s,%d,%s)\n", log(fds, 8), nfds, timeout);
+		int ret = m_Termios.ppoll(fds, nfds, timeout);
+		log = log && log(3, "< ppoll(%s,%d,%s) => %d\n", log(fds, 8), nfds, timeout, ret);
+		return ret;
+	}
+
+	/**
+	 * Converts a ppoll() timeout to a poll() timeout, rounding up to whole
+	 * milliseconds so that the wait is never shorter than asked for.
+	 */
+	static public int toPollTimeout(TimeSpec timeout) {
+		if (timeout == null)
+			return -1;
+		long ms = timeout.tv_sec * 1000 + (timeout.tv_nsec + 999999) / 1000000;
+		return ms > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) ms;
+	}
+
 	static public boolean canPoll() {
 		return m_Termios.canPoll();
 	}
@@ -493,6 +613,13 @@ public class JTermios {
 		return ret;
 	}
 
+	static public int eventfd(int initval, int flags) {
+		log = log && log(5, "> eventfd(%d,%d)\n", initval, flags);
+		int ret = m_Termios.eventfd(initval, flags);
+		log = log && log(3, "< eventfd(%d,%d) => %d\n", initval, flags, ret);
+		return ret;
+	}
+
 	static public void perror(String msg) {
 		m_Termios.perror(msg);
 	}
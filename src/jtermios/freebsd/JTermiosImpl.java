@@ -39,10 +39,12 @@ import com.sun.jna.*;
 import com.sun.jna.ptr.IntByReference;
 import java.io.File;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import jtermios.Pollfd;
 import jtermios.Termios;
+import jtermios.TimeSpec;
 import jtermios.TimeVal;
 
 import static jtermios.JTermios.*;
@@ -442,6 +444,83 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
         return m_Clib.write(fd, buffer, new NativeSize(len)).intValue();
     }
 
+    // heap array fallback, the offset and ByteBuffer variants are only optimized on Linux for now
+    public int read(int fd, byte[] buffer, int offset, int len) {
+        if (offset == 0)
+            return read(fd, buffer, len);
+        byte[] tmp = new byte[len];
+        int n = read(fd, tmp, len);
+        if (n > 0)
+            System.arraycopy(tmp, 0, buffer, offset, n);
+        return n;
+    }
+
+    public int write(int fd, byte[] buffer, int offset, int len) {
+        if (offset == 0)
+            return write(fd, buffer, len);
+        byte[] tmp = new byte[len];
+        System.arraycopy(buffer, offset, tmp, 0, len);
+        return write(fd, tmp, len);
+    }
+
+    public int read(int fd, ByteBuffer buffer) {
+        int n;
+        if (buffer.hasArray())
+            n = read(fd, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        else {
+            byte[] tmp = new byte[buffer.remaining()];
+            n = read(fd, tmp, tmp.length);
+            if (n > 0)
+                buffer.duplicate().put(tmp, 0, n);
+        }
+        if (n > 0)
+            buffer.position(buffer.position() + n);
+        return n;
+    }
+
+    public int write(int fd, ByteBuffer buffer) {
+        int n;
+        if (buffer.hasArray())
+            n = write(fd, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        else {
+            byte[] tmp = new byte[buffer.remaining()];
+            buffer.duplicate().get(tmp);
+            n = write(fd, tmp, tmp.length);
+        }
+        if (n > 0)
+            buffer.position(buffer.position() + n);
+        return n;
+    }
+
+    // no readv()/writev() here, so loop over the buffers until a short read/write
+    public int writev(int fd, ByteBuffer[] buffers, int offset, int length) {
+        int total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int rem = buffers[i].remaining();
+            int n = write(fd, buffers[i]);
+            if (n < 0)
+                return total > 0 ? total : n;
+            total += n;
+            if (n < rem)
+                break;
+        }
+        return total;
+    }
+
+    public int readv(int fd, ByteBuffer[] buffers, int offset, int length) {
+        int total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int rem = buffers[i].remaining();
+            int n = read(fd, buffers[i]);
+            if (n < 0)
+                return total > 0 ? total : n;
+            total += n;
+            if (n < rem)
+                break;
+        }
+        return total;
+    }
+
     public int close(int fd) {
         return m_Clib.close(fd);
     }
@@ -497,6 +576,11 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
         return ret;
     }
 
+    public int ppoll(Pollfd fds[], int nfds, TimeSpec timeout) {
+        // no ppoll() here, so fall back to poll() with the timeout rounded up to milliseconds
+        return poll(fds, nfds, toPollTimeout(timeout));
+    }
+
     public boolean canPoll() {
         return true;
     }
@@ -552,4 +636,8 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 		return m_Clib.pipe(fds);
 	}
 
+	public int eventfd(int initval, int flags) {
+		return -1; // no eventfd() here, use pipe()
+	}
+
 }
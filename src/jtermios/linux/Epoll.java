@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package jtermios.linux;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+
+/**
+ * A thin wrapper around a Linux epoll instance.
+ * <p>
+ * This is not part of the JTermios API as there is no portable equivalent,
+ * it is here for {@link purejavacomm.SerialReactor} which services many ports
+ * from a few threads. Each registered file descriptor carries an int cookie
+ * which is returned with its events, the memory for the event array is
+ * allocated once so waiting for events does not allocate anything.
+ */
+public final class Epoll {
+
+    public static final int EPOLLIN = 0x001;
+    public static final int EPOLLPRI = 0x002;
+    public static final int EPOLLOUT = 0x004;
+    public static final int EPOLLERR = 0x008;
+    public static final int EPOLLHUP = 0x010;
+
+    public static final int EPOLL_CTL_ADD = 1;
+    public static final int EPOLL_CTL_DEL = 2;
+    public static final int EPOLL_CTL_MOD = 3;
+
+    public static final int EPOLL_CLOEXEC = 02000000;
+
+    // struct epoll_event { uint32_t events; epoll_data_t data; } is packed on x86-64 only
+    private static final boolean PACKED = Platform.isIntel() && Platform.is64Bit();
+    private static final int EVENT_SIZE = PACKED ? 12 : 16;
+    private static final int DATA_OFFSET = PACKED ? 4 : 8;
+
+    static private class C_lib_DirectMapping {
+
+        native public int epoll_create1(int flags);
+
+        native public int epoll_ctl(int epfd, int op, int fd, Pointer event);
+
+        native public int epoll_wait(int epfd, Pointer events, int maxevents, int timeout);
+
+        native public int close(int fd);
+    }
+
+    static private final C_lib_DirectMapping m_Clib;
+
+    static {
+        Native.register(C_lib_DirectMapping.class, NativeLibrary.getInstance(Platform.C_LIBRARY_NAME));
+        m_Clib = new C_lib_DirectMapping();
+    }
+
+    private final int m_EpFD;
+    private final int m_MaxEvents;
+    private final Memory m_Events;
+    private final Memory m_CtlEvent = new Memory(16);
+
+    /**
+     * Creates a new epoll instance.
+     * 
+     * @param maxEvents
+     *            the maximum number of events returned by one
+     *            {@link #waitFor(int)}
+     * @throws IllegalStateException
+     *             if the epoll instance could not be created
+     */
+    public Epoll(int maxEvents) {
+        m_EpFD = m_Clib.epoll_create1(EPOLL_CLOEXEC);
+        if (m_EpFD < 0)
+            throw new IllegalStateException("epoll_create1() failed, errno " + Native.getLastError());
+        m_MaxEvents = maxEvents;
+        m_Events = new Memory((long) maxEvents * EVENT_SIZE);
+    }
+
+    /**
+     * Starts watching <code>fd</code> for <code>events</code>.
+     * 
+     * @return 0 on success, -1 on failure with errno set
+     */
+    public int add(int fd, int events, int cookie) {
+        return ctl(EPOLL_CTL_ADD, fd, events, cookie);
+    }
+
+    /**
+     * Changes the events and cookie for an already watched <code>fd</code>,
+     * this takes effect even while some other thread is blocked in
+     * {@link #waitFor(int)}.
+     * 
+     * @return 0 on success, -1 on failure with errno set
+     */
+    public int modify(int fd, int events, int cookie) {
+        return ctl(EPOLL_CTL_MOD, fd, events, cookie);
+    }
+
+    /**
+     * Stops watching <code>fd</code>.
+     * 
+     * @return 0 on success, -1 on failure with errno set
+     */
+    public int remove(int fd) {
+        return ctl(EPOLL_CTL_DEL, fd, 0, 0);
+    }
+
+    private synchronized int ctl(int op, int fd, int events, int cookie) {
+        m_CtlEvent.setInt(0, events);
+        m_CtlEvent.setLong(DATA_OFFSET, cookie);
+        return m_Clib.epoll_ctl(m_EpFD, op, fd, m_CtlEvent);
+    }
+
+    /**
+     * Waits for events, only one thread at a time may call this.
+     * 
+     * @param timeout
+     *            in milliseconds, -1 to wait indefinitely
+     * @return the number of events, which can be accessed with
+     *         {@link #getEvents(int)} and {@link #getCookie(int)}, or -1 on
+     *         failure with errno set
+     */
+    public int waitFor(int timeout) {
+        return m_Clib.epoll_wait(m_EpFD, m_Events, m_MaxEvents, timeout);
+    }
+
+    public int getEvents(int i) {
+        return m_Events.getInt((long) i * EVENT_SIZE);
+    }
+
+    public int getCookie(int i) {
+        return (int) m_Events.getLong((long) i * EVENT_SIZE + DATA_OFFSET);
+    }
+
+    public void close() {
+        m_Clib.close(m_EpFD);
+    }
+}
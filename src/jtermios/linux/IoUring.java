@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package jtermios.linux;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+
+/**
+ * A thin wrapper around a Linux io_uring instance.
+ * <p>
+ * This is not part of the JTermios API as there is no portable equivalent,
+ * it is here for {@link purejavacomm.SerialIoEngine} which submits the reads
+ * and writes of many ports in batches. Submission queue entries are prepared
+ * with {@link #prepare}, handed to the kernel with {@link #enter}, and the
+ * completions are then accessed with {@link #getUserData(int)} and
+ * {@link #getResult(int)} and released with {@link #advance(int)}. Nothing
+ * here allocates after construction.
+ * <p>
+ * One thread at a time may use an instance. The rings are only read after
+ * {@link #enter} has returned, which orders the accesses to the shared
+ * memory against the kernel. Needs Linux 5.6 or later and a 64 bit JVM.
+ */
+public final class IoUring {
+
+    public static final int IORING_OP_POLL_ADD = 6;
+    public static final int IORING_OP_ASYNC_CANCEL = 14;
+    public static final int IORING_OP_READ = 22;
+    public static final int IORING_OP_WRITE = 23;
+
+    public static final int IOSQE_IO_LINK = 1 << 2;
+
+    public static final int IORING_ENTER_GETEVENTS = 1;
+
+    public static final int ECANCELED = 125;
+
+    private static final int SYS_io_uring_setup = 425;
+    private static final int SYS_io_uring_enter = 426;
+
+    private static final int IORING_FEAT_SINGLE_MMAP = 1;
+    private static final long IORING_OFF_SQ_RING = 0L;
+    private static final long IORING_OFF_CQ_RING = 0x8000000L;
+    private static final long IORING_OFF_SQES = 0x10000000L;
+
+    private static final int PROT_READ = 0x1;
+    private static final int PROT_WRITE = 0x2;
+    private static final int MAP_SHARED = 0x01;
+    private static final int MAP_POPULATE = 0x08000;
+
+    // struct io_uring_params, the sq_off and cq_off offsets are relative to
+    // the struct io_sqring_offsets and io_cqring_offsets inside it
+    private static final int PARAMS_SIZE = 120;
+    private static final int PARAMS_SQ_ENTRIES = 0;
+    private static final int PARAMS_CQ_ENTRIES = 4;
+    private static final int PARAMS_FEATURES = 20;
+    private static final int PARAMS_SQ_OFF = 40;
+    private static final int PARAMS_CQ_OFF = 80;
+    private static final int OFF_HEAD = 0;
+    private static final int OFF_TAIL = 4;
+    private static final int OFF_RING_MASK = 8;
+    private static final int SQ_OFF_ARRAY = 24;
+    private static final int CQ_OFF_CQES = 20;
+
+    private static final int SQE_SIZE = 64;
+    private static final int CQE_SIZE = 16;
+
+    static private class C_lib_DirectMapping {
+
+        native public long syscall(long number, long arg1, long arg2, long arg3, long arg4, long arg5, long arg6);
+
+        native public Pointer mmap(Pointer addr, long length, int prot, int flags, int fd, long offset);
+
+        native public int munmap(Pointer addr, long length);
+
+        native public int close(int fd);
+    }
+
+    static private final C_lib_DirectMapping m_Clib;
+
+    static {
+        Native.register(C_lib_DirectMapping.class, NativeLibrary.getInstance(Platform.C_LIBRARY_NAME));
+        m_Clib = new C_lib_DirectMapping();
+    }
+
+    private final int m_RingFD;
+    private final Pointer m_SQRing;
+    private final long m_SQRingSize;
+    private final Pointer m_CQRing;
+    private final long m_CQRingSize;
+    private final Pointer m_SQEs;
+    private final int m_SQEntries;
+    private final int m_CQEntries;
+    private final int m_SQMask;
+    private final int m_CQMask;
+    private final long m_SQHead;
+    private final long m_SQTail;
+    private final long m_SQArray;
+    private final long m_CQHead;
+    private final long m_CQTail;
+    private final long m_CQEs;
+    // our copies of the indices we own, the tail is published by enter()
+    private int m_SQLocalTail;
+    private int m_SQPending;
+    private int m_CQLocalHead;
+    private int m_CQReady;
+
+    /**
+     * Creates a new io_uring instance.
+     * 
+     * @param entries
+     *            the size of the submission queue, rounded up to a power of
+     *            two by the kernel, the completion queue is twice that
+     * @throws UnsupportedOperationException
+     *             if io_uring is not available
+     */
+    public IoUring(int entries) {
+        if (!Platform.is64Bit())
+            throw new UnsupportedOperationException("IoUring needs a 64 bit JVM");
+        Memory params = new Memory(PARAMS_SIZE);
+        params.clear();
+        long fd = m_Clib.syscall(SYS_io_uring_setup, entries, Pointer.nativeValue(params), 0, 0, 0, 0);
+        if (fd < 0)
+            throw new UnsupportedOperationException("io_uring_setup() failed, errno " + Native.getLastError());
+        m_RingFD = (int) fd;
+        m_SQEntries = params.getInt(PARAMS_SQ_ENTRIES);
+        m_CQEntries = params.getInt(PARAMS_CQ_ENTRIES);
+        int sqArray = params.getInt(PARAMS_SQ_OFF + SQ_OFF_ARRAY);
+        int cqes = params.getInt(PARAMS_CQ_OFF + CQ_OFF_CQES);
+        long sqSize = sqArray + 4L * m_SQEntries;
+        long cqSize = cqes + (long) CQE_SIZE * m_CQEntries;
+        boolean single = (params.getInt(PARAMS_FEATURES) & IORING_FEAT_SINGLE_MMAP) != 0;
+        if (single)
+            sqSize = cqSize = Math.max(sqSize, cqSize);
+        Pointer sq = map(sqSize, IORING_OFF_SQ_RING);
+        Pointer cq = single || sq == null ? sq : map(cqSize, IORING_OFF_CQ_RING);
+        Pointer sqes = cq == null ? null : map((long) SQE_SIZE * m_SQEntries, IORING_OFF_SQES);
+        if (sqes == null) {
+            int errno = Native.getLastError();
+            if (sq != null)
+                m_Clib.munmap(sq, sqSize);
+            if (cq != null && cq != sq)
+                m_Clib.munmap(cq, cqSize);
+            m_Clib.close(m_RingFD);
+            throw new UnsupportedOperationException("mmap() of the io_uring rings failed, errno " + errno);
+        }
+        m_SQRing = sq;
+        m_SQRingSize = sqSize;
+        m_CQRing = cq;
+        m_CQRingSize = cqSize;
+        m_SQEs = sqes;
+        m_SQHead = params.getInt(PARAMS_SQ_OFF + OFF_HEAD);
+        m_SQTail = params.getInt(PARAMS_SQ_OFF + OFF_TAIL);
+        m_SQMask = sq.getInt(params.getInt(PARAMS_SQ_OFF + OFF_RING_MASK));
+        m_SQArray = sqArray;
+        m_CQHead = params.getInt(PARAMS_CQ_OFF + OFF_HEAD);
+        m_CQTail = params.getInt(PARAMS_CQ_OFF + OFF_TAIL);
+        m_CQMask = cq.getInt(params.getInt(PARAMS_CQ_OFF + OFF_RING_MASK));
+        m_CQEs = cqes;
+        m_SQLocalTail = sq.getInt(m_SQTail);
+        m_CQLocalHead = cq.getInt(m_CQHead);
+    }
+
+    private Pointer map(long size, long offset) {
+        Pointer p = m_Clib.mmap(null, size, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE, m_RingFD, offset);
+        return p == null || Pointer.nativeValue(p) == -1 ? null : p;
+    }
+
+    public int getSubmissionEntries() {
+        return m_SQEntries;
+    }
+
+    public int getCompletionEntries() {
+        return m_CQEntries;
+    }
+
+    /**
+     * @return how many more entries can be prepared before the next
+     *         {@link #enter}
+     */
+    public int getSubmissionSpace() {
+        return m_SQEntries - (m_SQLocalTail - m_SQRing.getInt(m_SQHead));
+    }
+
+    /**
+     * Fills in the next submission queue entry, the caller must have checked
+     * {@link #getSubmissionSpace()}.
+     * 
+     * @param opcode
+     *            one of the <code>IORING_OP_</code> constants
+     * @param flags
+     *            <code>IOSQE_</code> flags
+     * @param addr
+     *            the buffer address, or the user data to cancel for
+     *            {@link #IORING_OP_ASYNC_CANCEL}
+     * @param len
+     *            the buffer length
+     * @param opFlags
+     *            the poll events for {@link #IORING_OP_POLL_ADD}, otherwise
+     *            the read/write flags
+     * @param userData
+     *            returned with the completion
+     */
+    public void prepare(int opcode, int flags, int fd, long addr, int len, int opFlags, long userData) {
+        int index = m_SQLocalTail & m_SQMask;
+        long sqe = (long) index * SQE_SIZE;
+        m_SQEs.setMemory(sqe, SQE_SIZE, (byte) 0);
+        m_SQEs.setByte(sqe, (byte) opcode);
+        m_SQEs.setByte(sqe + 1, (byte) flags);
+        m_SQEs.setInt(sqe + 4, fd);
+        m_SQEs.setLong(sqe + 8, opcode == IORING_OP_READ || opcode == IORING_OP_WRITE ? -1L : 0L); // -1 is the current position
+        m_SQEs.setLong(sqe + 16, addr);
+        m_SQEs.setInt(sqe + 24, len);
+        m_SQEs.setInt(sqe + 28, opFlags);
+        m_SQEs.setLong(sqe + 32, userData);
+        m_SQRing.setInt(m_SQArray + 4L * index, index);
+        m_SQLocalTail++;
+        m_SQPending++;
+    }
+
+    /**
+     * Submits the prepared entries and optionally waits for completions,
+     * after which {@link #getCompletionCount()} tells how many there are.
+     * 
+     * @param minComplete
+     *            the number of completions to wait for, 0 to not wait
+     * @return the number of entries submitted or -1 on failure with errno
+     *         set, entries not submitted are submitted with the next call
+     */
+    public int enter(int minComplete) {
+        m_SQRing.setInt(m_SQTail, m_SQLocalTail);
+        int flags = minComplete > 0 ? IORING_ENTER_GETEVENTS : 0;
+        int n = (int) m_Clib.syscall(SYS_io_uring_enter, m_RingFD, m_SQPending, minComplete, flags, 0, 0);
+        if (n > 0)
+            m_SQPending -= n;
+        m_CQReady = m_CQRing.getInt(m_CQTail) - m_CQLocalHead;
+        return n;
+    }
+
+    /**
+     * @return the number of prepared entries that {@link #enter} has not
+     *         submitted yet
+     */
+    public int getSubmissionPending() {
+        return m_SQPending;
+    }
+
+    /**
+     * @return the number of completions available since the last
+     *         {@link #enter}
+     */
+    public int getCompletionCount() {
+        return m_CQReady;
+    }
+
+    public long getUserData(int i) {
+        return m_CQRing.getLong(cqe(i));
+    }
+
+    /**
+     * @return the result of the operation, a negated errno on failure
+     */
+    public int getResult(int i) {
+        return m_CQRing.getInt(cqe(i) + 8);
+    }
+
+    private long cqe(int i) {
+        return m_CQEs + (long) ((m_CQLocalHead + i) & m_CQMask) * CQE_SIZE;
+    }
+
+    /**
+     * Releases the first <code>n</code> completions back to the kernel.
+     */
+    public void advance(int n) {
+        m_CQLocalHead += n;
+        m_CQReady -= n;
+        m_CQRing.setInt(m_CQHead, m_CQLocalHead);
+    }
+
+    public void close() {
+        m_Clib.munmap(m_SQEs, (long) SQE_SIZE * m_SQEntries);
+        if (m_CQRing != m_SQRing)
+            m_Clib.munmap(m_CQRing, m_CQRingSize);
+        m_Clib.munmap(m_SQRing, m_SQRingSize);
+        m_Clib.close(m_RingFD);
+    }
+}
@@ -36,12 +36,14 @@ import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.regex.Pattern;
 
 import jtermios.JTermios;
 import jtermios.Pollfd;
 import jtermios.Termios;
+import jtermios.TimeSpec;
 import jtermios.TimeVal;
 
 import static jtermios.JTermios.*;
@@ -52,15 +54,73 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
     private static String DEVICE_DIR_PATH = "/dev/";
     static C_lib_DirectMapping m_ClibDM;
     static C_lib m_Clib;
-    static NonDirectCLib m_ClibND;
+
+    static C_lib_SizeT64 m_ClibSizeT64;
 
     static {
-        m_ClibND = (NonDirectCLib) Native.loadLibrary(Platform.C_LIBRARY_NAME, NonDirectCLib.class);
         Native.register(C_lib_DirectMapping.class, NativeLibrary.getInstance(Platform.C_LIBRARY_NAME));
         m_ClibDM = new C_lib_DirectMapping();
         m_Clib = m_ClibDM;
+        if (NativeSize.SIZE == 8) {
+            Native.register(C_lib_SizeT64.class, NativeLibrary.getInstance(Platform.C_LIBRARY_NAME));
+            m_ClibSizeT64 = new C_lib_SizeT64();
+        }
+    }
+
+    // read() and write() with size_t and ssize_t as plain longs, so that the
+    // calls on the data path do not allocate NativeSize objects, only usable
+    // where size_t is 64 bits
+    static private class C_lib_SizeT64 {
+
+        native public long read(int fd, byte[] buffer, long count);
+
+        native public long write(int fd, byte[] buffer, long count);
+
+        native public long read(int fd, ByteBuffer buffer, long count);
+
+        native public long write(int fd, ByteBuffer buffer, long count);
     }
 
+    // Structures handed to the C library, kept per thread so that the calls
+    // made on every read, poll() or termios update do not allocate
+    private static class Structs {
+
+        final termios m_Termios = new termios();
+        final serial_struct m_Serial = new serial_struct();
+        // struct pollfd array for poll()/ppoll(), only grows
+        private Memory m_PollFDs = new Memory(4 * POLLFD_SIZE);
+        // struct timeval or struct timespec, both are two longs
+        private final Memory m_Time = new Memory(2 * NativeLong.SIZE);
+
+        Pointer pollfds(int nfds) {
+            if (m_PollFDs.size() < nfds * POLLFD_SIZE) {
+                m_PollFDs = new Memory(nfds * POLLFD_SIZE);
+            }
+            return m_PollFDs;
+        }
+
+        Pointer time(long sec, long fraction) {
+            if (NativeLong.SIZE == 8) {
+                m_Time.setLong(0, sec);
+                m_Time.setLong(8, fraction);
+            } else {
+                m_Time.setInt(0, (int) sec);
+                m_Time.setInt(4, (int) fraction);
+            }
+            return m_Time;
+        }
+    }
+
+    // sizeof(struct pollfd), int fd followed by short events and short revents
+    private static final int POLLFD_SIZE = 8;
+
+    private static final ThreadLocal<Structs> m_Structs = new ThreadLocal<Structs>() {
+        @Override
+        protected Structs initialValue() {
+            return new Structs();
+        }
+    };
+
     private final static int TIOCGSERIAL = 0x0000541E;
     private final static int TIOCSSERIAL = 0x0000541F;
 
@@ -105,6 +165,8 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 
         native public int pipe(int[] fds);
 
+        native public int eventfd(int initval, int flags);
+
         native public int tcdrain(int fd);
 
         native public void cfmakeraw(termios termios);
@@ -135,17 +197,36 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 
         native public NativeSize read(int fd, byte[] buffer, NativeSize count);
 
+        native public NativeSize write(int fd, ByteBuffer buffer, NativeSize count);
+
+        native public NativeSize read(int fd, ByteBuffer buffer, NativeSize count);
+
+        native public NativeSize writev(int fd, Pointer iov, int iovcnt);
+
+        native public NativeSize readv(int fd, Pointer iov, int iovcnt);
+
         native public int tcflush(int fd, int qs);
 
         native public void perror(String msg);
 
         native public int tcsendbreak(int fd, int duration);
+
+        // These take their structures as plain native memory, see Structs,
+        // which is what makes them cheap enough for every read and every
+        // event loop iteration
+        native public int poll(Pointer pfds, int nfds, int timeout);
+
+        native public int ppoll(Pointer pfds, int nfds, Pointer timeout, Pointer sigmask);
+
+        native public int select(int n, Pointer read, Pointer write, Pointer error, Pointer timeout);
     }
 
     public interface C_lib extends com.sun.jna.Library {
 
         public int pipe(int[] fds);
 
+        public int eventfd(int initval, int flags);
+
         public int tcdrain(int fd);
 
         public void cfmakeraw(termios termios);
@@ -176,19 +257,20 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 
         public NativeSize read(int fd, byte[] buffer, NativeSize count);
 
-        public int tcflush(int fd, int qs);
+        public NativeSize write(int fd, ByteBuffer buffer, NativeSize count);
 
-        public void perror(String msg);
+        public NativeSize read(int fd, ByteBuffer buffer, NativeSize count);
 
-        public int tcsendbreak(int fd, int duration);
+        public NativeSize writev(int fd, Pointer iov, int iovcnt);
 
-    }
+        public NativeSize readv(int fd, Pointer iov, int iovcnt);
 
-    public interface NonDirectCLib extends com.sun.jna.Library {
+        public int tcflush(int fd, int qs);
+
+        public void perror(String msg);
 
-        public int select(int n, fd_set read, fd_set write, fd_set error, timeval timeout);
+        public int tcsendbreak(int fd, int duration);
 
-        public int poll(pollfd.ByReference pfds, int nfds, int timeout);
     }
 
     static public class timeval extends Structure {
@@ -274,6 +356,23 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
             fd_array[fd / NFBBITS].setValue(fd_array[fd / NFBBITS].longValue() & ~(1L << (fd % NFBBITS)));
         }
 
+        // by hand to avoid the boxing and the new NativeLongs of the reflective versions
+        @Override
+        public void write() {
+            Pointer p = getPointer();
+            for (int i = 0; i < fd_array.length; i++) {
+                p.setNativeLong(i * NativeLong.SIZE, fd_array[i]);
+            }
+        }
+
+        @Override
+        public void read() {
+            Pointer p = getPointer();
+            for (int i = 0; i < fd_array.length; i++) {
+                fd_array[i].setValue(NativeLong.SIZE == 8 ? p.getLong(i * 8) : p.getInt(i * 4));
+            }
+        }
+
     }
 
     public static class serial_struct extends Structure {
@@ -353,6 +452,10 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
         }
 
         public termios(jtermios.Termios t) {
+            set(t);
+        }
+
+        public termios set(jtermios.Termios t) {
             c_iflag = t.c_iflag;
             c_oflag = t.c_oflag;
             c_cflag = t.c_cflag;
@@ -360,6 +463,34 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
             System.arraycopy(t.c_cc, 0, c_cc, 0, t.c_cc.length);
             c_ispeed = t.c_ispeed;
             c_ospeed = t.c_ospeed;
+            return this;
+        }
+
+        // by hand to avoid the boxing of the reflective versions
+        @Override
+        public void write() {
+            Pointer p = getPointer();
+            p.setInt(0, c_iflag);
+            p.setInt(4, c_oflag);
+            p.setInt(8, c_cflag);
+            p.setInt(12, c_lflag);
+            p.setByte(16, c_line);
+            p.write(fieldOffset("c_cc"), c_cc, 0, c_cc.length);
+            p.setInt(fieldOffset("c_ispeed"), c_ispeed);
+            p.setInt(fieldOffset("c_ospeed"), c_ospeed);
+        }
+
+        @Override
+        public void read() {
+            Pointer p = getPointer();
+            c_iflag = p.getInt(0);
+            c_oflag = p.getInt(4);
+            c_cflag = p.getInt(8);
+            c_lflag = p.getInt(12);
+            c_line = p.getByte(16);
+            p.read(fieldOffset("c_cc"), c_cc, 0, c_cc.length);
+            c_ispeed = p.getInt(fieldOffset("c_ispeed"));
+            c_ospeed = p.getInt(fieldOffset("c_ospeed"));
         }
 
         public void update(jtermios.Termios t) {
@@ -373,11 +504,24 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
         }
     }
 
+    /**
+     * Returns the backend to use on Linux, which is the Foreign Function and
+     * Memory API version on Java 22 and later, as packaged in the
+     * multi-release jar, if native access is enabled or
+     * <code>purejavacomm.ffm</code> is set to <code>true</code>, and this JNA
+     * one otherwise.
+     */
+    public static JTermios.JTermiosInterface newInstance() {
+        JTermios.JTermiosInterface termios = Foreign.newTermios();
+        return termios != null ? termios : new JTermiosImpl();
+    }
+
     public JTermiosImpl() {
         log = log && log(1, "instantiating %s\n", getClass().getCanonicalName());
 
         //linux/serial.h stuff
         FIONREAD = 0x541B; // Looked up manually
+        TIOCOUTQ = 0x5411;
         //fcntl.h stuff
         O_RDWR = 0x00000002;
         O_NONBLOCK = 0x00000800;
@@ -488,7 +632,7 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
     }
 
     public void cfmakeraw(Termios termios) {
-        termios t = new termios(termios);
+        termios t = m_Structs.get().m_Termios.set(termios);
         m_Clib.cfmakeraw(t);
         t.update(termios);
     }
@@ -502,22 +646,22 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
     }
 
     public int cfgetispeed(Termios termios) {
-        return m_Clib.cfgetispeed(new termios(termios));
+        return m_Clib.cfgetispeed(m_Structs.get().m_Termios.set(termios));
     }
 
     public int cfgetospeed(Termios termios) {
-        return m_Clib.cfgetospeed(new termios(termios));
+        return m_Clib.cfgetospeed(m_Structs.get().m_Termios.set(termios));
     }
 
     public int cfsetispeed(Termios termios, int speed) {
-        termios t = new termios(termios);
+        termios t = m_Structs.get().m_Termios.set(termios);
         int ret = m_Clib.cfsetispeed(t, speed);
         t.update(termios);
         return ret;
     }
 
     public int cfsetospeed(Termios termios, int speed) {
-        termios t = new termios(termios);
+        termios t = m_Structs.get().m_Termios.set(termios);
         int ret = m_Clib.cfsetospeed(t, speed);
         t.update(termios);
         return ret;
@@ -531,13 +675,153 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
     }
 
     public int read(int fd, byte[] buffer, int len) {
+        if (m_ClibSizeT64 != null) {
+            return (int) m_ClibSizeT64.read(fd, buffer, len);
+        }
         return m_Clib.read(fd, buffer, new NativeSize(len)).intValue();
     }
 
     public int write(int fd, byte[] buffer, int len) {
+        if (m_ClibSizeT64 != null) {
+            return (int) m_ClibSizeT64.write(fd, buffer, len);
+        }
         return m_Clib.write(fd, buffer, new NativeSize(len)).intValue();
     }
 
+    // JNA passes Buffer arguments by address, taking the position into account,
+    // so direct buffers need no copying and heap buffers are copied by JNA only,
+    // which is also how the offset is applied to byte arrays
+    public int read(int fd, byte[] buffer, int offset, int len) {
+        return m_Clib.read(fd, ByteBuffer.wrap(buffer, offset, len), new NativeSize(len)).intValue();
+    }
+
+    public int write(int fd, byte[] buffer, int offset, int len) {
+        return m_Clib.write(fd, ByteBuffer.wrap(buffer, offset, len), new NativeSize(len)).intValue();
+    }
+
+    public int read(int fd, ByteBuffer buffer) {
+        int n;
+        if (m_ClibSizeT64 != null) {
+            n = (int) m_ClibSizeT64.read(fd, buffer, buffer.remaining());
+        } else {
+            n = m_Clib.read(fd, buffer, new NativeSize(buffer.remaining())).intValue();
+        }
+        if (n > 0) {
+            buffer.position(buffer.position() + n);
+        }
+        return n;
+    }
+
+    public int write(int fd, ByteBuffer buffer) {
+        int n;
+        if (m_ClibSizeT64 != null) {
+            n = (int) m_ClibSizeT64.write(fd, buffer, buffer.remaining());
+        } else {
+            n = m_Clib.write(fd, buffer, new NativeSize(buffer.remaining())).intValue();
+        }
+        if (n > 0) {
+            buffer.position(buffer.position() + n);
+        }
+        return n;
+    }
+
+    // struct iovec arrays can only point to native memory, so direct buffers are
+    // referenced as is while heap buffers are staged through a native buffer,
+    // both of which are kept per thread and only grow
+    private static class IOVecs {
+
+        private Memory m_IOV = new Memory(16 * 2 * Native.POINTER_SIZE);
+        private Memory m_Stage = new Memory(2048);
+
+        Pointer prepare(ByteBuffer[] buffers, int offset, int length, boolean write) {
+            int iovsize = 2 * Native.POINTER_SIZE;
+            if (m_IOV.size() < length * iovsize) {
+                m_IOV = new Memory(length * iovsize);
+            }
+            int staged = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (!buffers[i].isDirect()) {
+                    staged += buffers[i].remaining();
+                }
+            }
+            if (m_Stage.size() < staged) {
+                m_Stage = new Memory(Math.max(staged, 2 * m_Stage.size()));
+            }
+            int so = 0;
+            for (int i = 0; i < length; i++) {
+                ByteBuffer b = buffers[offset + i];
+                int rem = b.remaining();
+                Pointer base;
+                if (b.isDirect()) {
+                    base = Native.getDirectBufferPointer(b).share(b.position());
+                } else {
+                    base = m_Stage.share(so);
+                    if (write && rem > 0) {
+                        m_Stage.getByteBuffer(so, rem).put(b.duplicate());
+                    }
+                    so += rem;
+                }
+                m_IOV.setPointer(i * iovsize, base);
+                if (NativeSize.SIZE == 8) {
+                    m_IOV.setLong(i * iovsize + Native.POINTER_SIZE, rem);
+                } else {
+                    m_IOV.setInt(i * iovsize + Native.POINTER_SIZE, rem);
+                }
+            }
+            return m_IOV;
+        }
+
+        void complete(ByteBuffer[] buffers, int offset, int length, int n, boolean read) {
+            int so = 0;
+            for (int i = offset; i < offset + length && n > 0; i++) {
+                ByteBuffer b = buffers[i];
+                int k = Math.min(b.remaining(), n);
+                if (read && !b.isDirect() && k > 0) {
+                    b.duplicate().put(m_Stage.getByteBuffer(so, k));
+                }
+                if (!b.isDirect()) {
+                    so += b.remaining();
+                }
+                b.position(b.position() + k);
+                n -= k;
+            }
+        }
+    }
+
+    // the most buffers writev()/readv() take at once, they fail with EINVAL
+    // beyond this, so we do what the system could take and report a short
+    // write or read
+    private static final int IOV_MAX = 1024;
+
+    private static final ThreadLocal<IOVecs> m_IOVecs = new ThreadLocal<IOVecs>() {
+        @Override
+        protected IOVecs initialValue() {
+            return new IOVecs();
+        }
+    };
+
+    public int writev(int fd, ByteBuffer[] buffers, int offset, int length) {
+        length = Math.min(length, IOV_MAX);
+        IOVecs iovecs = m_IOVecs.get();
+        Pointer iov = iovecs.prepare(buffers, offset, length, true);
+        int n = m_Clib.writev(fd, iov, length).intValue();
+        if (n > 0) {
+            iovecs.complete(buffers, offset, length, n, false);
+        }
+        return n;
+    }
+
+    public int readv(int fd, ByteBuffer[] buffers, int offset, int length) {
+        length = Math.min(length, IOV_MAX);
+        IOVecs iovecs = m_IOVecs.get();
+        Pointer iov = iovecs.prepare(buffers, offset, length, false);
+        int n = m_Clib.readv(fd, iov, length).intValue();
+        if (n > 0) {
+            iovecs.complete(buffers, offset, length, n, true);
+        }
+        return n;
+    }
+
     public int close(int fd) {
         return m_Clib.close(fd);
     }
@@ -547,7 +831,7 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
     }
 
     public int tcgetattr(int fd, Termios termios) {
-        termios t = new termios();
+        termios t = m_Structs.get().m_Termios;
         int ret = m_Clib.tcgetattr(fd, t);
         t.update(termios);
         return ret;
@@ -564,31 +848,61 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
     }
 
     public int tcsetattr(int fd, int cmd, Termios termios) {
-        return m_Clib.tcsetattr(fd, cmd, new termios(termios));
+        return m_Clib.tcsetattr(fd, cmd, m_Structs.get().m_Termios.set(termios));
     }
 
     public int select(int nfds, FDSet rfds, FDSet wfds, FDSet efds, TimeVal timeout) {
-        timeval tout = null;
+        Pointer tout = null;
         if (timeout != null) {
-            tout = new timeval(timeout);
+            tout = m_Structs.get().time(timeout.tv_sec, timeout.tv_usec);
         }
+        int ret = m_ClibDM.select(nfds, toNative((fd_set) rfds), toNative((fd_set) wfds), toNative((fd_set) efds), tout);
+        fromNative((fd_set) rfds);
+        fromNative((fd_set) wfds);
+        fromNative((fd_set) efds);
+        return ret;
+    }
+
+    private static Pointer toNative(fd_set set) {
+        if (set == null) {
+            return null;
+        }
+        set.write();
+        return set.getPointer();
+    }
 
-        return m_ClibND.select(nfds, (fd_set) rfds, (fd_set) wfds, (fd_set) efds, tout);
+    private static void fromNative(fd_set set) {
+        if (set != null) {
+            set.read();
+        }
     }
 
     public int poll(Pollfd fds[], int nfds, int timeout) {
+        return poll(fds, nfds, timeout, null, false);
+    }
+
+    public int ppoll(Pollfd fds[], int nfds, TimeSpec timeout) {
+        return poll(fds, nfds, 0, timeout, true);
+    }
+
+    private int poll(Pollfd fds[], int nfds, int timeout, TimeSpec ts, boolean ppoll) {
         if (nfds <= 0 || nfds > fds.length) {
             throw new java.lang.IllegalArgumentException("nfds " + nfds + " must be <= fds.length " + fds.length);
         }
-        pollfd.ByReference parampfds = new pollfd.ByReference();
-        pollfd[] pfds = (pollfd[]) parampfds.toArray(nfds);
+        Structs structs = m_Structs.get();
+        Pointer pfds = structs.pollfds(nfds);
         for (int i = 0; i < nfds; i++) {
-            pfds[i].fd = fds[i].fd;
-            pfds[i].events = fds[i].events;
+            pfds.setInt(i * POLLFD_SIZE, fds[i].fd);
+            pfds.setShort(i * POLLFD_SIZE + 4, fds[i].events);
+            pfds.setShort(i * POLLFD_SIZE + 6, (short) 0);
         }
-        int ret = m_ClibND.poll(parampfds, nfds, timeout);
+        int ret;
+        if (ppoll)
+            ret = m_ClibDM.ppoll(pfds, nfds, ts != null ? structs.time(ts.tv_sec, ts.tv_nsec) : null, null);
+        else
+            ret = m_ClibDM.poll(pfds, nfds, timeout);
         for (int i = 0; i < nfds; i++) {
-            fds[i].revents = pfds[i].revents;
+            fds[i].revents = pfds.getShort(i * POLLFD_SIZE + 6);
         }
         return ret;
     }
@@ -705,7 +1019,7 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 
                 // found the baudrate from the table
                 // just in case custom divisor was in use, try to turn it off first
-                serial_struct ss = new serial_struct();
+                serial_struct ss = m_Structs.get().m_Serial;
 
                 r = ioctl(fd, TIOCGSERIAL, ss);
                 if (r == 0) {
@@ -731,7 +1045,7 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 
         // baudrate not defined in the table, try custom divisor approach
         // configure port to use custom speed instead of 38400
-        serial_struct ss = new serial_struct();
+        serial_struct ss = m_Structs.get().m_Serial;
         if ((r = ioctl(fd, TIOCGSERIAL, ss)) != 0) {
             return r;
         }
@@ -775,4 +1089,8 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
     public int pipe(int[] fds) {
         return m_Clib.pipe(fds);
     }
+
+    public int eventfd(int initval, int flags) {
+        return m_Clib.eventfd(initval, flags);
+    }
 }
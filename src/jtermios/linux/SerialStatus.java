@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package jtermios.linux;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+
+/**
+ * Linux specific serial port status ioctls.
+ * <p>
+ * These have no portable equivalent so they are not part of the JTermios API,
+ * callers must check that they are running on Linux and be prepared for the
+ * driver not supporting them, as is the case for example with ptys.
+ */
+public final class SerialStatus {
+
+    public static final int TIOCMIWAIT = 0x545C;
+    public static final int TIOCGICOUNT = 0x545D;
+
+    // indices into the counters filled in by getCounters(), these follow
+    // struct serial_icounter_struct
+    public static final int ICOUNT_CTS = 0;
+    public static final int ICOUNT_DSR = 1;
+    public static final int ICOUNT_RNG = 2;
+    public static final int ICOUNT_DCD = 3;
+    public static final int ICOUNT_RX = 4;
+    public static final int ICOUNT_TX = 5;
+    public static final int ICOUNT_FRAME = 6;
+    public static final int ICOUNT_OVERRUN = 7;
+    public static final int ICOUNT_PARITY = 8;
+    public static final int ICOUNT_BRK = 9;
+    public static final int ICOUNT_BUF_OVERRUN = 10;
+    public static final int ICOUNT_SIZE = 20;
+
+    private static final int SA_RESTART = 0x10000000;
+
+    static private class C_lib_DirectMapping {
+
+        native public int ioctl(int fd, int cmd, NativeLong arg);
+
+        native public int ioctl(int fd, int cmd, int[] arg);
+
+        native public NativeLong pthread_self();
+
+        native public int pthread_kill(NativeLong thread, int sig);
+
+        native public int sigaction(int sig, Pointer act, Pointer oact);
+
+        native public int __libc_current_sigrtmax();
+    }
+
+    // the signal interrupt() sends, 0 if interrupting is not possible, -1
+    // as long as that is not settled
+    static private int m_InterruptSignal = -1;
+
+    static private final C_lib_DirectMapping m_Clib;
+
+    static {
+        Native.register(C_lib_DirectMapping.class, NativeLibrary.getInstance(Platform.C_LIBRARY_NAME));
+        m_Clib = new C_lib_DirectMapping();
+    }
+
+    private SerialStatus() {
+    }
+
+    /**
+     * Blocks until one of the modem lines in <code>mask</code> changes, the
+     * mask is made of <code>TIOCM_CTS</code>, <code>TIOCM_DSR</code>,
+     * <code>TIOCM_RI</code> and <code>TIOCM_CD</code>. Note that closing the
+     * port from another thread does not wake this up, only a line change,
+     * hang up or {@link #interrupt(long)} does.
+     * 
+     * @return 0 when a line changed, -1 on failure with errno set, EINVAL if
+     *         the driver does not support this, EINTR if interrupted
+     */
+    public static int waitForLineChange(int fd, int mask) {
+        return m_Clib.ioctl(fd, TIOCMIWAIT, new NativeLong(mask));
+    }
+
+    /**
+     * Reads the driver's interrupt counters with TIOCGICOUNT into
+     * <code>counters</code>, which must have room for
+     * <code>ICOUNT_SIZE</code> ints, use the <code>ICOUNT_*</code> constants
+     * to index it. The counters are cumulative since the driver was loaded and
+     * wrap around.
+     * 
+     * @return 0 on success, -1 on failure with errno set, typically EINVAL or
+     *         ENOTTY if the driver does not keep counters
+     */
+    public static int getCounters(int fd, int[] counters) {
+        if (counters.length < ICOUNT_SIZE)
+            throw new IllegalArgumentException("counters.length < " + ICOUNT_SIZE);
+        return m_Clib.ioctl(fd, TIOCGICOUNT, counters);
+    }
+
+    /**
+     * Returns the id of the calling thread for {@link #interrupt(long)}.
+     */
+    public static long currentThread() {
+        return m_Clib.pthread_self().longValue();
+    }
+
+    /**
+     * Returns true if {@link #interrupt(long)} is supported, call this before
+     * a thread blocks in a call that it is to be interrupted from.
+     * <p>
+     * This uses the signal NIO uses to interrupt blocking system calls,
+     * <code>SIGRTMAX - 2</code>, which works once NIO or somebody else has
+     * installed a handler for it without <code>SA_RESTART</code>, so that the
+     * system call the signal hits returns with EINTR.
+     * <p>
+     * If there is no handler yet and the system property
+     * <code>purejavacomm.interrupthandler</code> is <code>true</code> a
+     * process wide handler that does nothing is installed. Since no Java code
+     * may run in a signal handler the handler is <code>getpid()</code> from
+     * the C library, which ignores the signal number and has no side effects.
+     * This relies on the glibc layout of <code>struct sigaction</code> and is
+     * only done on Intel and ARM. Without the property this returns false
+     * until a handler shows up.
+     */
+    public static synchronized boolean canInterrupt() {
+        if (m_InterruptSignal < 0) {
+            // the layout of struct sigaction below is that of glibc on these
+            if (!Platform.isIntel() && !Platform.isARM()) {
+                m_InterruptSignal = 0;
+                return false;
+            }
+            int sig = m_Clib.__libc_current_sigrtmax() - 2;
+            int flagsOffset = Native.POINTER_SIZE + 128; // after sa_handler and sa_mask
+            Memory old = new Memory(256);
+            old.clear();
+            if (m_Clib.sigaction(sig, null, old) != 0)
+                return false;
+            long handler = Pointer.nativeValue(old.getPointer(0));
+            if (handler == 1) { // SIG_IGN, somebody wants this signal ignored
+                m_InterruptSignal = 0;
+                return false;
+            }
+            if (handler == 0) { // SIG_DFL would kill the process
+                if (!Boolean.getBoolean("purejavacomm.interrupthandler"))
+                    return false; // maybe NIO installs one later
+                Memory act = new Memory(256);
+                act.clear(); // empty sa_mask, no flags
+                act.setPointer(0, NativeLibrary.getInstance(Platform.C_LIBRARY_NAME).getFunction("getpid"));
+                if (m_Clib.sigaction(sig, act, null) != 0)
+                    return false;
+            } else if ((old.getInt(flagsOffset) & SA_RESTART) != 0) {
+                m_InterruptSignal = 0;
+                return false; // the call would just be restarted
+            }
+            m_InterruptSignal = sig;
+        }
+        return m_InterruptSignal > 0;
+    }
+
+    /**
+     * Interrupts a blocking system call of the thread, which must still be
+     * alive, so that it returns with EINTR. If the thread is not blocking
+     * right now the signal is lost, so keep on interrupting until the thread
+     * shows that it got out. Only call this if {@link #canInterrupt()}
+     * returned true.
+     * 
+     * @param thread
+     *            the id returned by {@link #currentThread()} in that thread
+     * @return 0 on success, an error number on failure
+     */
+    public static int interrupt(long thread) {
+        return m_Clib.pthread_kill(new NativeLong(thread), m_InterruptSignal);
+    }
+}
@@ -30,6 +30,7 @@
 
 package jtermios.windows;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.regex.Pattern;
 
@@ -395,6 +396,10 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 	}
 
 	public int read(int fd, byte[] buffer, int length) {
+		return read(fd, buffer, 0, length);
+	}
+
+	public int read(int fd, byte[] buffer, int offset, int length) {
 
 		Port port = getPort(fd);
 		if (port == null)
@@ -483,7 +488,7 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 						port.fail();
 				}
 
-				port.m_RdBuffer.read(0, buffer, 0, port.m_RdN[0]);
+				port.m_RdBuffer.read(0, buffer, offset, port.m_RdN[0]);
 				return port.m_RdN[0];
 			} catch (Fail ie) {
 				return -1;
@@ -492,6 +497,10 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 	}
 
 	public int write(int fd, byte[] buffer, int length) {
+		return write(fd, buffer, 0, length);
+	}
+
+	public int write(int fd, byte[] buffer, int offset, int length) {
 		Port port = getPort(fd);
 		if (port == null)
 			return -1;
@@ -531,7 +540,7 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 
 				if (length > port.m_WrBuffer.size())
 					length = (int) port.m_WrBuffer.size();
-				port.m_WrBuffer.write(0, buffer, 0, length); // copy from buffer to Memory
+				port.m_WrBuffer.write(0, buffer, offset, length); // copy from buffer to Memory
 				boolean ok = WriteFile(port.m_Comm, port.m_WrBuffer, length, port.m_WrN, port.m_WrOVL);
 
 				if (!ok) {
@@ -547,6 +556,66 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 		}
 	}
 
+	// the offset is applied when copying to/from the overlapped I/O Memory buffers,
+	// direct ByteBuffers still need a temporary array
+	public int read(int fd, ByteBuffer buffer) {
+		int n;
+		if (buffer.hasArray())
+			n = read(fd, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		else {
+			byte[] tmp = new byte[buffer.remaining()];
+			n = read(fd, tmp, tmp.length);
+			if (n > 0)
+				buffer.duplicate().put(tmp, 0, n);
+		}
+		if (n > 0)
+			buffer.position(buffer.position() + n);
+		return n;
+	}
+
+	public int write(int fd, ByteBuffer buffer) {
+		int n;
+		if (buffer.hasArray())
+			n = write(fd, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		else {
+			byte[] tmp = new byte[buffer.remaining()];
+			buffer.duplicate().get(tmp);
+			n = write(fd, tmp, tmp.length);
+		}
+		if (n > 0)
+			buffer.position(buffer.position() + n);
+		return n;
+	}
+
+	// no readv()/writev() here, so loop over the buffers until a short read/write
+	public int writev(int fd, ByteBuffer[] buffers, int offset, int length) {
+		int total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int rem = buffers[i].remaining();
+			int n = write(fd, buffers[i]);
+			if (n < 0)
+				return total > 0 ? total : n;
+			total += n;
+			if (n < rem)
+				break;
+		}
+		return total;
+	}
+
+	public int readv(int fd, ByteBuffer[] buffers, int offset, int length) {
+		int total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int rem = buffers[i].remaining();
+			int n = read(fd, buffers[i]);
+			if (n < 0)
+				return total > 0 ? total : n;
+			total += n;
+			if (n < rem)
+				break;
+		}
+		return total;
+	}
+
 	public int close(int fd) {
 		Port port = getPort(fd);
 		if (port == null)
@@ -965,6 +1034,11 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 		return -1;
 	}
 
+	public int ppoll(Pollfd fds[], int nfds, TimeSpec timeout) {
+		m_ErrNo = EINVAL;
+		return -1;
+	}
+
 	public boolean canPoll() {
 		return false;
 	}
@@ -1056,6 +1130,10 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 				clearCommErrors(port);
 				arg[0] = port.m_COMSTAT.cbInQue;
 				return 0;
+			} else if (cmd == TIOCOUTQ) {
+				clearCommErrors(port);
+				arg[0] = port.m_COMSTAT.cbOutQue;
+				return 0;
 			} else if (cmd == TIOCMSET) {
 				int a = arg[0];
 				if ((a & TIOCM_DTR) != 0)
@@ -1272,4 +1350,9 @@ public class JTermiosImpl implements jtermios.JTermios.JTermiosInterface {
 		return -1;
 	}
 
+	public int eventfd(int initval, int flags) {
+		m_ErrNo = EMFILE; // eventfd() not implemented on Windows backend
+		return -1;
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm;
+
+import java.nio.ByteBuffer;
+
+import jtermios.JTermios;
+
+/**
+ * A lock free single producer, single consumer byte ring used by the buffered
+ * read mode of {@link PureJavaSerialPort}.
+ * <p>
+ * The producer is the port's reader thread which reads straight from the
+ * file descriptor into the ring with {@link #fill(int)}. The ring is a direct
+ * buffer so the read() or readv() system call puts the bytes right where they
+ * belong without the copy JNA makes for a heap array. The consumer is the
+ * thread reading from the port. Each side only ever updates its own counter
+ * so no locking is needed, the counters are volatile which is enough to
+ * publish the bytes between them. The capacity is always a power of two so
+ * that the counters can be turned into array indexes with a mask.
+ */
+final class InputRing {
+	private final ByteBuffer m_Buffer;
+	private final int m_Mask;
+	// views on m_Buffer for the producer, the second one only for the
+	// readv() when the free space wraps around
+	private final ByteBuffer[] m_IOV;
+	// view on m_Buffer for the consumer
+	private final ByteBuffer m_Out;
+	// bytes put in so far, only updated by the producer
+	private volatile long m_Head;
+	// bytes taken out so far, only updated by the consumer
+	private volatile long m_Tail;
+
+	InputRing(int capacity) {
+		int size = capacityFor(capacity);
+		m_Buffer = ByteBuffer.allocateDirect(size);
+		m_Mask = size - 1;
+		m_IOV = new ByteBuffer[] { m_Buffer.duplicate(), m_Buffer.duplicate() };
+		m_Out = m_Buffer.duplicate();
+	}
+
+	/**
+	 * Returns the capacity a ring created for <code>capacity</code> bytes
+	 * gets.
+	 */
+	static int capacityFor(int capacity) {
+		int size = 64;
+		while (size < capacity && size < (1 << 30))
+			size <<= 1;
+		return size;
+	}
+
+	int capacity() {
+		return m_Buffer.capacity();
+	}
+
+	int available() {
+		return (int) (m_Head - m_Tail);
+	}
+
+	boolean isFull() {
+		return m_Head - m_Tail == m_Buffer.capacity();
+	}
+
+	/**
+	 * Reads from the file descriptor into all of the free space with a single
+	 * read() or, if the free space wraps around, readv(). Only to be called
+	 * by the producer and only when the ring is not full.
+	 * 
+	 * @return what read() returned
+	 */
+	int fill(int fd) {
+		long head = m_Head;
+		int size = m_Buffer.capacity();
+		int free = size - (int) (head - m_Tail);
+		int offset = (int) head & m_Mask;
+		int first = Math.min(free, size - offset);
+		m_IOV[0].clear();
+		m_IOV[0].position(offset);
+		m_IOV[0].limit(offset + first);
+		int n;
+		if (first == free)
+			n = JTermios.read(fd, m_IOV[0]);
+		else {
+			m_IOV[1].clear();
+			m_IOV[1].limit(free - first);
+			n = JTermios.readv(fd, m_IOV, 0, 2);
+		}
+		if (n > 0)
+			m_Head = head + n;
+		return n;
+	}
+
+	/**
+	 * Moves as many bytes as are available and fit into the buffer. Only to
+	 * be called by the consumer.
+	 * 
+	 * @return the number of bytes moved
+	 */
+	int read(ByteBuffer buffer) {
+		long tail = m_Tail;
+		int n = Math.min((int) (m_Head - tail), buffer.remaining());
+		if (n == 0)
+			return 0;
+		int offset = (int) tail & m_Mask;
+		int first = Math.min(n, m_Buffer.capacity() - offset);
+		ByteBuffer out = m_Out;
+		out.clear();
+		out.position(offset);
+		out.limit(offset + first);
+		buffer.put(out);
+		if (first < n) {
+			out.clear();
+			out.limit(n - first);
+			buffer.put(out);
+		}
+		m_Tail = tail + n;
+		return n;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm;
+import java.nio.ByteOrder;
+
+import static jtermios.JTermios.*;
+
+/**
+ * Wakes up a thread blocking in poll()/select() on a port, the thread adds
+ * {@link #getFD()} to the descriptors it waits on and calls {@link #drain()}
+ * when it becomes readable.
+ * <p>
+ * On Linux this is an eventfd, one descriptor and one read clears any number
+ * of nudges, elsewhere it is a pipe. Both ends are non blocking, a full pipe
+ * simply means a nudge is pending already.
+ */
+final class Nudge {
+	private static final boolean USE_EVENTFD = Boolean.parseBoolean(System.getProperty("purejavacomm.useeventfd", "true"));
+	// eventfd counter increment of 1 in native byte order
+	private static final byte[] EVENT = new byte[8];
+	private static final byte[] PIPE = { 0 };
+
+	static {
+		EVENT[ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 7] = 1;
+	}
+
+	private final int m_RdFD;
+	private final int m_WrFD;
+	private final byte[] m_Data;
+	private final byte[] m_Drain;
+
+	private Nudge(int rdfd, int wrfd, byte[] data, int drain) {
+		m_RdFD = rdfd;
+		m_WrFD = wrfd;
+		m_Data = data;
+		m_Drain = new byte[drain];
+	}
+
+	/**
+	 * Returns a new nudge or null if neither eventfd() nor pipe() works here.
+	 */
+	static Nudge open() {
+		if (USE_EVENTFD) {
+			int fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+			if (fd >= 0)
+				return new Nudge(fd, fd, EVENT, 8);
+		}
+		int[] pipes = new int[2];
+		if (pipe(pipes) != 0)
+			return null;
+		fcntl(pipes[0], F_SETFL, fcntl(pipes[0], F_GETFL, 0) | O_NONBLOCK);
+		fcntl(pipes[1], F_SETFL, fcntl(pipes[1], F_GETFL, 0) | O_NONBLOCK);
+		return new Nudge(pipes[0], pipes[1], PIPE, 64);
+	}
+
+	/**
+	 * Returns the descriptor to poll()/select() for reading.
+	 */
+	int getFD() {
+		return m_RdFD;
+	}
+
+	void nudge() {
+		write(m_WrFD, m_Data, m_Data.length);
+	}
+
+	/**
+	 * Clears the pending nudges, does not block.
+	 */
+	void drain() {
+		read(m_RdFD, m_Drain, m_Drain.length);
+	}
+
+	void close() {
+		jtermios.JTermios.close(m_RdFD);
+		if (m_WrFD != m_RdFD)
+			jtermios.JTermios.close(m_WrFD);
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static jtermios.JTermios.JTermiosLogging.*;
+
+/**
+ * Collects small writes to a port and writes them together, see
+ * {@link PureJavaSerialPort#enableOutputCoalescing(int, int)}.
+ * <p>
+ * The bytes go into a direct buffer which is written out when a write does
+ * not fit into it anymore, on <code>flush()</code> or when the first byte
+ * in it has waited for the linger time. The last is done by a timer thread
+ * shared by all ports, which only ever tries a non blocking write so that a
+ * port held back by flow control does not hold up the others, if not all
+ * of the bytes could be written it tries again one linger time later.
+ * <p>
+ * All writes go through the lock, so each one ends up in one piece and in
+ * order in the output, whichever thread does the actual writing.
+ */
+final class OutputCoalescer implements Runnable {
+	private final PureJavaSerialPort m_Port;
+	private final long m_LingerNanos;
+	private final ReentrantLock m_Lock = new ReentrantLock();
+	// guarded by m_Lock
+	private final ByteBuffer m_Buffer;
+	private long m_Deadline;
+	private boolean m_Armed;
+	private IOException m_Failure;
+	// set when the port is closed or coalescing disabled
+	private volatile boolean m_Closed;
+
+	private static final class Timer {
+		static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PureJavaComm linger");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	OutputCoalescer(PureJavaSerialPort port, int size, int lingerMicros) {
+		m_Port = port;
+		m_Buffer = ByteBuffer.allocateDirect(size);
+		m_LingerNanos = lingerMicros * 1000L;
+	}
+
+	void write(int b) throws IOException {
+		m_Lock.lock();
+		try {
+			if (m_Closed) {
+				m_Port.writeFully(ByteBuffer.wrap(new byte[] { (byte) b }));
+				return;
+			}
+			check();
+			if (!m_Buffer.hasRemaining())
+				flushLocked();
+			m_Buffer.put((byte) b);
+			added();
+		} finally {
+			m_Lock.unlock();
+		}
+	}
+
+	long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++)
+			total += buffers[i].remaining();
+		m_Lock.lock();
+		try {
+			if (m_Closed)
+				return m_Port.writeFully(buffers, offset, length);
+			check();
+			if (total <= m_Buffer.remaining()) {
+				for (int i = offset; i < offset + length; i++)
+					m_Buffer.put(buffers[i]);
+				added();
+				return total;
+			}
+			if (m_Buffer.position() == 0)
+				return m_Port.writeFully(buffers, offset, length);
+			// too much to buffer, so write it together with what is buffered
+			ByteBuffer[] gather = new ByteBuffer[length + 1];
+			gather[0] = m_Buffer;
+			System.arraycopy(buffers, offset, gather, 1, length);
+			m_Buffer.flip();
+			try {
+				m_Port.writeFully(gather, 0, gather.length);
+			} finally {
+				emptied();
+			}
+			return total;
+		} finally {
+			m_Lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes out what is buffered and then the buffer, both against the
+	 * deadline, nothing of the buffer is written if the deadline passes
+	 * before the buffered bytes are out.
+	 */
+	int writeUntil(ByteBuffer buffer, long deadline) throws IOException {
+		m_Lock.lock();
+		try {
+			if (!m_Closed) {
+				check();
+				if (m_Buffer.position() > 0) {
+					m_Buffer.flip();
+					try {
+						m_Port.writeUntil(m_Buffer, deadline);
+					} finally {
+						emptied();
+					}
+					if (m_Buffer.position() > 0)
+						return 0;
+				}
+			}
+			return m_Port.writeUntil(buffer, deadline);
+		} finally {
+			m_Lock.unlock();
+		}
+	}
+
+	void flush() throws IOException {
+		m_Lock.lock();
+		try {
+			if (m_Closed)
+				return;
+			check();
+			flushLocked();
+		} finally {
+			m_Lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops buffering and writes out what is buffered, later writes go
+	 * straight to the port.
+	 */
+	void close() throws IOException {
+		m_Lock.lock();
+		try {
+			m_Closed = true;
+			flushLocked();
+		} finally {
+			m_Lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops buffering and writes out what is buffered, giving up at the
+	 * deadline, for closing the port.
+	 * 
+	 * @return the number of buffered bytes that could not be written, or -1
+	 *         if a writer held on to the buffer past the deadline
+	 */
+	int close(long deadline) throws IOException {
+		try {
+			if (!m_Lock.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+				m_Closed = true;
+				return -1;
+			}
+		} catch (InterruptedException e) {
+			m_Closed = true;
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+		try {
+			m_Closed = true;
+			check();
+			if (m_Buffer.position() == 0)
+				return 0;
+			m_Buffer.flip();
+			m_Port.writeUntil(m_Buffer, deadline);
+			int left = m_Buffer.remaining();
+			m_Buffer.clear();
+			m_Armed = false;
+			return left;
+		} finally {
+			m_Lock.unlock();
+		}
+	}
+
+	// the linger time of the first buffered byte is up
+	public void run() {
+		if (m_Closed)
+			return;
+		// somebody writing right now will either write out the buffer or
+		// leave it to us, so have another look later instead of waiting
+		if (!m_Lock.tryLock()) {
+			Timer.EXECUTOR.schedule(this, m_LingerNanos, TimeUnit.NANOSECONDS);
+			return;
+		}
+		try {
+			if (m_Closed || !m_Armed)
+				return;
+			long now = System.nanoTime();
+			// a timer of an earlier fill of the buffer
+			if (now - m_Deadline < 0)
+				return;
+			m_Buffer.flip();
+			try {
+				m_Port.writeUntil(m_Buffer, now);
+			} catch (IOException e) {
+				m_Failure = e;
+			} catch (RuntimeException e) {
+				// closed under our feet
+				log = log && log(1, "linger flush of %s failed %s\n", m_Port.getName(), e.getMessage());
+			}
+			emptied();
+		} finally {
+			m_Lock.unlock();
+		}
+	}
+
+	private void check() throws IOException {
+		IOException e = m_Failure;
+		if (e != null) {
+			m_Failure = null;
+			throw e;
+		}
+	}
+
+	private void flushLocked() throws IOException {
+		if (m_Buffer.position() == 0)
+			return;
+		m_Buffer.flip();
+		try {
+			m_Port.writeFully(m_Buffer);
+		} finally {
+			emptied();
+		}
+	}
+
+	private void added() throws IOException {
+		if (!m_Buffer.hasRemaining())
+			flushLocked();
+		else if (!m_Armed)
+			arm(System.nanoTime() + m_LingerNanos);
+	}
+
+	// keeps what could not be written, for example after a write timeout
+	private void emptied() {
+		m_Buffer.compact();
+		if (m_Buffer.position() == 0)
+			m_Armed = false;
+		else
+			arm(System.nanoTime() + m_LingerNanos);
+	}
+
+	private void arm(long deadline) {
+		m_Armed = true;
+		m_Deadline = deadline;
+		Timer.EXECUTOR.schedule(this, m_LingerNanos, TimeUnit.NANOSECONDS);
+	}
+}
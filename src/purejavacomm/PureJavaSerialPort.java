@@ -32,26 +32,43 @@ package purejavacomm;
 
 // FIXME move javadoc comments for input stream to SerialPort.java
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
 
 import com.sun.jna.Native;
+import com.sun.jna.Platform;
 
 import jtermios.*;
+import jtermios.linux.Epoll;
+import jtermios.linux.SerialStatus;
 import static jtermios.JTermios.JTermiosLogging.*;
 import static jtermios.JTermios.*;
 
 public class PureJavaSerialPort extends SerialPort {
+	private static final boolean UNIPROCESSOR = Runtime.getRuntime().availableProcessors() < 2;
 	final boolean USE_POLL;
 	final boolean RAW_READ_MODE;
+	final boolean OPTIMISTIC_READ_MODE;
+	final boolean POLL_READ_MODE;
+	final boolean BUFFERED_READ_MODE;
 	private Thread m_Thread;
 	private volatile SerialPortEventListener m_EventListener;
 	private volatile OutputStream m_OutputStream;
 	private volatile InputStream m_InputStream;
+	private volatile SerialPortChannel m_Channel;
 	private volatile int m_FD = -1;
-	private volatile boolean m_HaveNudgePipe = false;
-	private volatile int m_PipeWrFD = 0;
-	private volatile int m_PipeRdFD = 0;
-	private byte[] m_NudgeData = { 0 };
+	// Nudges wake up threads blocking in poll()/select(), they are only
+	// created when a blocking read or the event thread first needs one so
+	// that ports that use neither don't cost any extra descriptors. The event
+	// thread has its own so that readers, which drain theirs, can't swallow
+	// the wake ups meant for it.
+	private final boolean m_UseNudge;
+	private final Object m_NudgeLock = new Object();
+	private volatile Nudge m_ReadNudge;
+	private volatile Nudge m_EventNudge;
 	private volatile int m_BaudRate;
 	private volatile int m_DataBits;
 	private volatile int m_FlowControlMode;
@@ -61,9 +78,13 @@ public class PureJavaSerialPort extends SerialPort {
 	private volatile boolean m_TimeoutThresholdChanged = true;
 	private volatile boolean m_ReceiveTimeoutEnabled;
 	private volatile int m_ReceiveTimeoutValue;
+	private volatile long m_ReceiveTimeoutNanos;
+	private volatile boolean m_ReceiveTimeoutPrecise;
 	private volatile int m_ReceiveTimeoutVTIME;
 	private volatile boolean m_ReceiveThresholdEnabled;
 	private volatile int m_ReceiveThresholdValue;
+	private volatile long m_ReceiveLingerNanos;
+	private volatile long m_SpinMaxNanos;
 	private volatile boolean m_PollingReadMode;
 	private volatile boolean m_NotifyOnDataAvailable;
 	private volatile boolean m_DataAvailableNotified;
@@ -85,11 +106,94 @@ public class PureJavaSerialPort extends SerialPort {
 	// which for Mac OS X / CRTSCTS does not work, it is also more efficient
 	private Termios m_Termios = new Termios();
 	private int m_MinVTIME;
+	private volatile int m_TermiosUpdateCount;
+	// m_Rd for read() state, this is just cached/precomputed stuff to make read() faster
+	private int m_RdVTIME = -1;
+	private int m_RdVMIN = -1;
+	private final Pollfd[] m_RdPollFD = new Pollfd[] { new Pollfd(), new Pollfd() };
+	private FDSet m_RdFDSet;
+	private final TimeVal m_RdTimeVal = new TimeVal();
+	private final TimeSpec m_RdTimeSpec = new TimeSpec();
+	private final Pollfd[] m_WrPollFD = new Pollfd[] { new Pollfd() };
+	private FDSet m_WrFDSet;
+	private final TimeVal m_WrTimeVal = new TimeVal();
+	private final TimeSpec m_WrTimeSpec = new TimeSpec();
+	private final int[] m_WrOutQ = { 0 };
+	// write timeout state, timed writes go to m_WrFD which is non blocking,
+	// it is m_FD in optimistic read mode and otherwise a second descriptor
+	private volatile boolean m_WriteTimeoutEnabled;
+	private volatile long m_WriteTimeoutNanos;
+	private volatile int m_WrFD = -1;
+	private int m_RdPollFDn;
+	private boolean m_RdReceiveTimeoutEnabled;
+	private long m_RdReceiveTimeoutNanos;
+	private boolean m_RdReceiveTimeoutPrecise;
+	private boolean m_RdReceiveThresholdEnabled;
+	private int m_RdReceiveThresholdValue;
+	private long m_RdReceiveLingerNanos;
+	private long m_RdSpinMaxNanos;
+	// spin read mode state, the budget adapts to how long reads wait for data
+	private volatile long m_SpinBudgetNanos;
+	private volatile long m_SpinReads;
+	private volatile long m_ParkedReads;
+	private boolean m_RdPollingReadMode;
+	private int m_RdReceiveTimeoutVTIME;
+	// buffered read mode state, m_Pump reads the port into m_InputRing
+	private volatile InputRing m_InputRing;
+	private volatile int m_InputBufferSize = 4096;
+	private Thread m_Pump;
+	private volatile boolean m_PumpWaiting;
+	private volatile boolean m_PumpStopped;
+	private volatile int m_PumpErrNo;
+	private volatile Thread m_RingReader;
+	private Nudge m_PumpNudge;
+	// set when the events for this port are dispatched by a SerialReactor
+	private volatile SerialReactor.Worker m_Reactor;
+	private int m_ReactorSlot;
+	// set once an asynchronous read or write has been started on a
+	// SerialIoEngine, the outstanding operations are guarded by the engine
+	private volatile SerialIoEngine m_IoEngine;
+	private volatile SerialIoEngine.Op m_IoRead;
+	private volatile SerialIoEngine.Op m_IoWrite;
+	// set while concurrent writes are enabled
+	private volatile WriteCombiner m_Combiner;
+	// set while output coalescing is enabled
+	private volatile OutputCoalescer m_Coalescer;
+	// writeAsync() state, m_Writer is private to this port unless one was set
+	private SerialWriter m_Writer;
+	private SerialWriter.Queue m_WriterQueue;
+	// control line changes are waited for with TIOCMIWAIT in m_LineWatcher
+	// on Linux, the event thread only polls them if m_LinesWatched is false
+	private Thread m_LineWatcher;
+	private volatile boolean m_LinesWatched;
+	// true while m_LineWatcher is in or about to enter TIOCMIWAIT, which
+	// close() gets it out of with SerialStatus.interrupt(m_LineWaiter).
+	// m_LineWaitLock guards clearing it against the interrupt, so that the
+	// watcher thread can't exit while it is being signalled.
+	private final Object m_LineWaitLock = new Object();
+	private volatile boolean m_LineWaiting;
+	private volatile long m_LineWaiter;
+	private volatile boolean m_LineWaitUnsupported = !Platform.isLinux() || !Boolean.parseBoolean(System.getProperty("purejavacomm.linewait", "true"));
+	// TIOCGICOUNT counters, m_ICountLast is what the OE/PE/FE/BI events were
+	// last sent for
+	private final int[] m_ICount = new int[SerialStatus.ICOUNT_SIZE];
+	private final int[] m_ICountLast = new int[SerialStatus.ICOUNT_SIZE];
+	private volatile boolean m_ICountUnsupported = !Platform.isLinux();
+	// push mode DATA_AVAILABLE state, m_PushBatchSize 0 means push mode is off
+	private volatile int m_PushBatchSize;
+	private final ArrayBlockingQueue<ByteBuffer> m_PushPool = new ArrayBlockingQueue<ByteBuffer>(8);
 
 	private void sendDataEvents(boolean read, boolean write) {
 		if (read && m_NotifyOnDataAvailable && !m_DataAvailableNotified) {
-			m_DataAvailableNotified = true;
-			m_EventListener.serialEvent(new SerialPortEvent(this, SerialPortEvent.DATA_AVAILABLE, false, true));
+			if (m_PushBatchSize > 0) {
+				// in buffered read mode drain the ring, otherwise poll() tells us if there is more
+				do
+					pushDataEvent();
+				while (BUFFERED_READ_MODE && m_PushBatchSize > 0 && m_FD >= 0 && m_InputRing.available() > 0);
+			} else {
+				m_DataAvailableNotified = true;
+				m_EventListener.serialEvent(new SerialPortEvent(this, SerialPortEvent.DATA_AVAILABLE, false, true));
+			}
 		}
 		if (write && m_NotifyOnOutputEmpty && !m_OutputEmptyNotified) {
 			m_OutputEmptyNotified = true;
@@ -97,6 +201,223 @@ public class PureJavaSerialPort extends SerialPort {
 		}
 	}
 
+	// In push mode the event thread does the one and only read() and hands
+	// the bytes to the listener, so unlike the plain DATA_AVAILABLE event
+	// this is not latched with m_DataAvailableNotified, there is nothing left
+	// for the listener to read.
+	private void pushDataEvent() {
+		int size = m_PushBatchSize;
+		ByteBuffer buffer = m_PushPool.poll();
+		if (buffer == null || buffer.capacity() != size)
+			buffer = ByteBuffer.allocateDirect(size);
+		buffer.clear();
+		int n;
+		if (BUFFERED_READ_MODE) {
+			n = m_InputRing.read(buffer);
+			if (m_PumpWaiting)
+				LockSupport.unpark(m_Pump);
+		} else {
+			if (!OPTIMISTIC_READ_MODE) {
+				try {
+					setReadTermios(0, 0); // so that read() just returns what is there
+				} catch (IOException e) {
+					log = log && log(1, "setting VMIN/VTIME in push mode failed %s\n", e.getMessage());
+				}
+			}
+			n = jtermios.JTermios.read(m_FD, buffer);
+			if (n < 0 && errno() == EAGAIN)
+				n = 0;
+			else if (n <= 0) {
+				// hang up or error, stop pushing until the next read() like
+				// we do with plain DATA_AVAILABLE events
+				log = log && log(1, "read() in push mode returned %d, errno %d\n", n, errno());
+				m_DataAvailableNotified = true;
+			}
+		}
+		if (n <= 0) {
+			m_PushPool.offer(buffer);
+			return;
+		}
+		buffer.flip();
+		m_EventListener.serialEvent(new SerialPortDataEvent(this, buffer));
+	}
+
+	/* package */void releaseDataBuffer(ByteBuffer buffer) {
+		if (buffer.capacity() == m_PushBatchSize)
+			m_PushPool.offer(buffer);
+	}
+
+	// starts the line watcher the first time control line events are asked
+	// for, only call if you hold the port lock
+	private void lineNotificationChanged() {
+		if (m_LineWaitUnsupported || m_Reactor != null || m_LineWatcher != null)
+			return;
+		if (m_EventListener == null || !(m_NotifyOnCTS || m_NotifyOnDSR || m_NotifyOnRI || m_NotifyOnCD))
+			return;
+		if (!SerialStatus.canInterrupt()) {
+			// without a way to get it out of TIOCMIWAIT close() could not
+			// stop the watcher, so leave it to the event thread polling,
+			// see SerialStatus.canInterrupt() for how to enable it
+			log = log && log(1, "can't interrupt TIOCMIWAIT, control lines are polled\n");
+			m_LineWaitUnsupported = true;
+			return;
+		}
+		m_LinesWatched = true;
+		m_LineWatcher = new Thread(new Runnable() {
+			public void run() {
+				watchLines();
+			}
+		}, getName() + " lines");
+		m_LineWatcher.setDaemon(true);
+		m_LineWatcher.start();
+	}
+
+	// Blocks in TIOCMIWAIT so that control line events are sent as soon as a
+	// line changes, instead of calling TIOCMGET every 'pollperiod' ms. All
+	// four lines are waited for, sendNonDataEvents() only reports the ones
+	// asked for, so lines enabled later need no wake up. If the driver does
+	// not support TIOCMIWAIT (EINVAL, or ENOTTY and friends for ptys) we give
+	// up and leave it to the event thread polling. close() interrupts the
+	// wait, see stopLineWatcher().
+	private void watchLines() {
+		m_LineWaiter = SerialStatus.currentThread();
+		try {
+			while (m_FD >= 0) {
+				int res;
+				m_LineWaiting = true;
+				try {
+					// close() sets m_FD before looking at m_LineWaiting, so
+					// either we see it here or it keeps interrupting us
+					int fd = m_FD;
+					if (fd < 0)
+						break;
+					res = SerialStatus.waitForLineChange(fd, TIOCM_CTS | TIOCM_DSR | TIOCM_RI | TIOCM_CD);
+				} finally {
+					synchronized (m_LineWaitLock) {
+						m_LineWaiting = false;
+					}
+				}
+				if (m_FD < 0)
+					break;
+				if (res < 0) {
+					int err = errno();
+					if (err == EINTR)
+						continue;
+					log = log && log(1, "ioctl(TIOCMIWAIT) returned %d, errno %d, falling back to polling\n", res, err);
+					m_LineWaitUnsupported = true;
+					break;
+				}
+				if (m_EventListener != null)
+					sendNonDataEvents();
+			}
+		} finally {
+			m_LinesWatched = false;
+			nudgePipe(); // get the event thread to start polling if needed
+		}
+	}
+
+	// Gets the line watcher out of TIOCMIWAIT and waits for it to finish, so
+	// that it does not linger on holding the port open. A signal sent just
+	// before the watcher enters the ioctl is lost, so we keep on sending until
+	// it is gone. Called from close() with m_FD already set to -1 and holding
+	// the port lock, so if the watcher is blocked on that lock to deliver an
+	// event we leave it, it will see m_FD and exit once we are done.
+	private void stopLineWatcher() {
+		Thread watcher = m_LineWatcher;
+		if (watcher == null)
+			return;
+		m_LineWatcher = null;
+		long t0 = System.currentTimeMillis();
+		while (watcher.isAlive() && watcher.getState() != Thread.State.BLOCKED) {
+			// the watcher can't leave the ioctl and exit while we hold the
+			// lock, so the thread we signal is still alive
+			synchronized (m_LineWaitLock) {
+				if (m_LineWaiting)
+					SerialStatus.interrupt(m_LineWaiter);
+			}
+			try {
+				watcher.join(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if (System.currentTimeMillis() - t0 > 2000) {
+				log = log && log(1, "line watcher did not stop\n");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Returns the line error and traffic counters the driver keeps for this
+	 * port.
+	 * <p>
+	 * This is only available on Linux and only for drivers that implement
+	 * TIOCGICOUNT, which most real UARTs and USB serial adapters do but ptys
+	 * and some virtual ports don't.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @throws UnsupportedCommOperationException
+	 *             if the platform or the driver does not keep the counters
+	 */
+	synchronized public SerialPortCounters getCounters() throws UnsupportedCommOperationException {
+		checkState();
+		if (m_ICountUnsupported)
+			throw new UnsupportedCommOperationException("line counters not supported");
+		if (!readCounters(m_ICount))
+			throw new UnsupportedCommOperationException("line counters not supported, errno " + errno());
+		int[] c = m_ICount;
+		return new SerialPortCounters(c[SerialStatus.ICOUNT_RX], c[SerialStatus.ICOUNT_TX], c[SerialStatus.ICOUNT_OVERRUN], c[SerialStatus.ICOUNT_BUF_OVERRUN], c[SerialStatus.ICOUNT_PARITY], c[SerialStatus.ICOUNT_FRAME], c[SerialStatus.ICOUNT_BRK]);
+	}
+
+	private boolean isNotifyingErrors() {
+		return m_NotifyOnOverrunError || m_NotifyOnParityError || m_NotifyOnFramingError || m_NotifyOnBreakInterrupt;
+	}
+
+	// drivers that don't keep the counters are remembered so that we
+	// don't keep on asking, and the error events are then never sent
+	private boolean readCounters(int[] counters) {
+		if (m_ICountUnsupported)
+			return false;
+		if (SerialStatus.getCounters(m_FD, counters) == 0)
+			return true;
+		log = log && log(1, "ioctl(TIOCGICOUNT) returned -1, errno %d, line error events disabled\n", errno());
+		m_ICountUnsupported = true;
+		return false;
+	}
+
+	// take the counters as they are now as the base for the error events,
+	// only call if you hold the port lock
+	private void errorNotificationStarted() {
+		readCounters(m_ICountLast);
+	}
+
+	// Sends OE/PE/FE/BI events for the counters that moved since the last
+	// call. The kernel does not wake anybody up for these so they are polled
+	// at the same rate as the control lines.
+	private synchronized void sendErrorEvents() {
+		if (!readCounters(m_ICount))
+			return;
+		int overruns = (m_ICount[SerialStatus.ICOUNT_OVERRUN] - m_ICountLast[SerialStatus.ICOUNT_OVERRUN]) + (m_ICount[SerialStatus.ICOUNT_BUF_OVERRUN] - m_ICountLast[SerialStatus.ICOUNT_BUF_OVERRUN]);
+		int parity = m_ICount[SerialStatus.ICOUNT_PARITY] - m_ICountLast[SerialStatus.ICOUNT_PARITY];
+		int frame = m_ICount[SerialStatus.ICOUNT_FRAME] - m_ICountLast[SerialStatus.ICOUNT_FRAME];
+		int brk = m_ICount[SerialStatus.ICOUNT_BRK] - m_ICountLast[SerialStatus.ICOUNT_BRK];
+		System.arraycopy(m_ICount, 0, m_ICountLast, 0, m_ICount.length);
+
+		if (m_NotifyOnOverrunError && overruns != 0)
+			m_EventListener.serialEvent(new SerialPortEvent(this, SerialPortEvent.OE, false, true));
+
+		if (m_NotifyOnParityError && parity != 0)
+			m_EventListener.serialEvent(new SerialPortEvent(this, SerialPortEvent.PE, false, true));
+
+		if (m_NotifyOnFramingError && frame != 0)
+			m_EventListener.serialEvent(new SerialPortEvent(this, SerialPortEvent.FE, false, true));
+
+		if (m_NotifyOnBreakInterrupt && brk != 0)
+			m_EventListener.serialEvent(new SerialPortEvent(this, SerialPortEvent.BI, false, true));
+	}
+
 	private synchronized void sendNonDataEvents() {
 		if (ioctl(m_FD, TIOCMGET, m_ioctl) < 0)
 			return; // FIXME decide what to with errors in the background thread
@@ -130,10 +451,15 @@ public class PureJavaSerialPort extends SerialPort {
 		if (m_EventListener != null)
 			throw new TooManyListenersException();
 		m_EventListener = eventListener;
-		if (!m_ThreadStarted) {
+		if (m_Reactor != null)
+			m_Reactor.update(this);
+		else if (!m_ThreadStarted) {
 			m_ThreadStarted = true;
+			if (m_UseNudge)
+				m_EventNudge = Nudge.open();
 			m_Thread.start();
 		}
+		lineNotificationChanged();
 	}
 
 	@Override
@@ -196,6 +522,55 @@ public class PureJavaSerialPort extends SerialPort {
 		return getControlLineState(TIOCM_RI);
 	}
 
+	/**
+	 * Enables push mode <code>DATA_AVAILABLE</code> events.
+	 * <p>
+	 * In push mode the event thread reads up to <code>batchSize</code> bytes
+	 * itself whenever data arrives and delivers them in a
+	 * {@link SerialPortDataEvent}, so a listener driven consumer costs one
+	 * read() system call per batch instead of the available()/poll()/read()
+	 * round trip a plain <code>DATA_AVAILABLE</code> event needs. Events are
+	 * only sent if <code>notifyOnDataAvailable(true)</code> has been called
+	 * and the port must not be read by anyone else while push mode is
+	 * enabled.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @param batchSize
+	 *            the maximum number of bytes delivered in one event
+	 */
+	synchronized public void enableDataAvailablePush(int batchSize) {
+		checkState();
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batchSize " + batchSize + " <= 0");
+		if (batchSize != m_PushBatchSize)
+			m_PushPool.clear();
+		m_PushBatchSize = batchSize;
+		m_DataAvailableNotified = false;
+		nudgePipe();
+	}
+
+	/**
+	 * Disables push mode <code>DATA_AVAILABLE</code> events, see
+	 * {@link #enableDataAvailablePush(int)}.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public void disableDataAvailablePush() {
+		checkState();
+		m_PushBatchSize = 0;
+		m_PushPool.clear();
+		nudgePipe();
+	}
+
+	/**
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public boolean isDataAvailablePushEnabled() {
+		checkState();
+		return m_PushBatchSize > 0;
+	}
+
 	@Override
 	synchronized public boolean isRTS() {
 		checkState();
@@ -205,7 +580,10 @@ public class PureJavaSerialPort extends SerialPort {
 	@Override
 	synchronized public void notifyOnBreakInterrupt(boolean x) {
 		checkState();
+		if (x && !isNotifyingErrors())
+			errorNotificationStarted();
 		m_NotifyOnBreakInterrupt = x;
+		nudgePipe();
 	}
 
 	@Override
@@ -215,6 +593,7 @@ public class PureJavaSerialPort extends SerialPort {
 			updateControlLineState(TIOCM_CTS);
 		m_NotifyOnCTS = x;
 		nudgePipe();
+		lineNotificationChanged();
 	}
 
 	@Override
@@ -224,6 +603,7 @@ public class PureJavaSerialPort extends SerialPort {
 			updateControlLineState(TIOCM_CD);
 		m_NotifyOnCD = x;
 		nudgePipe();
+		lineNotificationChanged();
 	}
 
 	@Override
@@ -233,6 +613,7 @@ public class PureJavaSerialPort extends SerialPort {
 			updateControlLineState(TIOCM_DSR);
 		m_NotifyOnDSR = x;
 		nudgePipe();
+		lineNotificationChanged();
 	}
 
 	@Override
@@ -245,7 +626,10 @@ public class PureJavaSerialPort extends SerialPort {
 	@Override
 	synchronized public void notifyOnFramingError(boolean x) {
 		checkState();
+		if (x && !isNotifyingErrors())
+			errorNotificationStarted();
 		m_NotifyOnFramingError = x;
+		nudgePipe();
 	}
 
 	@Override
@@ -258,13 +642,19 @@ public class PureJavaSerialPort extends SerialPort {
 	@Override
 	synchronized public void notifyOnOverrunError(boolean x) {
 		checkState();
+		if (x && !isNotifyingErrors())
+			errorNotificationStarted();
 		m_NotifyOnOverrunError = x;
+		nudgePipe();
 	}
 
 	@Override
 	synchronized public void notifyOnParityError(boolean x) {
 		checkState();
+		if (x && !isNotifyingErrors())
+			errorNotificationStarted();
 		m_NotifyOnParityError = x;
+		nudgePipe();
 	}
 
 	@Override
@@ -274,12 +664,15 @@ public class PureJavaSerialPort extends SerialPort {
 			updateControlLineState(TIOCM_RI);
 		m_NotifyOnRI = x;
 		nudgePipe();
+		lineNotificationChanged();
 	}
 
 	@Override
 	synchronized public void removeEventListener() {
 		checkState();
 		m_EventListener = null;
+		if (m_Reactor != null)
+			m_Reactor.update(this);
 	}
 
 	@Override
@@ -342,8 +735,6 @@ public class PureJavaSerialPort extends SerialPort {
 		checkState();
 		if (value < 0)
 			throw new IllegalArgumentException("threshold" + value + " < 0 ");
-		if (RAW_READ_MODE && value > 255)
-			throw new IllegalArgumentException("threshold" + value + " > 255 in raw read mode");
 		synchronized (m_ThresholdTimeoutLock) {
 			m_ReceiveThresholdEnabled = true;
 			m_ReceiveThresholdValue = value;
@@ -355,17 +746,216 @@ public class PureJavaSerialPort extends SerialPort {
 	synchronized public void enableReceiveTimeout(int value) throws UnsupportedCommOperationException {
 		if (value < 0)
 			throw new IllegalArgumentException("threshold" + value + " < 0 ");
-		if (value > 25500)
-			throw new UnsupportedCommOperationException("threshold" + value + " > 25500 ");
 
 		checkState();
 		synchronized (m_ThresholdTimeoutLock) {
 			m_ReceiveTimeoutEnabled = true;
 			m_ReceiveTimeoutValue = value;
+			m_ReceiveTimeoutNanos = value * 1000000L;
+			// VTIME can't go beyond 25.5 seconds, so longer timeouts are done with poll() deadlines
+			m_ReceiveTimeoutPrecise = value > 25500;
+			thresholdOrTimeoutChanged();
+		}
+	}
+
+	/**
+	 * Enables receive timeout with nanosecond resolution.
+	 * <p>
+	 * Unlike <code>enableReceiveTimeout()</code>, which is rounded up to tenths
+	 * of a second where the VTIME mechanism is used, this is always
+	 * implemented as a deadline with <code>ppoll()</code>/<code>poll()</code>
+	 * remaining-time computation, both in raw and non raw read mode, and has no
+	 * upper limit. The effective resolution is that of <code>ppoll()</code>,
+	 * or milliseconds where only <code>poll()</code>/<code>select()</code> is
+	 * available.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @param nanos
+	 *            Timeout value in nanoseconds
+	 */
+	synchronized public void enableReceiveTimeoutNanos(long nanos) {
+		if (nanos < 0)
+			throw new IllegalArgumentException("timeout " + nanos + " < 0 ");
+
+		checkState();
+		synchronized (m_ThresholdTimeoutLock) {
+			m_ReceiveTimeoutEnabled = true;
+			long ms = (nanos + 999999) / 1000000;
+			m_ReceiveTimeoutValue = ms > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) ms;
+			m_ReceiveTimeoutNanos = nanos;
+			m_ReceiveTimeoutPrecise = true;
+			thresholdOrTimeoutChanged();
+		}
+	}
+
+	/**
+	 * Returns the receive timeout in nanoseconds.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public long getReceiveTimeoutNanos() {
+		checkState();
+		return m_ReceiveTimeoutNanos;
+	}
+
+	/**
+	 * Enables the receive linger.
+	 * <p>
+	 * Normally a read returns as soon as the receive threshold, or a single
+	 * byte, has arrived, so at high baud rates a device that sends its
+	 * messages in a trickle is read a few bytes per system call, and VTIME,
+	 * the only inter-byte timer the driver offers, counts in tenths of a
+	 * second. With the linger enabled a read that has got what it asked for
+	 * goes on reading for as long as the next byte arrives within
+	 * <code>micros</code> microseconds, so it returns once the line has been
+	 * idle for that long or the buffer is full. The receive timeout, or the
+	 * deadline of <code>read(ByteBuffer, long)</code>, still limits the read
+	 * as a whole. Polling reads, with a threshold or timeout of zero, do not
+	 * linger.
+	 * <p>
+	 * The idle time is waited for with <code>ppoll()</code>/<code>poll()</code>,
+	 * so like the nanosecond timeouts this goes through the user space read
+	 * code in every read mode.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @param micros
+	 *            the linger in microseconds, 0 disables it
+	 */
+	synchronized public void enableReceiveLinger(int micros) {
+		if (micros < 0)
+			throw new IllegalArgumentException("linger " + micros + " < 0 ");
+		checkState();
+		synchronized (m_ThresholdTimeoutLock) {
+			m_ReceiveLingerNanos = micros * 1000L;
+			thresholdOrTimeoutChanged();
+		}
+	}
+
+	/**
+	 * Disables the receive linger.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public void disableReceiveLinger() {
+		enableReceiveLinger(0);
+	}
+
+	/**
+	 * Returns true if the receive linger is enabled.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public boolean isReceiveLingerEnabled() {
+		checkState();
+		return m_ReceiveLingerNanos > 0;
+	}
+
+	/**
+	 * Returns the receive linger in microseconds, 0 if it is disabled.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public int getReceiveLinger() {
+		checkState();
+		return (int) (m_ReceiveLingerNanos / 1000);
+	}
+
+	/**
+	 * Enables spin read mode.
+	 * <p>
+	 * A read that has to wait for data normally blocks in
+	 * <code>poll()</code>, and the wake up when the data arrives costs tens
+	 * of microseconds, which dominates the round trip time of a fast link.
+	 * In spin read mode the read first keeps trying a non blocking
+	 * <code>read()</code> for up to a spin budget and only then blocks. The
+	 * budget adapts to how long the reads have been waiting for their data:
+	 * it settles at about twice the usual wait if that is below
+	 * <code>maxMicros</code> and goes to zero, so that the reads simply block
+	 * again, if the data takes longer than that. See
+	 * {@link #getSpinBudgetNanos()}, {@link #getSpinReadCount()} and
+	 * {@link #getParkedReadCount()}.
+	 * <p>
+	 * Spinning costs a processor while it lasts so this is only worth it
+	 * for links where the answer to a request comes within microseconds. On
+	 * a single processor machine the spinning thread yields after every try
+	 * so that the sender can run. Polling reads do not spin. Like the
+	 * nanosecond timeouts this goes through the user space read code.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @param maxMicros
+	 *            the maximum spin budget in microseconds
+	 * @throws UnsupportedCommOperationException
+	 *             in buffered read mode, where the port is read by a thread of
+	 *             its own
+	 */
+	synchronized public void enableSpinRead(int maxMicros) throws UnsupportedCommOperationException {
+		if (maxMicros <= 0)
+			throw new IllegalArgumentException("spin " + maxMicros + " <= 0 ");
+		checkState();
+		if (BUFFERED_READ_MODE)
+			throw new UnsupportedCommOperationException("spin read not supported in buffered read mode");
+		synchronized (m_ThresholdTimeoutLock) {
+			m_SpinMaxNanos = maxMicros * 1000L;
+			m_SpinBudgetNanos = m_SpinMaxNanos;
+			thresholdOrTimeoutChanged();
+		}
+	}
+
+	/**
+	 * Disables spin read mode.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public void disableSpinRead() {
+		checkState();
+		synchronized (m_ThresholdTimeoutLock) {
+			m_SpinMaxNanos = 0;
 			thresholdOrTimeoutChanged();
 		}
 	}
 
+	/**
+	 * Returns true if spin read mode is enabled.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public boolean isSpinReadEnabled() {
+		checkState();
+		return m_SpinMaxNanos > 0;
+	}
+
+	/**
+	 * Returns the current spin budget of spin read mode in nanoseconds.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	public long getSpinBudgetNanos() {
+		return m_SpinBudgetNanos;
+	}
+
+	/**
+	 * Returns the number of reads in spin read mode that got their data
+	 * while spinning.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	public long getSpinReadCount() {
+		return m_SpinReads;
+	}
+
+	/**
+	 * Returns the number of reads in spin read mode that had to block in
+	 * <code>poll()</code> for their data, or gave up.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	public long getParkedReadCount() {
+		return m_ParkedReads;
+	}
+
 	@Override
 	synchronized public void enableReceiveFraming(int arg0) throws UnsupportedCommOperationException {
 		checkState();
@@ -373,16 +963,16 @@ public class PureJavaSerialPort extends SerialPort {
 	}
 
 	private void thresholdOrTimeoutChanged() { // only call if you hold the lock
-		m_PollingReadMode = (m_ReceiveTimeoutEnabled && m_ReceiveTimeoutValue == 0) || (m_ReceiveThresholdEnabled && m_ReceiveThresholdValue == 0);
-		m_ReceiveTimeoutVTIME = (m_ReceiveTimeoutValue + 99) / 100; // precalculate this so we don't need the division in read
+		m_PollingReadMode = (m_ReceiveTimeoutEnabled && m_ReceiveTimeoutNanos == 0) || (m_ReceiveThresholdEnabled && m_ReceiveThresholdValue == 0);
+		m_ReceiveTimeoutVTIME = Math.min((m_ReceiveTimeoutValue + 99) / 100, 255); // precalculate this so we don't need the division in read
 		m_TimeoutThresholdChanged = true;
 	}
 
 	@Override
 	synchronized public int getInputBufferSize() {
 		checkState();
-		// Not supported
-		return 0;
+		// Only supported in buffered read mode
+		return BUFFERED_READ_MODE ? m_InputBufferSize : 0;
 	}
 
 	@Override
@@ -413,7 +1003,7 @@ public class PureJavaSerialPort extends SerialPort {
 			else
 				m_Termios.c_iflag &= ~IXON;
 
-			checkReturnCode(tcsetattr(m_FD, TCSANOW, m_Termios));
+			checkReturnCode(updateTermios());
 
 			m_FlowControlMode = mode;
 		}
@@ -511,7 +1101,7 @@ public class PureJavaSerialPort extends SerialPort {
 				m_Termios.c_cflag = fc;
 				m_Termios.c_iflag = fi;
 
-				if (tcsetattr(m_FD, TCSANOW, m_Termios) != 0)
+				if (updateTermios() != 0)
 					throw new UnsupportedCommOperationException("tcsetattr failed");
 
 				// Even if termios(3) tells us that tcsetattr succeeds if any change
@@ -525,11 +1115,11 @@ public class PureJavaSerialPort extends SerialPort {
 				m_StopBits = stopBits;
 			} catch (UnsupportedCommOperationException e) {
 				m_Termios.set(prev);
-				checkReturnCode(tcsetattr(m_FD, TCSANOW, m_Termios));
+				checkReturnCode(updateTermios());
 				throw e;
 			} catch (IllegalStateException e) {
 				m_Termios.set(prev);
-				checkReturnCode(tcsetattr(m_FD, TCSANOW, m_Termios));
+				checkReturnCode(updateTermios());
 				if (e instanceof PureJavaIllegalStateException) {
 					throw e;
 				} else {
@@ -606,12 +1196,14 @@ public class PureJavaSerialPort extends SerialPort {
 		checkState();
 		if (m_OutputStream == null) {
 			m_OutputStream = new OutputStream() {
-				// im_ for inner class member
-				private byte[] im_Buffer = new byte[2048];
-
 				@Override
 				final public void write(int b) throws IOException {
 					checkState();
+					OutputCoalescer coalescer = m_Coalescer;
+					if (coalescer != null) {
+						coalescer.write(b);
+						return;
+					}
 					byte[] buf = { (byte) b };
 					write(buf, 0, 1);
 				}
@@ -622,28 +1214,7 @@ public class PureJavaSerialPort extends SerialPort {
 						throw new IllegalArgumentException();
 					if (offset < 0 || length < 0 || offset + length > buffer.length)
 						throw new IndexOutOfBoundsException("buffer.lengt " + buffer.length + " offset " + offset + " length " + length);
-					checkState();
-					while (length > 0) {
-						int n = buffer.length - offset;
-						if (n > im_Buffer.length)
-							n = im_Buffer.length;
-						if (n > length)
-							n = length;
-						if (offset > 0) {
-							System.arraycopy(buffer, offset, im_Buffer, 0, n);
-							n = jtermios.JTermios.write(m_FD, im_Buffer, n);
-						} else
-							n = jtermios.JTermios.write(m_FD, buffer, n);
-
-						if (n < 0) {
-							PureJavaSerialPort.this.close();
-							throw new IOException();
-						}
-
-						length -= n;
-						offset += n;
-					}
-					m_OutputEmptyNotified = false;
+					PureJavaSerialPort.this.write(ByteBuffer.wrap(buffer, offset, length));
 				}
 
 				@Override
@@ -659,6 +1230,13 @@ public class PureJavaSerialPort extends SerialPort {
 				@Override
 				final public void flush() throws IOException {
 					checkState();
+					OutputCoalescer coalescer = m_Coalescer;
+					if (coalescer != null)
+						coalescer.flush();
+					if (m_WriteTimeoutEnabled) {
+						drain(System.nanoTime() + m_WriteTimeoutNanos);
+						return;
+					}
 					if (tcdrain(m_FD) < 0) {
 						close();
 						throw new IOException();
@@ -683,38 +1261,14 @@ public class PureJavaSerialPort extends SerialPort {
 			m_InputStream = new InputStream() {
 				// im_ for inner class members
 				private int[] im_Available = { 0 };
-				private byte[] im_Buffer = new byte[2048];
-				// this stuff is just cached/precomputed stuff to make read() faster
-				private int im_VTIME = -1;
-				private int im_VMIN = -1;
-				private final jtermios.Pollfd[] im_ReadPollFD = new Pollfd[] { new Pollfd(), new Pollfd() };
-				private byte[] im_Nudge;
-				private FDSet im_ReadFDSet;
-				private TimeVal im_ReadTimeVal;
-				private int im_PollFDn;
-				private boolean im_ReceiveTimeoutEnabled;
-				private int im_ReceiveTimeoutValue;
-				private boolean im_ReceiveThresholdEnabled;
-				private int im_ReceiveThresholdValue;
-				private boolean im_PollingReadMode;
-				private int im_ReceiveTimeoutVTIME;
-
-				{ // initialized block instead of construct in anonymous class
-					im_ReadFDSet = newFDSet();
-					im_ReadTimeVal = new TimeVal();
-					im_ReadPollFD[0].fd = m_FD;
-					im_ReadPollFD[0].events = POLLIN;
-					im_ReadPollFD[1].fd = m_PipeRdFD;
-					im_ReadPollFD[1].events = POLLIN;
-					im_PollFDn = m_HaveNudgePipe ? 2 : 1;
-					im_Nudge = new byte[1];
-				}
 
 				@Override
 				final public int available() throws IOException {
 					if (m_FD < 0)
 						return 0;
 					checkState();
+					if (BUFFERED_READ_MODE)
+						return m_InputRing.available();
 					if (ioctl(m_FD, FIONREAD, im_Available) < 0) {
 						PureJavaSerialPort.this.close();
 						System.out.println(Native.getLastError());
@@ -736,208 +1290,15 @@ public class PureJavaSerialPort extends SerialPort {
 					super.close();
 				}
 
-				private void throwStreamClosedException() throws IOException {
-					throw new IOException("Stream Closed");
-				}
-
 				@Override
 				final public int read(byte[] buffer, int offset, int length) throws IOException {
-
 					if (buffer == null)
 						throw new IllegalArgumentException("buffer null");
 					if (length == 0)
 						return 0;
 					if (offset < 0 || length < 0 || offset + length > buffer.length)
 						throw new IndexOutOfBoundsException("buffer.length " + buffer.length + " offset " + offset + " length " + length);
-					if (m_FD < 0)
-						throwStreamClosedException();
-
-					if (RAW_READ_MODE) {
-						if (m_TimeoutThresholdChanged) { // does not need the lock if we just check the value
-							synchronized (m_ThresholdTimeoutLock) {
-								int vtime = m_ReceiveTimeoutEnabled ? m_ReceiveTimeoutVTIME : 0;
-								int vmin = m_ReceiveThresholdEnabled ? m_ReceiveThresholdValue : 1;
-								synchronized (m_Termios) {
-									m_Termios.c_cc[VTIME] = (byte) vtime;
-									m_Termios.c_cc[VMIN] = (byte) vmin;
-									checkReturnCode(tcsetattr(m_FD, TCSANOW, m_Termios));
-								}
-								m_TimeoutThresholdChanged = false;
-							}
-						}
-						int bytesRead;
-						if (offset > 0) {
-							if (length < im_Buffer.length)
-								bytesRead = jtermios.JTermios.read(m_FD, im_Buffer, length);
-							else
-								bytesRead = jtermios.JTermios.read(m_FD, im_Buffer, im_Buffer.length);
-							if (bytesRead > 0)
-								System.arraycopy(im_Buffer, 0, buffer, offset, bytesRead);
-						} else
-							bytesRead = jtermios.JTermios.read(m_FD, buffer, length);
-						m_DataAvailableNotified = false;
-						return bytesRead;
-
-					} // End of raw read mode code
-
-					if (m_TimeoutThresholdChanged) { // does not need the lock if we just check the alue
-						synchronized (m_ThresholdTimeoutLock) {
-							// capture these here under guard so that we get a coherent picture of the settings
-							im_ReceiveTimeoutEnabled = m_ReceiveTimeoutEnabled;
-							im_ReceiveTimeoutValue = m_ReceiveTimeoutValue;
-							im_ReceiveThresholdEnabled = m_ReceiveThresholdEnabled;
-							im_ReceiveThresholdValue = m_ReceiveThresholdValue;
-							im_PollingReadMode = m_PollingReadMode;
-							im_ReceiveTimeoutVTIME = m_ReceiveTimeoutVTIME;
-							m_TimeoutThresholdChanged = false;
-						}
-					}
-
-					int bytesLeft = length;
-					int bytesReceived = 0;
-					int minBytesRequired;
-
-					// Note for optimal performance: message length == receive threshold == read length <= 255
-					// the best case execution path is marked with BEST below
-
-					while (true) {
-						// loops++;
-						int vmin;
-						int vtime;
-						if (im_PollingReadMode) {
-							minBytesRequired = 0;
-							vmin = 0;
-							vtime = 0;
-						} else {
-							if (im_ReceiveThresholdEnabled)
-								minBytesRequired = im_ReceiveThresholdValue; // BEST
-							else
-								minBytesRequired = 1;
-							if (minBytesRequired > bytesLeft) // in BEST case 'if' not taken
-								minBytesRequired = bytesLeft;
-							if (minBytesRequired <= 255)
-								vmin = minBytesRequired; // BEST case
-							else
-								vmin = 255;
-
-							// FIXME someone might change m_ReceiveTimeoutEnabled
-							if (im_ReceiveTimeoutEnabled)
-								vtime = im_ReceiveTimeoutVTIME; // BEST case
-							else
-								vtime = 0;
-						}
-						if (vmin != im_VMIN || vtime != im_VTIME) { // in BEST case 'if' not taken more than once for given InputStream instance
-							// ioctls++;
-							im_VMIN = vmin;
-							im_VTIME = vtime;
-							// This needs to be guarded with m_Termios so that these thing don't change on us
-							synchronized (m_Termios) {
-								m_Termios.c_cc[VTIME] = (byte) im_VTIME;
-								m_Termios.c_cc[VMIN] = (byte) im_VMIN;
-								checkReturnCode(tcsetattr(m_FD, TCSANOW, m_Termios));
-							}
-						}
-
-						// Now wait for data to be available, except in raw read mode
-						// and polling read modes. Following looks a bit longish
-						// but  there is actually not that much code to be executed
-						boolean dataAvailable = false;
-						boolean timedout = false;
-						if (!im_PollingReadMode) {
-							int n;
-							// long T0 = System.nanoTime();
-							// do a select()/poll(), just in case this read was
-							// called when no data is available
-							// so that we will not hang for ever in a read
-							int timeoutValue = im_ReceiveTimeoutEnabled ? im_ReceiveTimeoutValue : Integer.MAX_VALUE;
-							if (USE_POLL) { // BEST case in Linux but not on
-											// Windows or Mac OS X
-								n = poll(im_ReadPollFD, im_PollFDn, timeoutValue);
-								if (n < 0 || m_FD < 0) // the port closed while we were blocking in poll
-									throwStreamClosedException();
-
-								if ((im_ReadPollFD[1].revents & POLLIN) != 0)
-									jtermios.JTermios.read(m_PipeRdFD, im_Nudge, 1);
-								int re = im_ReadPollFD[0].revents;
-								if ((re & POLLNVAL) != 0)
-									throwStreamClosedException();
-								dataAvailable = (re & POLLIN) != 0;
-
-							} else { // this is a bit slower but then again it is unlikely
-								// this gets executed in a low horsepower system
-								FD_ZERO(im_ReadFDSet);
-								FD_SET(m_FD, im_ReadFDSet);
-								int maxFD = m_FD;
-								if (m_HaveNudgePipe) {
-									FD_SET(m_PipeRdFD, im_ReadFDSet);
-									if (m_PipeRdFD > maxFD)
-										maxFD = m_PipeRdFD;
-								}
-								if (timeoutValue >= 1000) {
-									int t = timeoutValue / 1000;
-									im_ReadTimeVal.tv_sec = t;
-									im_ReadTimeVal.tv_usec = (timeoutValue - t * 1000) * 1000;
-								} else {
-									im_ReadTimeVal.tv_sec = 0;
-									im_ReadTimeVal.tv_usec = timeoutValue * 1000;
-								}
-								n = select(maxFD + 1, im_ReadFDSet, null, null, im_ReadTimeVal);
-								if (m_FD < 0) // the port closed while we were
-									// blocking in select
-									throwStreamClosedException();
-								if (n < 0)
-									throw new IOException(String.format("select() < 0 , errno()=%d",errno()));
-								dataAvailable = FD_ISSET(m_FD, im_ReadFDSet);
-							}
-							if (n == 0 && m_ReceiveTimeoutEnabled)
-								timedout = true;
-						}
-
-						if (timedout)
-							break;
-
-						// At this point data is either available or we take our
-						// chances in raw mode or this polling read which can't block
-						int bytesRead = 0;
-						if (dataAvailable || im_PollingReadMode) {
-							if (offset > 0) {
-								if (bytesLeft < im_Buffer.length)
-									bytesRead = jtermios.JTermios.read(m_FD, im_Buffer, bytesLeft);
-								else
-									bytesRead = jtermios.JTermios.read(m_FD, im_Buffer, im_Buffer.length);
-								if (bytesRead > 0)
-									System.arraycopy(im_Buffer, 0, buffer, offset, bytesRead);
-							} else
-								// this the BEST case execution path
-								bytesRead = jtermios.JTermios.read(m_FD, buffer, bytesLeft);
-							// readtime += System.nanoTime() - T0;
-							if (bytesRead == 0)
-								timedout = true;
-						}
-
-						// Now we have read data and try to return as quickly as
-						// possibly or we have timed out.
-
-						if (bytesRead < 0) // an error occured
-							throw new IOException(String.format("read() < 0 , errno()=%d",errno()));
-
-						bytesReceived += bytesRead;
-
-						if (bytesReceived >= minBytesRequired) // BEST case this if is taken and we  exit
-							break; // we have read the minimum required and will return that
-
-						if (timedout)
-							break;
-
-						// Ok, looks like we are in for an other loop, so update
-						// the offset
-						// and loop for some more
-						offset += bytesRead;
-						bytesLeft -= bytesRead;
-					}
-
-					m_DataAvailableNotified = false;
-					return bytesReceived;
+					return PureJavaSerialPort.this.read(ByteBuffer.wrap(buffer, offset, length));
 				}
 
 			};
@@ -945,29 +1306,1195 @@ public class PureJavaSerialPort extends SerialPort {
 		return m_InputStream;
 	}
 
-	@Override
-	synchronized public int getReceiveFramingByte() {
+	/**
+	 * Returns a NIO channel for reading from and writing to this port.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @see SerialPortChannel
+	 */
+	synchronized public SerialPortChannel getChannel() {
 		checkState();
-		// Not supported
-		return 0;
+		if (m_Channel == null)
+			m_Channel = new SerialPortChannel(this);
+		return m_Channel;
 	}
 
-	@Override
-	synchronized public int getReceiveThreshold() {
+	/**
+	 * Writes the remaining bytes of the buffer to this port.
+	 * <p>
+	 * This blocks until all of <code>buffer.remaining()</code> bytes have
+	 * been handed over to the operating system, exactly like
+	 * <code>getOutputStream().write(...)</code>, and advances the buffer
+	 * position accordingly. With a direct buffer the bytes go straight from
+	 * the buffer to the write() system call without an intermediate copy.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public int write(ByteBuffer buffer) throws IOException {
+		if (buffer == null)
+			throw new IllegalArgumentException();
 		checkState();
-		return m_ReceiveThresholdValue;
+		OutputCoalescer coalescer = m_Coalescer;
+		if (coalescer != null)
+			return (int) coalescer.write(new ByteBuffer[] { buffer }, 0, 1);
+		WriteCombiner combiner = m_Combiner;
+		if (combiner != null)
+			return (int) combiner.write(new ByteBuffer[] { buffer }, 0, 1);
+		return writeFully(buffer);
 	}
 
-	@Override
-	synchronized public int getReceiveTimeout() {
+	/* package */int writeFully(ByteBuffer buffer) throws IOException {
 		checkState();
-		return m_ReceiveTimeoutValue;
+		int length = buffer.remaining();
+		if (m_WriteTimeoutEnabled) {
+			int n = writeUntil(buffer, System.nanoTime() + m_WriteTimeoutNanos);
+			if (buffer.hasRemaining())
+				throw writeTimedOut(n, length);
+			return length;
+		}
+		while (buffer.hasRemaining()) {
+			int n = jtermios.JTermios.write(m_FD, buffer);
+			if (n < 0) {
+				if (errno() == EAGAIN) {
+					waitForWritable(m_FD, -1);
+					continue;
+				}
+				close();
+				throw new IOException();
+			}
+		}
+		dataWritten();
+		return length;
 	}
 
-	@Override
-	synchronized public boolean isReceiveFramingEnabled() {
+	/**
+	 * Writes the remaining bytes of the buffer to this port, giving up at the
+	 * deadline.
+	 * <p>
+	 * Like {@link #write(ByteBuffer)} but this returns when
+	 * <code>System.nanoTime()</code> reaches <code>deadlineNanos</code> even
+	 * if not all of the bytes could be handed over to the operating system,
+	 * for example because the device holds the port back with CTS. With
+	 * output coalescing enabled the bytes still buffered are written first,
+	 * within the same deadline, and none of <code>buffer</code> is written if
+	 * they don't make it. The wait
+	 * is done on a non blocking descriptor with
+	 * <code>ppoll()</code>/<code>poll()</code>, see
+	 * {@link #enableWriteTimeout(int)}.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @return the number of bytes written, the buffer position has been
+	 *         advanced by as much
+	 * @throws IOException
+	 *             also if the port can't be opened a second time for the non
+	 *             blocking writes
+	 * @throws IllegalStateException
+	 *             if concurrent writes are enabled and output coalescing is
+	 *             not, the queued frames ahead of this one could not be held
+	 *             to the deadline
+	 */
+	public int write(ByteBuffer buffer, long deadlineNanos) throws IOException {
+		if (buffer == null)
+			throw new IllegalArgumentException();
 		checkState();
-		// Not supported
+		OutputCoalescer coalescer = m_Coalescer;
+		if (coalescer != null)
+			return coalescer.writeUntil(buffer, deadlineNanos);
+		if (m_Combiner != null)
+			throw new IllegalStateException("write with a deadline while concurrent writes are enabled");
+		return writeUntil(buffer, deadlineNanos);
+	}
+
+	/* package */int writeUntil(ByteBuffer buffer, long deadline) throws IOException {
+		int fd = openWriteFD();
+		int written = 0;
+		while (buffer.hasRemaining()) {
+			int n = jtermios.JTermios.write(fd, buffer);
+			if (n < 0) {
+				if (errno() != EAGAIN) {
+					close();
+					throw new IOException();
+				}
+				long timeout = deadline - System.nanoTime();
+				if (timeout <= 0 || waitForWritable(fd, timeout) == 0)
+					break;
+				continue;
+			}
+			written += n;
+		}
+		if (written > 0)
+			dataWritten();
+		return written;
+	}
+
+	private static InterruptedIOException writeTimedOut(long written, long length) {
+		InterruptedIOException e = new InterruptedIOException("write timed out after " + written + " of " + length + " bytes");
+		e.bytesTransferred = (int) written;
+		return e;
+	}
+
+	// returns the non blocking descriptor for timed writes, opening it if
+	// need be
+	private int openWriteFD() throws IOException {
+		int fd = m_WrFD;
+		if (fd >= 0)
+			return fd;
+		try {
+			return openWriteFDLocked();
+		} catch (UnsupportedCommOperationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private synchronized int openWriteFDLocked() throws UnsupportedCommOperationException {
+		checkState();
+		if (m_WrFD < 0) {
+			if (OPTIMISTIC_READ_MODE)
+				m_WrFD = m_FD;
+			else {
+				// O_NONBLOCK belongs to the open file, so we need one of our own
+				// to leave the blocking mode of m_FD alone
+				int fd = open(getName(), O_RDWR | O_NOCTTY | O_NONBLOCK);
+				if (fd < 0)
+					throw new UnsupportedCommOperationException("can't open " + getName() + " for non blocking writes, errno " + errno());
+				m_WrFD = fd;
+			}
+		}
+		return m_WrFD;
+	}
+
+	/**
+	 * Enables the write timeout.
+	 * <p>
+	 * Normally a write blocks until all of the bytes have been handed over to
+	 * the operating system, which is forever if the device holds the port
+	 * back with CTS under <code>FLOWCONTROL_RTSCTS_OUT</code>. With the write
+	 * timeout enabled the writes go to a non blocking descriptor and wait for
+	 * <code>POLLOUT</code> at most <code>value</code> milliseconds per call,
+	 * after which they throw an {@link InterruptedIOException} whose
+	 * <code>bytesTransferred</code> tells how many bytes were written. A
+	 * <code>flush()</code> of the output stream likewise gives up when the
+	 * output has not drained within the timeout. To get partial counts
+	 * instead use {@link #write(ByteBuffer, long)}.
+	 * <p>
+	 * Unless the port is in optimistic read mode this opens the port a second
+	 * time for the non blocking writes.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @param value
+	 *            the timeout in milliseconds
+	 * @throws UnsupportedCommOperationException
+	 *             if the port can't be opened a second time
+	 */
+	synchronized public void enableWriteTimeout(int value) throws UnsupportedCommOperationException {
+		if (value < 0)
+			throw new IllegalArgumentException("timeout " + value + " < 0 ");
+		checkState();
+		openWriteFDLocked();
+		m_WriteTimeoutNanos = value * 1000000L;
+		m_WriteTimeoutEnabled = true;
+	}
+
+	/**
+	 * Disables the write timeout, see {@link #enableWriteTimeout(int)}.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public void disableWriteTimeout() {
+		checkState();
+		m_WriteTimeoutEnabled = false;
+	}
+
+	/**
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public boolean isWriteTimeoutEnabled() {
+		checkState();
+		return m_WriteTimeoutEnabled;
+	}
+
+	/**
+	 * Returns the write timeout in milliseconds.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public int getWriteTimeout() {
+		checkState();
+		return (int) (m_WriteTimeoutNanos / 1000000);
+	}
+
+	/**
+	 * Enables concurrent writes.
+	 * <p>
+	 * Normally the output stream and the write methods of a port are meant
+	 * to be used by one thread at a time. With concurrent writes enabled any
+	 * number of threads can write to the port at once and each
+	 * <code>write()</code> call, a frame, goes out in one piece, never
+	 * interleaved with the bytes of another call. The calls are queued
+	 * without locking and the frames queued by the time the port is ready to
+	 * take more are written together with a single system call, of up to
+	 * <code>purejavacomm.writebatch</code> (default 4096) bytes, by one of the
+	 * writing threads. So under contention this takes far fewer system calls
+	 * and context switches than writing from each thread in turn. A call
+	 * still blocks until its frame has been handed over to the operating
+	 * system.
+	 * <p>
+	 * This covers the output stream, {@link #write(ByteBuffer)} and the
+	 * gathering writes, but not {@link #writeAsync(ByteBuffer)}. With a
+	 * write timeout a call may time out because of the frames written ahead
+	 * of it. {@link #write(ByteBuffer, long)} throws an
+	 * <code>IllegalStateException</code> while this is enabled.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public void enableConcurrentWrites() {
+		checkState();
+		if (m_Combiner == null)
+			m_Combiner = new WriteCombiner(this);
+	}
+
+	/**
+	 * Disables concurrent writes, frames already queued are still written
+	 * but writes started after this may overtake them.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public void disableConcurrentWrites() {
+		checkState();
+		m_Combiner = null;
+	}
+
+	/**
+	 * Returns true if concurrent writes are enabled.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public boolean isConcurrentWritesEnabled() {
+		checkState();
+		return m_Combiner != null;
+	}
+
+	/**
+	 * Enables output coalescing.
+	 * <p>
+	 * Code that writes a byte at a time with
+	 * <code>getOutputStream().write(int)</code> normally makes a system call
+	 * per byte. With coalescing enabled writes that fit go into a buffer of
+	 * <code>size</code> bytes instead, which is written out with a single
+	 * system call when it is full, when the output stream is flushed, or at
+	 * the latest <code>lingerMicros</code> microseconds after the first byte
+	 * went into it, much like Nagle's algorithm for TCP. Larger writes are
+	 * written together with what is buffered at once. The linger time is
+	 * kept by a timer thread shared by all ports, its accuracy is that of
+	 * <code>LockSupport.parkNanos()</code> which on Linux is some 50
+	 * microseconds.
+	 * <p>
+	 * This covers the output stream, {@link #write(ByteBuffer)},
+	 * {@link #write(ByteBuffer, long)} and the gathering writes, and makes
+	 * them safe to use from several threads at once, so concurrent writes are
+	 * not used while it is enabled. A write with a deadline first writes out
+	 * what is buffered, both against the deadline. Bytes still buffered when
+	 * the port is closed are written out within the write timeout, or 2
+	 * seconds without one, what does not make it is dropped and logged. If
+	 * the timer fails to write the buffer the <code>IOException</code> is
+	 * thrown by the next write or flush.
+	 * <p>
+	 * Unless the port is in optimistic read mode this opens the port a second
+	 * time for the non blocking writes of the timer.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @param size
+	 *            the size of the buffer in bytes
+	 * @param lingerMicros
+	 *            how long bytes may wait in the buffer in microseconds
+	 * @throws UnsupportedCommOperationException
+	 *             if the port can't be opened a second time
+	 * @throws IOException
+	 *             if the bytes buffered with the previous settings can't be
+	 *             written
+	 */
+	public void enableOutputCoalescing(int size, int lingerMicros) throws UnsupportedCommOperationException, IOException {
+		if (size <= 0)
+			throw new IllegalArgumentException("size " + size + " <= 0");
+		if (lingerMicros < 0)
+			throw new IllegalArgumentException("linger " + lingerMicros + " < 0");
+		OutputCoalescer previous;
+		synchronized (this) {
+			checkState();
+			openWriteFDLocked();
+			previous = m_Coalescer;
+			m_Coalescer = new OutputCoalescer(this, size, lingerMicros);
+		}
+		if (previous != null)
+			previous.close();
+	}
+
+	/**
+	 * Disables output coalescing, writing out what is buffered.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @throws IOException
+	 *             if the buffered bytes can't be written
+	 */
+	public void disableOutputCoalescing() throws IOException {
+		OutputCoalescer previous;
+		synchronized (this) {
+			checkState();
+			previous = m_Coalescer;
+			m_Coalescer = null;
+		}
+		if (previous != null)
+			previous.close();
+	}
+
+	/**
+	 * Returns true if output coalescing is enabled.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	synchronized public boolean isOutputCoalescingEnabled() {
+		checkState();
+		return m_Coalescer != null;
+	}
+
+	/**
+	 * Writes the remaining bytes of <code>length</code> buffers starting at
+	 * <code>buffers[offset]</code> to this port.
+	 * <p>
+	 * The buffers are gathered with a single writev() system call where the
+	 * backend supports it (Linux), so for example a frame consisting of a
+	 * header, a payload and a CRC reaches the driver in one go without
+	 * concatenating the parts first. Like {@link #write(ByteBuffer)} this
+	 * blocks until all the bytes have been handed over to the operating system
+	 * and advances the buffer positions accordingly.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+		if (buffers == null)
+			throw new IllegalArgumentException();
+		if (offset < 0 || length < 0 || offset > buffers.length - length)
+			throw new IndexOutOfBoundsException("buffers.length " + buffers.length + " offset " + offset + " length " + length);
+		checkState();
+		OutputCoalescer coalescer = m_Coalescer;
+		if (coalescer != null)
+			return coalescer.write(buffers, offset, length);
+		WriteCombiner combiner = m_Combiner;
+		if (combiner != null)
+			return combiner.write(buffers, offset, length);
+		return writeFully(buffers, offset, length);
+	}
+
+	/* package */long writeFully(ByteBuffer[] buffers, int offset, int length) throws IOException {
+		checkState();
+		long total = 0;
+		for (int i = offset; i < offset + length; i++)
+			total += buffers[i].remaining();
+		long left = total;
+		boolean timed = m_WriteTimeoutEnabled;
+		int fd = timed ? openWriteFD() : m_FD;
+		long deadline = System.nanoTime() + m_WriteTimeoutNanos;
+		while (left > 0) {
+			// skip the buffers that a partial write already emptied
+			while (!buffers[offset].hasRemaining()) {
+				offset++;
+				length--;
+			}
+			int n = jtermios.JTermios.writev(fd, buffers, offset, length);
+			if (n < 0) {
+				if (errno() == EAGAIN) {
+					long timeout = -1;
+					if (timed) {
+						timeout = deadline - System.nanoTime();
+						if (timeout <= 0 || waitForWritable(fd, timeout) == 0) {
+							if (left < total)
+								dataWritten();
+							throw writeTimedOut(total - left, total);
+						}
+					} else
+						waitForWritable(fd, timeout);
+					continue;
+				}
+				close();
+				throw new IOException();
+			}
+			left -= n;
+		}
+		dataWritten();
+		return total;
+	}
+
+	/**
+	 * Writes the remaining bytes of all the buffers to this port, see
+	 * {@link #write(ByteBuffer[], int, int)}.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	public long write(ByteBuffer[] buffers) throws IOException {
+		return write(buffers, 0, buffers.length);
+	}
+
+	/**
+	 * Writes all the parts to this port with a single system call where
+	 * possible, see {@link #write(ByteBuffer[], int, int)}.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	public long write(byte[]... parts) throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			buffers[i] = ByteBuffer.wrap(parts[i]);
+		return write(buffers, 0, buffers.length);
+	}
+
+	/**
+	 * Queues the remaining bytes of the buffer for writing in the background
+	 * and returns at once, see {@link #writeAsync(ByteBuffer, boolean, boolean)}.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	public CompletableFuture<Integer> writeAsync(ByteBuffer buffer) throws IOException {
+		return writeAsync(buffer, false, false);
+	}
+
+	/**
+	 * Queues the remaining bytes of the buffer for writing in the background
+	 * and returns at once.
+	 * <p>
+	 * The bytes are written by a {@link SerialWriter} thread, so a slow port
+	 * does not hold up the caller. The returned future completes with the
+	 * number of bytes once they have all been handed over to the operating
+	 * system, or if <code>drained</code> is true once they have also been
+	 * transmitted, which replaces a blocking <code>flush()</code>. If the port
+	 * is closed first it completes exceptionally with an
+	 * {@link java.nio.channels.AsynchronousCloseException}. The buffer
+	 * position is advanced as the bytes are written and the buffer must not be
+	 * modified until the future has completed.
+	 * <p>
+	 * Urgent writes go ahead of the bulk writes that are still queued, see
+	 * {@link SerialWriter} for how far. The order of writes within each lane
+	 * is kept, their order relative to the blocking write methods is not
+	 * defined.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @throws IOException
+	 *             if the writer could not be set up for this port
+	 */
+	public CompletableFuture<Integer> writeAsync(ByteBuffer buffer, boolean urgent, boolean drained) throws IOException {
+		if (buffer == null)
+			throw new IllegalArgumentException();
+		synchronized (this) {
+			checkState();
+			if (m_WriterQueue == null) {
+				if (m_Writer == null)
+					m_Writer = new SerialWriter(getName() + " writer", true);
+				m_WriterQueue = m_Writer.add(this, getName(), m_FD);
+			}
+			return m_Writer.submit(m_WriterQueue, buffer, urgent, drained);
+		}
+	}
+
+	/**
+	 * Makes {@link #writeAsync(ByteBuffer, boolean, boolean)} use a writer
+	 * thread shared with other ports instead of one of this port's own. This
+	 * must be called before the first asynchronous write.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @throws IllegalStateException
+	 *             if this port has already written asynchronously
+	 */
+	synchronized public void setAsyncWriter(SerialWriter writer) {
+		checkState();
+		if (m_WriterQueue != null)
+			throw new IllegalStateException(getName() + " is already writing asynchronously");
+		m_Writer = writer;
+	}
+
+	/**
+	 * Reads bytes from this port into the buffer.
+	 * <p>
+	 * Reads up to <code>buffer.remaining()</code> bytes into the buffer
+	 * starting at its position and advances the position by the number of
+	 * bytes read. The receive threshold and timeout are honoured exactly as
+	 * in <code>getInputStream().read(...)</code>, with which this shares the
+	 * read state, so the two can be mixed. With a direct buffer the bytes go
+	 * straight from the read() system call to the buffer without an
+	 * intermediate copy.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @return the number of bytes read, 0 if the read timed out
+	 */
+	public int read(ByteBuffer buffer) throws IOException {
+		return read(buffer, false, 0);
+	}
+
+	/**
+	 * Reads bytes from this port into the buffer, giving up at the deadline.
+	 * <p>
+	 * Like <code>read(ByteBuffer)</code> but instead of the receive timeout
+	 * the read returns when <code>System.nanoTime()</code> reaches
+	 * <code>deadlineNanos</code>, so a protocol can spread a single budget
+	 * over several reads without accumulating rounding errors. The receive
+	 * threshold is honoured as usual. The wait is done with
+	 * <code>ppoll()</code>/<code>poll()</code> in both raw and non raw read
+	 * mode.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 * 
+	 * @return the number of bytes read, 0 if the deadline passed before any
+	 *         data arrived
+	 */
+	public int read(ByteBuffer buffer, long deadlineNanos) throws IOException {
+		return read(buffer, true, deadlineNanos);
+	}
+
+	/**
+	 * Reads bytes from this port into the array, giving up at the deadline,
+	 * see <code>read(ByteBuffer, long)</code>.
+	 * <p>
+	 * This is not part of the JavaComm API.
+	 */
+	public int read(byte[] buffer, int offset, int length, long deadlineNanos) throws IOException {
+		if (buffer == null)
+			throw new IllegalArgumentException("buffer null");
+		return read(ByteBuffer.wrap(buffer, offset, length), true, deadlineNanos);
+	}
+
+	private int read(ByteBuffer buffer, boolean haveDeadline, long deadline) throws IOException {
+		if (buffer == null)
+			throw new IllegalArgumentException("buffer null");
+		if (!buffer.hasRemaining())
+			return 0;
+		if (m_FD < 0)
+			throwStreamClosedException();
+
+		if (m_TimeoutThresholdChanged) { // does not need the lock if we just check the alue
+			synchronized (m_ThresholdTimeoutLock) {
+				// capture these here under guard so that we get a coherent picture of the settings
+				m_RdReceiveTimeoutEnabled = m_ReceiveTimeoutEnabled;
+				m_RdReceiveTimeoutNanos = m_ReceiveTimeoutNanos;
+				m_RdReceiveTimeoutPrecise = m_ReceiveTimeoutPrecise;
+				m_RdReceiveThresholdEnabled = m_ReceiveThresholdEnabled;
+				m_RdReceiveThresholdValue = m_ReceiveThresholdValue;
+				m_RdReceiveLingerNanos = m_ReceiveLingerNanos;
+				m_RdSpinMaxNanos = m_SpinMaxNanos;
+				m_RdPollingReadMode = m_PollingReadMode;
+				m_RdReceiveTimeoutVTIME = m_ReceiveTimeoutVTIME;
+				m_TimeoutThresholdChanged = false;
+			}
+		}
+
+		if (BUFFERED_READ_MODE)
+			return readBuffered(buffer, haveDeadline, deadline);
+
+		// deadlines, nanosecond timeouts, the linger and spinning can't be
+		// expressed with VTIME so they always go through the user space code,
+		// as do thresholds above what VMIN can hold in raw read mode because
+		// a tty read() returns at most 64 bytes at a time, so there a short
+		// read does not tell us that VTIME ran out
+		if (haveDeadline || (m_RdReceiveTimeoutEnabled && m_RdReceiveTimeoutPrecise) || m_RdReceiveLingerNanos > 0 || m_RdSpinMaxNanos > 0 || OPTIMISTIC_READ_MODE || POLL_READ_MODE || (RAW_READ_MODE && m_RdReceiveThresholdEnabled && m_RdReceiveThresholdValue > 255))
+			return readUserSpace(buffer, haveDeadline, deadline);
+
+		if (RAW_READ_MODE) {
+			int vmin = m_RdReceiveThresholdEnabled ? m_RdReceiveThresholdValue : 1;
+			setReadTermios(vmin, m_RdReceiveTimeoutEnabled ? m_RdReceiveTimeoutVTIME : 0);
+			int bytesReceived = jtermios.JTermios.read(m_FD, buffer);
+			dataRead();
+			return bytesReceived;
+
+		} // End of raw read mode code
+
+		int bytesLeft = buffer.remaining();
+		int bytesReceived = 0;
+		int minBytesRequired;
+
+		// Note for optimal performance: message length == receive threshold == read length <= 255
+		// the best case execution path is marked with BEST below
+
+		while (true) {
+			// loops++;
+			int vmin;
+			int vtime;
+			if (m_RdPollingReadMode) {
+				minBytesRequired = 0;
+				vmin = 0;
+				vtime = 0;
+			} else {
+				if (m_RdReceiveThresholdEnabled)
+					minBytesRequired = m_RdReceiveThresholdValue; // BEST
+				else
+					minBytesRequired = 1;
+				if (minBytesRequired > bytesLeft + bytesReceived) // in BEST case 'if' not taken
+					minBytesRequired = bytesLeft + bytesReceived;
+				// only ask the kernel for what is still missing, otherwise the
+				// last read() of a threshold above 255 would wait for a full VMIN
+				int needed = minBytesRequired - bytesReceived;
+				if (needed <= 255)
+					vmin = needed; // BEST case
+				else
+					vmin = 255;
+
+				// FIXME someone might change m_ReceiveTimeoutEnabled
+				if (m_RdReceiveTimeoutEnabled)
+					vtime = m_RdReceiveTimeoutVTIME; // BEST case
+				else
+					vtime = 0;
+			}
+			setReadTermios(vmin, vtime); // in BEST case this does nothing after the first time for given port
+
+			// Now wait for data to be available, except in raw read mode
+			// and polling read modes.
+			boolean dataAvailable = false;
+			boolean timedout = false;
+			if (!m_RdPollingReadMode) {
+				// long T0 = System.nanoTime();
+				// do a select()/poll(), just in case this read was
+				// called when no data is available
+				// so that we will not hang for ever in a read
+				int n = waitForData(m_RdReceiveTimeoutEnabled ? m_RdReceiveTimeoutNanos : -1);
+				dataAvailable = n > 0;
+				if (n == 0 && m_ReceiveTimeoutEnabled)
+					timedout = true;
+			}
+
+			if (timedout)
+				break;
+
+			// At this point data is either available or we take our
+			// chances in raw mode or this polling read which can't block
+			int bytesRead = 0;
+			if (dataAvailable || m_RdPollingReadMode) {
+				// this the BEST case execution path, the buffer position
+				// takes care of the offset
+				bytesRead = jtermios.JTermios.read(m_FD, buffer);
+				// readtime += System.nanoTime() - T0;
+				if (bytesRead == 0)
+					timedout = true;
+			}
+
+			// Now we have read data and try to return as quickly as
+			// possibly or we have timed out.
+
+			if (bytesRead < 0) // an error occured
+				throw new IOException(String.format("read() < 0 , errno()=%d", errno()));
+
+			bytesReceived += bytesRead;
+
+			if (bytesReceived >= minBytesRequired) // BEST case this if is taken and we  exit
+				break; // we have read the minimum required and will return that
+
+			if (timedout)
+				break;
+
+			// Ok, looks like we are in for an other loop, so update
+			// the bytes left and loop for some more
+			bytesLeft -= bytesRead;
+		}
+
+		dataRead();
+		return bytesReceived;
+	}
+
+	/**
+	 * Sets VMIN and VTIME for the read unless they already have those values.
+	 */
+	private void setReadTermios(int vmin, int vtime) throws IOException {
+		if (vmin != m_RdVMIN || vtime != m_RdVTIME) {
+			// ioctls++;
+			m_RdVMIN = vmin;
+			m_RdVTIME = vtime;
+			// This needs to be guarded with m_Termios so that these thing don't change on us
+			synchronized (m_Termios) {
+				m_Termios.c_cc[VTIME] = (byte) m_RdVTIME;
+				m_Termios.c_cc[VMIN] = (byte) m_RdVMIN;
+				checkReturnCode(updateTermios());
+			}
+		}
+	}
+
+	/**
+	 * Waits for data to become available with select()/poll() on the port and
+	 * on the nudge pipe so that a close() or notify call can wake us up.
+	 * 
+	 * @param timeoutNanos
+	 *            the timeout in nanoseconds, negative to wait indefinitely
+	 * @return &gt; 0 if data is available, 0 if timed out, &lt; 0 if woken up
+	 *         for some other reason
+	 */
+	private int waitForData(long timeoutNanos) throws IOException {
+		// Following looks a bit longish but there is actually not that
+		// much code to be executed
+		if (m_ReadNudge == null && m_UseNudge)
+			openReadNudge();
+		Nudge nudge = m_ReadNudge;
+		int n;
+		boolean dataAvailable;
+		if (USE_POLL) { // BEST case in Linux but not on
+						// Windows or Mac OS X
+			TimeSpec timeout = null;
+			if (timeoutNanos >= 0) {
+				m_RdTimeSpec.tv_sec = timeoutNanos / 1000000000;
+				m_RdTimeSpec.tv_nsec = timeoutNanos % 1000000000;
+				timeout = m_RdTimeSpec;
+			}
+			n = ppoll(m_RdPollFD, m_RdPollFDn, timeout);
+			if (n < 0 || m_FD < 0) // the port closed while we were blocking in poll
+				throwStreamClosedException();
+
+			if (nudge != null && (m_RdPollFD[1].revents & POLLIN) != 0)
+				nudge.drain();
+			int re = m_RdPollFD[0].revents;
+			if ((re & POLLNVAL) != 0)
+				throwStreamClosedException();
+			dataAvailable = (re & POLLIN) != 0;
+
+		} else { // this is a bit slower but then again it is unlikely
+			// this gets executed in a low horsepower system
+			FD_ZERO(m_RdFDSet);
+			FD_SET(m_FD, m_RdFDSet);
+			int maxFD = m_FD;
+			if (nudge != null) {
+				FD_SET(nudge.getFD(), m_RdFDSet);
+				if (nudge.getFD() > maxFD)
+					maxFD = nudge.getFD();
+			}
+			TimeVal timeout = null;
+			if (timeoutNanos >= 0) {
+				long us = (timeoutNanos + 999) / 1000; // round up so we never wake up early
+				m_RdTimeVal.tv_sec = us / 1000000;
+				m_RdTimeVal.tv_usec = us % 1000000;
+				timeout = m_RdTimeVal;
+			}
+			n = select(maxFD + 1, m_RdFDSet, null, null, timeout);
+			if (m_FD < 0) // the port closed while we were
+				// blocking in select
+				throwStreamClosedException();
+			if (n < 0)
+				throw new IOException(String.format("select() < 0 , errno()=%d", errno()));
+			if (nudge != null && FD_ISSET(nudge.getFD(), m_RdFDSet))
+				nudge.drain();
+			dataAvailable = FD_ISSET(m_FD, m_RdFDSet);
+		}
+		if (n == 0)
+			return 0;
+		return dataAvailable ? 1 : -1;
+	}
+
+	// creates the nudge close() uses to wake up blocking readers, if the
+	// port was closed before that there is nothing to wait for
+	private void openReadNudge() throws IOException {
+		synchronized (m_NudgeLock) {
+			if (m_FD < 0)
+				throwStreamClosedException();
+			if (m_ReadNudge == null) {
+				Nudge nudge = Nudge.open();
+				if (nudge != null) {
+					m_RdPollFD[1].fd = nudge.getFD();
+					m_RdPollFDn = 2;
+					m_ReadNudge = nudge;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until the port can be written to, this is only needed when the
+	 * descriptor is in non blocking mode and write() returned EAGAIN.
+	 * 
+	 * @param timeoutNanos
+	 *            -1 to wait indefinitely
+	 * @return 0 on timeout
+	 */
+	private int waitForWritable(int fd, long timeoutNanos) throws IOException {
+		int n;
+		if (USE_POLL) {
+			m_WrPollFD[0].fd = fd;
+			TimeSpec timeout = null;
+			if (timeoutNanos >= 0) {
+				m_WrTimeSpec.tv_sec = timeoutNanos / 1000000000;
+				m_WrTimeSpec.tv_nsec = timeoutNanos % 1000000000;
+				timeout = m_WrTimeSpec;
+			}
+			n = ppoll(m_WrPollFD, 1, timeout);
+			if ((m_WrPollFD[0].revents & POLLNVAL) != 0)
+				n = -1;
+		} else {
+			FD_ZERO(m_WrFDSet);
+			FD_SET(fd, m_WrFDSet);
+			TimeVal timeout = null;
+			if (timeoutNanos >= 0) {
+				long us = (timeoutNanos + 999) / 1000;
+				m_WrTimeVal.tv_sec = us / 1000000;
+				m_WrTimeVal.tv_usec = us % 1000000;
+				timeout = m_WrTimeVal;
+			}
+			n = select(fd + 1, null, m_WrFDSet, null, timeout);
+		}
+		if (n < 0 || m_FD < 0)
+			throw new IOException(String.format("waiting for write failed, errno()=%d", errno()));
+		return n;
+	}
+
+	// flush() with the write timeout, waits for the output queue to empty
+	// checking TIOCOUTQ about every character time
+	private void drain(long deadline) throws IOException {
+		while (true) {
+			if (ioctl(m_FD, TIOCOUTQ, m_WrOutQ) < 0) {
+				if (tcdrain(m_FD) < 0)
+					throw new IOException();
+				return;
+			}
+			int queued = m_WrOutQ[0];
+			if (queued == 0)
+				return;
+			long timeout = deadline - System.nanoTime();
+			if (timeout <= 0)
+				throw new InterruptedIOException("flush timed out with " + queued + " bytes queued");
+			LockSupport.parkNanos(this, Math.min(timeout, Math.max(getCharacterNanos() * queued, 100000L)));
+			checkState();
+		}
+	}
+
+	// Here the threshold and timeout are implemented in user space with
+	// poll() deadlines, so apart from switching to VMIN = 0 and VTIME = 0 once
+	// the read path never touches termios. This is also what implements the
+	// explicit read deadlines and nanosecond timeouts in every read mode.
+	// In optimistic read mode the fd is non blocking and read() is tried
+	// first, which saves the poll() whenever data is already queued. Otherwise
+	// the fd is blocking but VMIN = 0 and VTIME = 0, so we poll() first and the
+	// read() that follows returns immediately with whatever is available.
+	private int readUserSpace(ByteBuffer buffer, boolean haveDeadline, long deadline) throws IOException {
+		if (!OPTIMISTIC_READ_MODE)
+			setReadTermios(0, 0);
+		boolean timed = haveDeadline || m_RdReceiveTimeoutEnabled;
+		boolean polling = haveDeadline ? m_RdReceiveThresholdEnabled && m_RdReceiveThresholdValue == 0 : m_RdPollingReadMode;
+		int minBytesRequired;
+		if (polling)
+			minBytesRequired = 0;
+		else if (m_RdReceiveThresholdEnabled)
+			minBytesRequired = Math.min(m_RdReceiveThresholdValue, buffer.remaining());
+		else
+			minBytesRequired = 1;
+		if (!haveDeadline && timed)
+			deadline = System.nanoTime() + m_RdReceiveTimeoutNanos;
+
+		// once we have what was asked for the linger keeps us reading for
+		// as long as the next byte follows within it
+		long linger = polling ? 0 : m_RdReceiveLingerNanos;
+		boolean lingering = false;
+		long idleDeadline = 0;
+		// in spin read mode we keep trying read() for up to the spin budget
+		// before we wait in poll(), spinUntil is non zero while we do that
+		long spinMax = polling ? 0 : m_RdSpinMaxNanos;
+		long waitStart = 0;
+		long spinUntil = 0;
+
+		int bytesReceived = 0;
+		boolean tryRead = OPTIMISTIC_READ_MODE || polling;
+		while (true) {
+			if (tryRead) {
+				int bytesRead = jtermios.JTermios.read(m_FD, buffer);
+				if (bytesRead < 0) {
+					if (m_FD < 0) // closed while we were spinning
+						throwStreamClosedException();
+					if (errno() != EAGAIN) // an error occured
+						throw new IOException(String.format("read() < 0 , errno()=%d", errno()));
+					bytesRead = 0;
+				} else if (bytesRead == 0 && spinUntil == 0) // end of file ie hang up, or nothing there in polling read mode
+					break;
+
+				if (bytesRead > 0) {
+					if (waitStart != 0) {
+						spinReadDone(System.nanoTime() - waitStart, spinUntil != 0);
+						waitStart = 0;
+						spinUntil = 0;
+					}
+					if (linger > 0)
+						idleDeadline = System.nanoTime() + linger;
+				}
+				bytesReceived += bytesRead;
+				if (!buffer.hasRemaining())
+					break;
+				if (bytesReceived >= minBytesRequired) {
+					if (linger == 0 || bytesReceived == 0)
+						break;
+					lingering = true;
+				}
+			}
+
+			long now = timed || lingering || spinMax > 0 ? System.nanoTime() : 0;
+			long timeout = -1;
+			if (timed) {
+				timeout = deadline - now;
+				if (timeout <= 0)
+					break;
+			}
+			if (lingering) {
+				long idle = idleDeadline - now;
+				if (idle <= 0)
+					break;
+				if (timeout < 0 || idle < timeout)
+					timeout = idle;
+			}
+			if (spinMax > 0) {
+				if (waitStart == 0) {
+					waitStart = now;
+					spinUntil = now + m_SpinBudgetNanos;
+				}
+				if (spinUntil != 0) {
+					if (now - spinUntil < 0) {
+						// let whoever is to send us the data have the processor
+						if (UNIPROCESSOR)
+							Thread.yield();
+						tryRead = true;
+						continue;
+					}
+					spinUntil = 0;
+				}
+			}
+			int n = waitForData(timeout);
+			if (n == 0 && (timed || lingering))
+				break;
+			tryRead = n > 0;
+		}
+		// nothing came for longer than we would ever spin
+		if (waitStart != 0 && System.nanoTime() - waitStart > spinMax)
+			spinReadDone(Long.MAX_VALUE, false);
+		dataRead();
+		return bytesReceived;
+	}
+
+	// Adapts the spin budget to how long a read waited for its data. A wait
+	// we could have spun through pulls the budget towards twice the wait, a
+	// wait longer than the maximum towards zero, so that a link that answers
+	// within microseconds gets spun for and an idle one does not burn the
+	// processor. A read that parked still tells us how long the wait was,
+	// so the budget grows back once the data comes quickly again.
+	private void spinReadDone(long wait, boolean spun) {
+		if (spun)
+			m_SpinReads++;
+		else
+			m_ParkedReads++;
+		long max = m_RdSpinMaxNanos;
+		long target = wait <= max / 2 ? 2 * wait : wait <= max ? max : 0;
+		long budget = m_SpinBudgetNanos;
+		budget += (target - budget) / 4;
+		m_SpinBudgetNanos = Math.max(0, Math.min(budget, max));
+	}
+
+	// In buffered read mode only the reader thread m_Pump reads the port and
+	// here we just take the bytes out of the ring, parking when it is empty
+	// until the pump unparks us. The ring has a single consumer so there must
+	// not be more than one thread reading at a time, as with any stream.
+	private int readBuffered(ByteBuffer buffer, boolean haveDeadline, long deadline) throws IOException {
+		boolean timed = haveDeadline || m_RdReceiveTimeoutEnabled;
+		boolean polling = haveDeadline ? m_RdReceiveThresholdEnabled && m_RdReceiveThresholdValue == 0 : m_RdPollingReadMode;
+		int minBytesRequired;
+		if (polling)
+			minBytesRequired = 0;
+		else if (m_RdReceiveThresholdEnabled)
+			minBytesRequired = Math.min(m_RdReceiveThresholdValue, buffer.remaining());
+		else
+			minBytesRequired = 1;
+		if (!haveDeadline && timed)
+			deadline = System.nanoTime() + m_RdReceiveTimeoutNanos;
+
+		long linger = polling ? 0 : m_RdReceiveLingerNanos;
+		long lingerDeadline = 0;
+
+		int bytesReceived = 0;
+		while (true) {
+			InputRing ring = m_InputRing;
+			int bytesRead = ring.read(buffer);
+			if (bytesRead > 0) {
+				bytesReceived += bytesRead;
+				if (m_PumpWaiting)
+					LockSupport.unpark(m_Pump);
+				if (linger > 0)
+					lingerDeadline = System.nanoTime() + linger;
+			}
+			if (!buffer.hasRemaining())
+				break;
+			if (bytesReceived >= minBytesRequired && (linger == 0 || bytesReceived == 0))
+				break;
+			if (ring != m_InputRing || ring.available() > 0)
+				continue;
+			boolean lingering = bytesReceived >= minBytesRequired;
+
+			if (m_PumpStopped) {
+				if (bytesReceived > 0)
+					break;
+				if (m_FD < 0)
+					throwStreamClosedException();
+				if (m_PumpErrNo != 0)
+					throw new IOException(String.format("read() < 0 , errno()=%d", m_PumpErrNo));
+				break; // end of file ie hang up
+			}
+
+			long timeout = -1;
+			if (timed) {
+				timeout = deadline - System.nanoTime();
+				if (timeout <= 0)
+					break;
+			}
+			if (lingering) {
+				long idle = lingerDeadline - System.nanoTime();
+				if (idle <= 0)
+					break;
+				if (timeout < 0 || idle < timeout)
+					timeout = idle;
+			}
+			m_RingReader = Thread.currentThread();
+			if (m_InputRing.available() == 0 && !m_PumpStopped) {
+				if (timeout >= 0)
+					LockSupport.parkNanos(this, timeout);
+				else
+					LockSupport.park(this);
+			}
+			m_RingReader = null;
+		}
+		dataRead();
+		return bytesReceived;
+	}
+
+	// The buffered read mode reader thread, it waits for data with poll()/
+	// select() and reads as much as fits into the ring. When the ring is full
+	// it parks until the consumer makes room, which means that flow control,
+	// if any, kicks in only once both the ring and the driver buffers are full.
+	private void pump() {
+		Pollfd[] pollfd = null;
+		FDSet rset = null;
+		TimeVal timeout = null;
+		int polltimeout = -1;
+		Nudge wake = m_PumpNudge;
+		if (wake == null) { // no way to wake up the pump so just check now and then
+			timeout = new TimeVal();
+			timeout.tv_usec = 100000;
+			polltimeout = 100;
+		}
+		if (USE_POLL) {
+			pollfd = new Pollfd[] { new Pollfd(), new Pollfd() };
+			pollfd[0].fd = m_FD;
+			pollfd[0].events = POLLIN;
+			pollfd[1].fd = wake != null ? wake.getFD() : -1;
+			pollfd[1].events = POLLIN;
+		} else
+			rset = newFDSet();
+		try {
+			while (m_FD >= 0) {
+				InputRing ring = m_InputRing;
+				if (ring.capacity() != m_InputBufferSize && ring.available() == 0) {
+					ring = new InputRing(m_InputBufferSize);
+					m_InputRing = ring;
+				}
+				if (ring.isFull()) {
+					m_PumpWaiting = true;
+					if (ring.isFull() && m_FD >= 0)
+						LockSupport.park(this);
+					m_PumpWaiting = false;
+					continue;
+				}
+
+				int fd = m_FD;
+				int n;
+				boolean dataAvailable;
+				boolean nudged;
+				if (USE_POLL) {
+					n = poll(pollfd, wake != null ? 2 : 1, polltimeout);
+					if ((pollfd[0].revents & POLLNVAL) != 0)
+						break;
+					dataAvailable = (pollfd[0].revents & (POLLIN | POLLHUP | POLLERR)) != 0;
+					nudged = wake != null && (pollfd[1].revents & POLLIN) != 0;
+				} else {
+					FD_ZERO(rset);
+					FD_SET(fd, rset);
+					int maxFD = fd;
+					if (wake != null) {
+						FD_SET(wake.getFD(), rset);
+						if (wake.getFD() > maxFD)
+							maxFD = wake.getFD();
+					}
+					n = select(maxFD + 1, rset, null, null, timeout);
+					dataAvailable = FD_ISSET(fd, rset);
+					nudged = wake != null && FD_ISSET(wake.getFD(), rset);
+				}
+				if (m_FD < 0)
+					break;
+				if (n < 0) {
+					if (errno() == EINTR)
+						continue;
+					m_PumpErrNo = errno();
+					break;
+				}
+				if (nudged) { // the input buffer size changed, resize before reading
+					wake.drain();
+					continue;
+				}
+				if (!dataAvailable)
+					continue;
+
+				n = ring.fill(fd);
+				if (n < 0) {
+					if (errno() == EAGAIN)
+						continue;
+					m_PumpErrNo = errno();
+					break;
+				}
+				if (n == 0) // end of file ie hang up
+					break;
+				Thread reader = m_RingReader;
+				if (reader != null)
+					LockSupport.unpark(reader);
+				if (m_NotifyOnDataAvailable && !m_DataAvailableNotified && m_EventListener != null)
+					nudgePipe(); // the event thread waits for us, not for the port
+			}
+		} finally {
+			m_PumpStopped = true;
+			Thread reader = m_RingReader;
+			if (reader != null)
+				LockSupport.unpark(reader);
+		}
+	}
+
+	private void throwStreamClosedException() throws IOException {
+		throw new IOException("Stream Closed");
+	}
+
+	@Override
+	synchronized public int getReceiveFramingByte() {
+		checkState();
+		// Not supported
+		return 0;
+	}
+
+	@Override
+	synchronized public int getReceiveThreshold() {
+		checkState();
+		return m_ReceiveThresholdValue;
+	}
+
+	@Override
+	synchronized public int getReceiveTimeout() {
+		checkState();
+		return m_ReceiveTimeoutValue;
+	}
+
+	@Override
+	synchronized public boolean isReceiveFramingEnabled() {
+		checkState();
+		// Not supported
 		return false;
 	}
 
@@ -984,9 +2511,17 @@ public class PureJavaSerialPort extends SerialPort {
 	}
 
 	@Override
-	synchronized public void setInputBufferSize(int arg0) {
+	synchronized public void setInputBufferSize(int size) {
 		checkState();
-		// Not supported
+		// Only supported in buffered read mode, where this is the capacity of
+		// the ring the reader thread fills, which is resized when it is empty
+		if (BUFFERED_READ_MODE && size > 0) {
+			m_InputBufferSize = InputRing.capacityFor(size);
+			// the reader thread may be parked on a full ring or in poll()
+			LockSupport.unpark(m_Pump);
+			if (m_PumpNudge != null)
+				m_PumpNudge.nudge();
+		}
 	}
 
 	@Override
@@ -996,8 +2531,124 @@ public class PureJavaSerialPort extends SerialPort {
 	}
 
 	private void nudgePipe() {
-		if (m_HaveNudgePipe)
-			write(m_PipeWrFD, m_NudgeData, 1);
+		Nudge nudge = m_EventNudge;
+		if (nudge != null)
+			nudge.nudge();
+		SerialReactor.Worker reactor = m_Reactor;
+		if (reactor != null)
+			reactor.update(this);
+	}
+
+	// re-arms DATA_AVAILABLE notification after a read(), the event thread
+	// (or reactor) is not watching the port for data until then
+	private void dataRead() {
+		if (m_DataAvailableNotified) {
+			m_DataAvailableNotified = false;
+			nudgePipe();
+		}
+	}
+
+	// re-arms OUTPUT_BUFFER_EMPTY notification after a write()
+	private void dataWritten() {
+		if (m_OutputEmptyNotified) {
+			m_OutputEmptyNotified = false;
+			nudgePipe();
+		}
+	}
+
+	/* package */synchronized void setReactor(SerialReactor.Worker reactor, int slot) {
+		checkState();
+		if (m_ThreadStarted)
+			throw new IllegalStateException("the event listener thread of " + getName() + " is already running");
+		if (BUFFERED_READ_MODE)
+			throw new IllegalStateException("ports in buffered read mode can't be serviced by a SerialReactor");
+		if (m_Reactor != null)
+			throw new IllegalStateException(getName() + " is already registered with a SerialReactor");
+		m_ReactorSlot = slot;
+		m_Reactor = reactor;
+	}
+
+	// called by a closing SerialReactor, after which the port can be
+	// registered with another one
+	/* package */synchronized void clearReactor(SerialReactor.Worker reactor) {
+		if (m_Reactor == reactor)
+			m_Reactor = null;
+	}
+
+	// called by the SerialWriter thread after it has written to this port
+	/* package */void asyncWritten() {
+		dataWritten();
+	}
+
+	// how long one character takes to transmit, for the SerialWriter to
+	// estimate when its writes will have drained
+	/* package */long getCharacterNanos() {
+		int bits = 2 + m_DataBits + (m_Parity != SerialPort.PARITY_NONE ? 1 : 0);
+		return bits * 1000000000L / Math.max(1, m_BaudRate);
+	}
+
+	/* package */void setIoEngine(SerialIoEngine engine) {
+		if (m_IoEngine != engine && (m_IoRead != null || m_IoWrite != null))
+			throw new IllegalStateException(getName() + " has operations outstanding on another SerialIoEngine");
+		m_IoEngine = engine;
+	}
+
+	// the SerialIoEngine reads the descriptor without polling it first once
+	// it has data, with VMIN = 0 and VTIME = 0 that read returns what is there
+	// instead of keeping a kernel worker waiting for more
+	/* package */void setIoEngineReadTermios() throws IOException {
+		if (!OPTIMISTIC_READ_MODE)
+			setReadTermios(0, 0);
+	}
+
+	/* package */SerialIoEngine.Op getIoRead() {
+		return m_IoRead;
+	}
+
+	/* package */void setIoRead(SerialIoEngine.Op op) {
+		m_IoRead = op;
+	}
+
+	/* package */SerialIoEngine.Op getIoWrite() {
+		return m_IoWrite;
+	}
+
+	/* package */void setIoWrite(SerialIoEngine.Op op) {
+		m_IoWrite = op;
+	}
+
+	/* package */int getReactorSlot() {
+		return m_ReactorSlot;
+	}
+
+	/* package */int getReactorInterest() {
+		if (m_EventListener == null)
+			return 0;
+		int events = 0;
+		if (m_NotifyOnDataAvailable && !m_DataAvailableNotified)
+			events |= Epoll.EPOLLIN;
+		if (m_NotifyOnOutputEmpty && !m_OutputEmptyNotified)
+			events |= Epoll.EPOLLOUT;
+		return events;
+	}
+
+	/* package */boolean isReactorPollingLines() {
+		return m_EventListener != null && (m_NotifyOnCTS || m_NotifyOnDSR || m_NotifyOnRI || m_NotifyOnCD || (isNotifyingErrors() && !m_ICountUnsupported));
+	}
+
+	/* package */void reactorEvent(int events) {
+		if (m_FD < 0 || m_EventListener == null)
+			return;
+		sendDataEvents((events & Epoll.EPOLLIN) != 0, (events & Epoll.EPOLLOUT) != 0);
+	}
+
+	/* package */void reactorPollLines() {
+		if (m_FD < 0 || m_EventListener == null)
+			return;
+		if (m_NotifyOnCTS || m_NotifyOnDSR || m_NotifyOnRI || m_NotifyOnCD)
+			sendNonDataEvents();
+		if (isNotifyingErrors() && !m_ICountUnsupported)
+			sendErrorEvents();
 	}
 
 	@Override
@@ -1005,6 +2656,20 @@ public class PureJavaSerialPort extends SerialPort {
 		int fd = m_FD;
 		if (fd != -1) {
 			m_FD = -1;
+			OutputCoalescer coalescer = m_Coalescer;
+			if (coalescer != null) {
+				// write out what is buffered like BufferedOutputStream.close()
+				// does, m_WrFD is still open, but don't hang on a port that
+				// is held back, without a write timeout give up after 2 s
+				m_Coalescer = null;
+				try {
+					int left = coalescer.close(System.nanoTime() + (m_WriteTimeoutEnabled ? m_WriteTimeoutNanos : 2000000000L));
+					if (left != 0)
+						log = log && log(1, "closing %s dropped %d buffered bytes\n", getName(), left);
+				} catch (IOException e) {
+					log = log && log(1, "writing the buffered bytes of %s on close failed %s\n", getName(), e.getMessage());
+				}
+			}
 			try {
 				if (m_InputStream != null)
 					m_InputStream.close();
@@ -1021,7 +2686,27 @@ public class PureJavaSerialPort extends SerialPort {
 			} finally {
 				m_OutputStream = null;
 			}
+			if (m_Channel != null) {
+				try {
+					m_Channel.close();
+				} catch (IOException e) {
+					log = log && log(1, "m_Channel.close threw an IOException %s\n", e.getMessage());
+				} finally {
+					m_Channel = null;
+				}
+			}
+			synchronized (m_NudgeLock) {
+				if (m_ReadNudge != null)
+					m_ReadNudge.nudge();
+			}
 			nudgePipe();
+			if (m_Reactor != null)
+				m_Reactor.remove(this, fd);
+			if (m_IoEngine != null)
+				m_IoEngine.cancel(this);
+			if (m_WriterQueue != null)
+				m_Writer.remove(m_WriterQueue);
+			stopLineWatcher();
 			int flags = fcntl(fd, F_GETFL, 0);
 			flags |= O_NONBLOCK;
 			int fcres = fcntl(fd, F_SETFL, flags);
@@ -1030,17 +2715,34 @@ public class PureJavaSerialPort extends SerialPort {
 
 			if (m_Thread != null)
 				m_Thread.interrupt();
+			if (m_Pump != null) {
+				if (m_PumpNudge != null)
+					m_PumpNudge.nudge();
+				LockSupport.unpark(m_Pump);
+				try {
+					m_Pump.join(2000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (m_PumpNudge != null)
+					m_PumpNudge.close();
+			}
 			int err = jtermios.JTermios.close(fd);
 			if (err < 0)
 				log = log && log(1, "JTermios.close returned %d, errno %d\n", err, errno());
-
-			if (m_HaveNudgePipe) {
-				err = jtermios.JTermios.close(m_PipeRdFD);
-				if (err < 0)
-					log = log && log(1, "JTermios.close returned %d, errno %d\n", err, errno());
-				err = jtermios.JTermios.close(m_PipeWrFD);
-				if (err < 0)
-					log = log && log(1, "JTermios.close returned %d, errno %d\n", err, errno());
+			int wrfd = m_WrFD;
+			m_WrFD = -1;
+			if (wrfd >= 0 && wrfd != fd)
+				jtermios.JTermios.close(wrfd);
+
+			synchronized (m_NudgeLock) {
+				if (m_ReadNudge != null)
+					m_ReadNudge.close();
+			}
+			Nudge nudge = m_EventNudge;
+			if (nudge != null) {
+				m_EventNudge = null;
+				nudge.close();
 			}
 			long t0 = System.currentTimeMillis();
 			while (m_ThreadRunning) {
@@ -1073,8 +2775,30 @@ public class PureJavaSerialPort extends SerialPort {
 		}
 		USE_POLL = usepoll;
 
+		String nudgekey = "purejavacomm.usenudgepipe";
+		m_UseNudge = System.getProperty(nudgekey) == null || Boolean.getBoolean(nudgekey);
+
 		RAW_READ_MODE = Boolean.getBoolean("purejavacomm.rawreadmode");
 
+		// in optimistic read mode the port is kept non blocking, read() is
+		// tried first and poll()/select() only used if nothing was available
+		boolean optimistic = Boolean.getBoolean("purejavacomm.optimisticread");
+		if (optimistic && RAW_READ_MODE) {
+			log = log && log(1, "'purejavacomm.optimisticread' is ignored in raw read mode\n");
+			optimistic = false;
+		}
+		OPTIMISTIC_READ_MODE = optimistic;
+
+		// in poll read mode VMIN and VTIME stay at 0 and threshold and timeout
+		// are implemented with poll()/select() deadlines, so that reads never
+		// need to call tcsetattr()
+		POLL_READ_MODE = !RAW_READ_MODE && !OPTIMISTIC_READ_MODE && Boolean.getBoolean("purejavacomm.pollreadmode");
+
+		// in buffered read mode a reader thread per port drains the port into
+		// a ring from which read() and available() are served without any
+		// system calls, this overrides the other read modes
+		BUFFERED_READ_MODE = Boolean.getBoolean("purejavacomm.bufferedread");
+
 		this.name = name;
 
 		int tries = (timeout + 5) / 10;
@@ -1094,7 +2818,10 @@ public class PureJavaSerialPort extends SerialPort {
 		int flags = fcntl(m_FD, F_GETFL, 0);
 		if (flags < 0)
 			checkReturnCode(flags);
-		flags &= ~O_NONBLOCK;
+		if (OPTIMISTIC_READ_MODE)
+			flags |= O_NONBLOCK;
+		else
+			flags &= ~O_NONBLOCK;
 		checkReturnCode(fcntl(m_FD, F_SETFL, flags));
 
 		m_BaudRate = 9600;
@@ -1113,9 +2840,13 @@ public class PureJavaSerialPort extends SerialPort {
 
 		m_Termios.c_cc[VSTART] = (byte) DC1;
 		m_Termios.c_cc[VSTOP] = (byte) DC3;
-		m_Termios.c_cc[VMIN] = 0;
+		// with VMIN = 0 and VTIME = 0 a read() returns 0 even on a non blocking
+		// port, so the optimistic read mode uses VMIN = 1 to get EAGAIN instead
+		m_Termios.c_cc[VMIN] = (byte) (OPTIMISTIC_READ_MODE ? 1 : 0);
 		m_Termios.c_cc[VTIME] = 0;
-		checkReturnCode(tcsetattr(m_FD, TCSANOW, m_Termios));
+		checkReturnCode(updateTermios());
+		m_RdVMIN = m_Termios.c_cc[VMIN];
+		m_RdVTIME = m_Termios.c_cc[VTIME];
 
 		try {
 			setSerialPortParams(m_BaudRate, m_DataBits, m_StopBits, m_Parity);
@@ -1137,16 +2868,15 @@ public class PureJavaSerialPort extends SerialPort {
 		else
 			log = log && log(1, "ioctl(TIOCMGET) returned %d, errno %d\n", res, errno());
 
-		String nudgekey = "purejavacomm.usenudgepipe";
-		if (System.getProperty(nudgekey) == null || Boolean.getBoolean(nudgekey)) {
-			int[] pipes = new int[2];
-			if (pipe(pipes) == 0) {
-				m_HaveNudgePipe = true;
-				m_PipeRdFD = pipes[0];
-				m_PipeWrFD = pipes[1];
-				checkReturnCode(fcntl(m_PipeRdFD, F_SETFL, fcntl(m_PipeRdFD, F_GETFL, 0) | O_NONBLOCK));
-			}
-		}
+		m_RdFDSet = newFDSet();
+		m_RdPollFD[0].fd = m_FD;
+		m_RdPollFD[0].events = POLLIN;
+		m_RdPollFD[1].fd = -1;
+		m_RdPollFD[1].events = POLLIN;
+		m_RdPollFDn = 1;
+		m_WrFDSet = newFDSet();
+		m_WrPollFD[0].fd = m_FD;
+		m_WrPollFD[0].events = POLLOUT;
 
 		Runnable runnable = new Runnable() {
 			public void run() {
@@ -1159,13 +2889,12 @@ public class PureJavaSerialPort extends SerialPort {
 					FDSet rset = null;
 					FDSet wset = null;
 					jtermios.Pollfd[] pollfd = null;
-					byte[] nudge = null;
+					Nudge nudge = m_EventNudge;
 
 					if (USE_POLL) {
 						pollfd = new Pollfd[] { new Pollfd(), new Pollfd() };
-						nudge = new byte[1];
 						pollfd[0].fd = m_FD;
-						pollfd[1].fd = m_PipeRdFD;
+						pollfd[1].fd = nudge != null ? nudge.getFD() : -1;
 					} else {
 						rset = newFDSet();
 						wset = newFDSet();
@@ -1180,9 +2909,28 @@ public class PureJavaSerialPort extends SerialPort {
 						boolean write = (m_NotifyOnOutputEmpty && !m_OutputEmptyNotified);
 						int n = 0;
 
-						boolean pollCtrlLines = m_NotifyOnCTS || m_NotifyOnDSR || m_NotifyOnRI || m_NotifyOnCD;
-
-						if (read || write || (!pollCtrlLines && m_HaveNudgePipe)) {
+						boolean pollCtrlLines = (m_NotifyOnCTS || m_NotifyOnDSR || m_NotifyOnRI || m_NotifyOnCD) && !m_LinesWatched;
+						boolean pollErrors = isNotifyingErrors() && !m_ICountUnsupported;
+
+						// in buffered read mode the reader thread drains the port so
+						// we can't poll() it for data, instead the ring is checked
+						// every TIMEOUT ms, just like the control lines
+						boolean readRing = read && BUFFERED_READ_MODE;
+						if (readRing)
+							read = false;
+
+						// Unless something needs to be polled we sleep until the port
+						// is ready or the nudge pipe tells us that some state changed,
+						// so idle ports cause no wakeups at all. Without a nudge pipe
+						// we have to check now and then.
+						boolean periodic = pollCtrlLines || pollErrors || nudge == null;
+
+						// the nudge from the reader thread may have been drained
+						// already, so check the ring before waiting for one
+						if (readRing && m_InputRing.available() > 0) {
+							read = true;
+							readRing = false;
+						} else if (read || write || !periodic) {
 							if (USE_POLL) {
 								short e = 0;
 								if (read)
@@ -1191,8 +2939,8 @@ public class PureJavaSerialPort extends SerialPort {
 									e |= POLLOUT;
 								pollfd[0].events = e;
 								pollfd[1].events = POLLIN;
-								if (m_HaveNudgePipe)
-									n = poll(pollfd, 2, TIMEOUT);
+								if (nudge != null)
+									n = poll(pollfd, 2, periodic ? TIMEOUT : -1);
 								else
 									n = poll(pollfd, 1, TIMEOUT);
 
@@ -1204,7 +2952,7 @@ public class PureJavaSerialPort extends SerialPort {
 								}
 
 								if ((re & POLLIN) != 0)
-									read(m_PipeRdFD, nudge, 1);
+									nudge.drain();
 
 								re = pollfd[0].revents;
 								if ((re & POLLNVAL) != 0) {
@@ -1220,9 +2968,14 @@ public class PureJavaSerialPort extends SerialPort {
 									FD_SET(m_FD, rset);
 								if (write)
 									FD_SET(m_FD, wset);
-								if (m_HaveNudgePipe)
-									FD_SET(m_PipeRdFD, rset);
-								n = select(m_FD + 1, rset, wset, null, m_HaveNudgePipe ? null : timeout);
+								int maxFD = m_FD;
+								if (nudge != null) {
+									FD_SET(nudge.getFD(), rset);
+									maxFD = Math.max(maxFD, nudge.getFD());
+								}
+								n = select(maxFD + 1, rset, wset, null, periodic ? timeout : null);
+								if (nudge != null && FD_ISSET(nudge.getFD(), rset))
+									nudge.drain();
 								read = read && FD_ISSET(m_FD, rset);
 								write = write && FD_ISSET(m_FD, wset);
 							}
@@ -1238,11 +2991,16 @@ public class PureJavaSerialPort extends SerialPort {
 							Thread.sleep(TIMEOUT);
 						}
 
+						if (readRing)
+							read = m_InputRing.available() > 0;
+
 						if (m_EventListener != null) {
 							if (read || write)
 								sendDataEvents(read, write);
 							if (pollCtrlLines)
 								sendNonDataEvents();
+							if (pollErrors)
+								sendErrorEvents();
 						}
 					}
 				} catch (InterruptedException ie) {
@@ -1253,6 +3011,19 @@ public class PureJavaSerialPort extends SerialPort {
 		};
 		m_Thread = new Thread(runnable, getName());
 		m_Thread.setDaemon(true);
+
+		if (BUFFERED_READ_MODE) {
+			if (m_UseNudge)
+				m_PumpNudge = Nudge.open();
+			m_InputRing = new InputRing(m_InputBufferSize);
+			m_Pump = new Thread(new Runnable() {
+				public void run() {
+					pump();
+				}
+			}, getName() + " reader");
+			m_Pump.setDaemon(true);
+			m_Pump.start();
+		}
 	}
 
 	synchronized private void updateControlLineState(int line) {
@@ -1284,6 +3055,12 @@ public class PureJavaSerialPort extends SerialPort {
 			throw new PureJavaIllegalStateException("ioctl(m_FD, TIOCMSET, m_ioctl) == -1");
 	}
 
+	// all the tcsetattr() calls go through here so that they can be counted
+	private int updateTermios() {
+		m_TermiosUpdateCount++;
+		return tcsetattr(m_FD, TCSANOW, m_Termios);
+	}
+
 	private void failWithIllegalStateException() {
 		throw new PureJavaIllegalStateException("File descriptor is " + m_FD + " < 0, maybe closed by previous error condition");
 	}
@@ -1316,4 +3093,16 @@ public class PureJavaSerialPort extends SerialPort {
 		return m_ThreadRunning;
 	}
 
+	/**
+	 * Returns the number of tcsetattr() calls made on this port since it was
+	 * opened. In poll read mode and optimistic read mode this does not change
+	 * in steady state however the reads are done.
+	 * <p>
+	 * This is not part of the PureJavaComm API, this is purely for testing, do
+	 * not depend on this
+	 */
+	public int getTermiosUpdateCount() {
+		return m_TermiosUpdateCount;
+	}
+
 }
@@ -0,0 +1,620 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.WritePendingException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+
+import jtermios.JTermios;
+import jtermios.linux.IoUring;
+import static jtermios.JTermios.JTermiosLogging.*;
+
+/**
+ * Reads and writes many ports asynchronously with batched system calls.
+ * <p>
+ * Each read or write on a {@link PureJavaSerialPort} stream is at least one
+ * system call, and a read that has to wait is a poll() and a read(). An
+ * engine instead queues the operations of all its ports on a Linux io_uring
+ * and a single thread submits everything that was queued and reaps all
+ * completions with one <code>io_uring_enter()</code>, so under load the
+ * number of system calls per message falls with the number of busy ports.
+ * A read waits for data with a poll linked to the read inside the kernel,
+ * a write that does not fit in the output queue is continued the same way
+ * once there is room.
+ * <p>
+ * There can be one read and one write outstanding per port, the completion
+ * handlers are called on the engine thread and should not block, they may
+ * start the next operation. A read completes with the number of bytes read
+ * as soon as there are any, or -1 if the port has hung up, a write completes
+ * when all of the buffer has been handed to the kernel. The buffers must be
+ * direct and must not be touched until the operation has completed. A read
+ * sets VMIN and VTIME of the port to 0 so that it can't wait in the kernel
+ * for more than is there. Closing
+ * the port fails its outstanding operations with an
+ * {@link AsynchronousCloseException}.
+ * <p>
+ * This is only available on Linux 5.6 or later and is not part of the
+ * JavaComm API.
+ */
+public final class SerialIoEngine implements Runnable {
+	private static final long WAKEUP = -1;
+	private static final long CANCEL = -2;
+	private static final int POLLIN = 0x001;
+	private static final int POLLOUT = 0x004;
+	private static final int POLLERR = 0x008;
+	private static final int POLLHUP = 0x010;
+	// how long to back off when the kernel can't take submissions for now
+	private static final long BACKOFF_NANOS = 1000000L;
+
+	private final IoUring m_Ring;
+	private final Nudge m_Nudge;
+	private final Thread m_Thread;
+	// all of the below is guarded by this, except where noted
+	private Op[] m_Ops = new Op[16];
+	private final ArrayDeque<Op> m_Free = new ArrayDeque<Op>();
+	private final ArrayDeque<Op> m_Pending = new ArrayDeque<Op>();
+	private final ArrayDeque<Op> m_Cancels = new ArrayDeque<Op>();
+	private final ArrayDeque<Op> m_Failed = new ArrayDeque<Op>();
+	private final ArrayDeque<Op> m_Completed = new ArrayDeque<Op>();
+	private int m_InFlight;
+	private boolean m_WakeupArmed;
+	private boolean m_Sleeping;
+	private volatile boolean m_Closed;
+	private volatile long m_Enters;
+	private volatile long m_Completions;
+
+	/**
+	 * One read or write, indexed by its slot in m_Ops which is also the high
+	 * bits of the user data of its submission queue entries, the lowest bit
+	 * tells the poll from the read or write.
+	 */
+	/* package */static final class Op {
+		final int m_Slot;
+		PureJavaSerialPort m_Port;
+		int m_FD;
+		boolean m_Write;
+		ByteBuffer m_Buffer;
+		long m_Address;
+		int m_Length;
+		int m_Done;
+		Object m_Attachment;
+		CompletionHandler<Integer, Object> m_Handler;
+		// number of our entries the kernel still has to complete
+		int m_InFlight;
+		boolean m_Submitted;
+		boolean m_Poll;
+		boolean m_Cancelled;
+		boolean m_Finished;
+		int m_Revents;
+		int m_PollError;
+		int m_Result;
+		int m_Error;
+		int m_Count;
+
+		Op(int slot) {
+			m_Slot = slot;
+		}
+	}
+
+	/**
+	 * Creates an engine with room for 256 submissions per batch.
+	 */
+	public SerialIoEngine() {
+		this(256);
+	}
+
+	/**
+	 * Creates an engine and starts its thread.
+	 * 
+	 * @param entries
+	 *            the size of the submission queue, each operation needs up to
+	 *            two entries, more operations than fit are queued
+	 * @throws UnsupportedOperationException
+	 *             if not running on Linux or io_uring is not available
+	 */
+	public SerialIoEngine(int entries) {
+		if (!Platform.isLinux())
+			throw new UnsupportedOperationException("SerialIoEngine needs io_uring, which is only available on Linux");
+		if (entries <= 0)
+			throw new IllegalArgumentException("entries " + entries + " <= 0");
+		m_Ring = new IoUring(Math.max(entries, 4));
+		m_Nudge = Nudge.open();
+		if (m_Nudge == null) {
+			m_Ring.close();
+			throw new IllegalStateException("eventfd() and pipe() failed, errno " + JTermios.errno());
+		}
+		m_Thread = new Thread(this, "SerialIoEngine");
+		m_Thread.setDaemon(true);
+		m_Thread.start();
+	}
+
+	/**
+	 * Reads from the port into <code>dst</code> from its position up to its
+	 * limit, on completion the position is advanced by the bytes read.
+	 * 
+	 * @throws ReadPendingException
+	 *             if a read is already outstanding on this port
+	 * @throws ClosedChannelException
+	 *             if the port or this engine is closed
+	 * @throws IllegalArgumentException
+	 *             if <code>dst</code> is not direct or has nothing remaining
+	 */
+	public <A> void read(PureJavaSerialPort port, ByteBuffer dst, A attachment, CompletionHandler<Integer, ? super A> handler) throws ClosedChannelException {
+		submit(port, false, dst, attachment, handler);
+	}
+
+	/**
+	 * Writes <code>src</code> from its position up to its limit to the port,
+	 * on completion the position is at the limit.
+	 * 
+	 * @throws WritePendingException
+	 *             if a write is already outstanding on this port
+	 * @throws ClosedChannelException
+	 *             if the port or this engine is closed
+	 * @throws IllegalArgumentException
+	 *             if <code>src</code> is not direct or has nothing remaining
+	 */
+	public <A> void write(PureJavaSerialPort port, ByteBuffer src, A attachment, CompletionHandler<Integer, ? super A> handler) throws ClosedChannelException {
+		submit(port, true, src, attachment, handler);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void submit(PureJavaSerialPort port, boolean write, ByteBuffer buffer, Object attachment, CompletionHandler<Integer, ?> handler) throws ClosedChannelException {
+		if (!buffer.isDirect())
+			throw new IllegalArgumentException("SerialIoEngine needs direct buffers");
+		if (!buffer.hasRemaining())
+			throw new IllegalArgumentException("nothing to " + (write ? "write" : "read"));
+		if (handler == null)
+			throw new NullPointerException("handler");
+		// the port lock is always taken before the engine lock, so that
+		// close() can't slip in between the check and the queuing
+		synchronized (port) {
+			synchronized (this) {
+				int fd = port.getNativeFileDescriptor();
+				if (m_Closed || fd < 0)
+					throw new ClosedChannelException();
+				if ((write ? port.getIoWrite() : port.getIoRead()) != null) {
+					if (write)
+						throw new WritePendingException();
+					throw new ReadPendingException();
+				}
+				port.setIoEngine(this);
+				if (!write) {
+					try {
+						port.setIoEngineReadTermios();
+					} catch (IOException e) {
+						throw closed(e);
+					} catch (IllegalStateException e) {
+						// the failed tcsetattr() has closed the port
+						throw closed(e);
+					}
+				}
+				Op op = allocate();
+				op.m_Port = port;
+				op.m_FD = fd;
+				op.m_Write = write;
+				op.m_Buffer = buffer;
+				op.m_Address = Pointer.nativeValue(Native.getDirectBufferPointer(buffer)) + buffer.position();
+				op.m_Length = buffer.remaining();
+				op.m_Attachment = attachment;
+				op.m_Handler = (CompletionHandler<Integer, Object>) handler;
+				// a write is first tried without waiting, a read first waits
+				op.m_Poll = !write;
+				if (write)
+					port.setIoWrite(op);
+				else
+					port.setIoRead(op);
+				m_Pending.add(op);
+				wakeup();
+			}
+		}
+	}
+
+	private static ClosedChannelException closed(Exception cause) {
+		ClosedChannelException e = new ClosedChannelException();
+		e.initCause(cause);
+		return e;
+	}
+
+	private Op allocate() {
+		Op op = m_Free.poll();
+		if (op != null)
+			return op;
+		for (int slot = 0; slot < m_Ops.length; slot++)
+			if (m_Ops[slot] == null)
+				return m_Ops[slot] = new Op(slot);
+		Op[] grown = new Op[m_Ops.length * 2];
+		System.arraycopy(m_Ops, 0, grown, 0, m_Ops.length);
+		op = new Op(m_Ops.length);
+		grown[op.m_Slot] = op;
+		m_Ops = grown;
+		return op;
+	}
+
+	private void release(Op op) {
+		if (op.m_Write)
+			op.m_Port.setIoWrite(null);
+		else
+			op.m_Port.setIoRead(null);
+		op.m_Port = null;
+		op.m_Buffer = null;
+		op.m_Attachment = null;
+		op.m_Handler = null;
+		op.m_Done = 0;
+		op.m_Submitted = false;
+		op.m_Cancelled = false;
+		op.m_Finished = false;
+		op.m_Revents = 0;
+		op.m_PollError = 0;
+		op.m_Error = 0;
+		m_Free.add(op);
+	}
+
+	// called with this locked
+	private void wakeup() {
+		if (m_Sleeping) {
+			m_Sleeping = false;
+			m_Nudge.nudge();
+		}
+	}
+
+	/**
+	 * Fails the outstanding operations of a port that is being closed, called
+	 * by {@link PureJavaSerialPort#close()} with the port locked and before
+	 * the descriptor is closed. Operations that were already submitted are
+	 * cancelled in the kernel, which holds its own reference to the open
+	 * file, so the descriptor number being reused can't confuse them.
+	 */
+	/* package */synchronized void cancel(PureJavaSerialPort port) {
+		cancel(port.getIoRead());
+		cancel(port.getIoWrite());
+	}
+
+	private void cancel(Op op) {
+		if (op == null || op.m_Cancelled || op.m_Finished)
+			return;
+		op.m_Cancelled = true;
+		if (!op.m_Submitted) {
+			m_Pending.remove(op);
+			m_Failed.add(op);
+		} else
+			m_Cancels.add(op);
+		wakeup();
+	}
+
+	/**
+	 * Stops the engine thread, outstanding operations are failed with an
+	 * {@link AsynchronousCloseException}, the ports are not closed.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (m_Closed)
+				return;
+			m_Closed = true;
+			m_Sleeping = true;
+			wakeup();
+		}
+		try {
+			m_Thread.join(2000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return how many times the engine thread has called
+	 *         <code>io_uring_enter()</code>, which is the number of system
+	 *         calls it has made for all of its ports apart from waking up
+	 */
+	public long getEnterCount() {
+		return m_Enters;
+	}
+
+	/**
+	 * @return the number of reads and writes that have completed
+	 */
+	public long getCompletionCount() {
+		return m_Completions;
+	}
+
+	// moves queued operations to the submission queue, called with this locked
+	private int prepare() {
+		int prepared = 0;
+		int space = m_Ring.getSubmissionSpace();
+		// the completion queue must have room for everything in flight
+		int budget = m_Ring.getCompletionEntries() - m_InFlight - 1; // 1 for the wakeup
+		if (!m_WakeupArmed && space > 0) {
+			m_Ring.prepare(IoUring.IORING_OP_POLL_ADD, 0, m_Nudge.getFD(), 0, 0, POLLIN, WAKEUP);
+			m_WakeupArmed = true;
+			space--;
+			prepared++;
+		}
+		while (!m_Cancels.isEmpty() && space > 0 && budget > 0) {
+			Op op = m_Cancels.poll();
+			m_Ring.prepare(IoUring.IORING_OP_ASYNC_CANCEL, 0, -1, userData(op, op.m_Poll), 0, 0, CANCEL);
+			m_InFlight++;
+			space--;
+			budget--;
+			prepared++;
+		}
+		while (!m_Pending.isEmpty()) {
+			Op op = m_Pending.peek();
+			int needed = op.m_Poll ? 2 : 1;
+			if (space < needed || budget < needed)
+				break;
+			m_Pending.poll();
+			if (op.m_Poll)
+				m_Ring.prepare(IoUring.IORING_OP_POLL_ADD, IoUring.IOSQE_IO_LINK, op.m_FD, 0, 0, op.m_Write ? POLLOUT : POLLIN, userData(op, true));
+			m_Ring.prepare(op.m_Write ? IoUring.IORING_OP_WRITE : IoUring.IORING_OP_READ, 0, op.m_FD, op.m_Address + op.m_Done, op.m_Length - op.m_Done, 0, userData(op, false));
+			op.m_Submitted = true;
+			op.m_InFlight += needed;
+			m_InFlight += needed;
+			space -= needed;
+			budget -= needed;
+			prepared += needed;
+		}
+		return prepared;
+	}
+
+	// whether prepare() would submit something, called with this locked
+	private boolean canPrepare() {
+		if (m_Cancels.isEmpty() && m_Pending.isEmpty())
+			return false;
+		int needed = m_Cancels.isEmpty() && m_Pending.peek().m_Poll ? 2 : 1;
+		return m_Ring.getSubmissionSpace() >= needed && m_Ring.getCompletionEntries() - m_InFlight - 1 >= needed;
+	}
+
+	private static long userData(Op op, boolean poll) {
+		return ((long) op.m_Slot << 1) | (poll ? 1 : 0);
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				boolean sleep;
+				boolean stalled;
+				synchronized (this) {
+					if (m_Closed) {
+						closeAll();
+						if (m_InFlight == 0 && m_Pending.isEmpty() && m_Failed.isEmpty())
+							break;
+					}
+					// operations cancelled before they were submitted
+					while (!m_Failed.isEmpty())
+						done(m_Failed.poll(), 0);
+					// submitted with the lock held so that a port can't close
+					// its descriptor before the kernel has looked it up
+					prepare();
+					int submitted = submit();
+					if (submitted < 0)
+						break;
+					reap();
+					// a completion may have queued a retry, which goes out
+					// on the next round unless the ring has to drain first,
+					// and entries the kernel did not take yet must not be
+					// left to the unlocked wait below
+					stalled = submitted > 0 && m_Completed.isEmpty();
+					sleep = m_Ring.getSubmissionPending() == 0 && m_Completed.isEmpty() && !canPrepare();
+					m_Sleeping = sleep;
+				}
+				if (stalled)
+					LockSupport.parkNanos(BACKOFF_NANOS);
+				else if (sleep) {
+					if (enter(1) < 0)
+						break;
+					synchronized (this) {
+						m_Sleeping = false;
+						reap();
+					}
+				}
+				dispatch();
+			}
+		} finally {
+			synchronized (this) {
+				m_Closed = true;
+				for (Op op : m_Ops)
+					if (op != null && op.m_Port != null && !op.m_Finished) {
+						op.m_Cancelled = true;
+						done(op, 0);
+					}
+			}
+			dispatch();
+			m_Nudge.close();
+			m_Ring.close();
+		}
+	}
+
+	// Submits all prepared entries, called with this locked. Returns 0 when
+	// they are all in or there are completions to reap first, 1 if the
+	// kernel is short of memory and we have to back off, -1 on failure.
+	private int submit() {
+		while (m_Ring.getSubmissionPending() > 0) {
+			int n = m_Ring.enter(0);
+			m_Enters++;
+			if (n > 0 || (n < 0 && JTermios.errno() == JTermios.EINTR))
+				continue;
+			if (n == 0 || JTermios.errno() == JTermios.EAGAIN || JTermios.errno() == JTermios.EBUSY)
+				return m_Ring.getCompletionCount() > 0 ? 0 : 1;
+			log = log && log(1, "io_uring_enter() failed, errno %d\n", JTermios.errno());
+			return -1;
+		}
+		return 0;
+	}
+
+	// Waits for completions, nothing is left to submit when this is called.
+	private int enter(int minComplete) {
+		while (true) {
+			int n = m_Ring.enter(minComplete);
+			m_Enters++;
+			if (n >= 0 || JTermios.errno() == JTermios.EINTR)
+				return 0;
+			if (JTermios.errno() == JTermios.EAGAIN || JTermios.errno() == JTermios.EBUSY) {
+				// the kernel is short of memory or the completion queue is
+				// full, reaping makes room, otherwise wait a little
+				if (m_Ring.getCompletionCount() > 0)
+					return 0;
+				LockSupport.parkNanos(BACKOFF_NANOS);
+				continue;
+			}
+			log = log && log(1, "io_uring_enter() failed, errno %d\n", JTermios.errno());
+			return -1;
+		}
+	}
+
+	// cancels everything once the engine is closed, called with this locked
+	private void closeAll() {
+		for (Op op : m_Ops)
+			if (op != null && op.m_Port != null)
+				cancel(op);
+	}
+
+	// goes through the completions, called with this locked
+	private void reap() {
+		int n = m_Ring.getCompletionCount();
+		for (int i = 0; i < n; i++) {
+			long userData = m_Ring.getUserData(i);
+			int res = m_Ring.getResult(i);
+			if (userData == WAKEUP) {
+				m_Nudge.drain();
+				m_WakeupArmed = false;
+				continue;
+			}
+			m_InFlight--;
+			if (userData == CANCEL)
+				continue;
+			Op op = m_Ops[(int) (userData >>> 1)];
+			op.m_InFlight--;
+			if ((userData & 1) != 0) {
+				if (res < 0)
+					op.m_PollError = -res;
+				else
+					op.m_Revents = res;
+			} else
+				op.m_Result = res;
+			if (op.m_InFlight == 0)
+				finish(op);
+		}
+		m_Ring.advance(n);
+	}
+
+	// all entries of the operation have completed, decides what next
+	private void finish(Op op) {
+		int res = op.m_Result;
+		if (res > 0) {
+			op.m_Done += res;
+			if (op.m_Write && op.m_Done < op.m_Length)
+				retry(op); // the output queue is full, continue once there is room
+			else
+				done(op, op.m_Done);
+		} else if (op.m_Cancelled)
+			done(op, 0);
+		else if (op.m_PollError != 0 && op.m_PollError != IoUring.ECANCELED) {
+			op.m_Error = op.m_PollError;
+			done(op, 0);
+		} else if (res == 0 && !op.m_Write && (op.m_Revents & (POLLHUP | POLLERR)) != 0)
+			done(op, -1);
+		else if (res == 0 || res == -JTermios.EAGAIN || res == -JTermios.EINTR || res == -IoUring.ECANCELED)
+			// no data after all (a non blocking tty read returns 0 with VMIN
+			// 0) or the linked poll was interrupted, wait and try again
+			retry(op);
+		else {
+			op.m_Error = -res;
+			done(op, 0);
+		}
+	}
+
+	private void retry(Op op) {
+		if (op.m_Cancelled) {
+			done(op, op.m_Done);
+			return;
+		}
+		op.m_Poll = true;
+		op.m_Submitted = false;
+		op.m_Revents = 0;
+		op.m_PollError = 0;
+		m_Pending.add(op);
+	}
+
+	private void done(Op op, int count) {
+		op.m_Count = count;
+		op.m_Finished = true;
+		// a cancel not submitted yet must not hit the slot once it is reused
+		if (op.m_Cancelled)
+			m_Cancels.remove(op);
+		m_Completed.add(op);
+	}
+
+	// calls the completion handlers without holding the lock, so that they
+	// can start the next operation
+	private void dispatch() {
+		while (true) {
+			Op op;
+			CompletionHandler<Integer, Object> handler;
+			Object attachment;
+			Throwable failure = null;
+			int count;
+			synchronized (this) {
+				op = m_Completed.poll();
+				if (op == null)
+					return;
+				handler = op.m_Handler;
+				attachment = op.m_Attachment;
+				count = op.m_Count;
+				if (op.m_Done > 0)
+					op.m_Buffer.position(op.m_Buffer.position() + op.m_Done);
+				if (op.m_Cancelled && (op.m_Write ? op.m_Done < op.m_Length : op.m_Done == 0))
+					failure = new AsynchronousCloseException();
+				else if (op.m_Error != 0)
+					failure = new IOException((op.m_Write ? "write" : "read") + " on " + op.m_Port.getName() + " failed, errno " + op.m_Error);
+				release(op);
+			}
+			m_Completions++;
+			try {
+				if (failure != null)
+					handler.failed(failure, attachment);
+				else
+					handler.completed(count, attachment);
+			} catch (RuntimeException e) {
+				log = log && log(1, "SerialIoEngine completion handler threw %s\n", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A NIO channel view of a {@link PureJavaSerialPort}.
+ * <p>
+ * Reads and writes go directly to the port's file descriptor through
+ * {@link PureJavaSerialPort#read(ByteBuffer)} and
+ * {@link PureJavaSerialPort#write(ByteBuffer)}, so with direct buffers there
+ * is no intermediate copy or temporary array, unlike when wrapping the port's
+ * streams with <code>java.nio.channels.Channels</code>. In buffered read mode
+ * reads are served from the port's input ring instead.
+ * <p>
+ * Reads honour the receive threshold and timeout set with
+ * <code>enableReceiveThreshold()</code> and
+ * <code>enableReceiveTimeout()</code>; a read that times out returns 0. As a
+ * serial port has no end of stream, read never returns -1.
+ * <p>
+ * Closing the channel does not close the port, just like closing the port's
+ * streams does not, but closing the port closes the channel.
+ * <p>
+ * This is not part of the JavaComm API.
+ * 
+ * @see PureJavaSerialPort#getChannel()
+ */
+public final class SerialPortChannel implements ReadableByteChannel, WritableByteChannel, GatheringByteChannel {
+	private final PureJavaSerialPort m_Port;
+	private final Object m_ReadLock = new Object();
+	private final Object m_WriteLock = new Object();
+	private volatile boolean m_Open = true;
+
+	/* package */SerialPortChannel(PureJavaSerialPort port) {
+		m_Port = port;
+	}
+
+	/**
+	 * @return the port this channel reads from and writes to
+	 */
+	public PureJavaSerialPort getPort() {
+		return m_Port;
+	}
+
+	public boolean isOpen() {
+		return m_Open && m_Port.getNativeFileDescriptor() >= 0;
+	}
+
+	public void close() throws IOException {
+		m_Open = false;
+	}
+
+	private void checkOpen() throws ClosedChannelException {
+		if (!isOpen())
+			throw new ClosedChannelException();
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		synchronized (m_ReadLock) {
+			checkOpen();
+			return m_Port.read(dst);
+		}
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		synchronized (m_WriteLock) {
+			checkOpen();
+			return m_Port.write(src);
+		}
+	}
+
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		synchronized (m_WriteLock) {
+			checkOpen();
+			return m_Port.write(srcs, offset, length);
+		}
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm;
+
+/**
+ * A snapshot of the line error and traffic counters the driver keeps for a
+ * port, see {@link PureJavaSerialPort#getCounters()}.
+ * <p>
+ * The counters are cumulative since the driver instance was created, not since
+ * the port was opened, and they wrap around, so compare snapshots by
+ * subtracting them.
+ * <p>
+ * This is not part of the JavaComm API.
+ */
+public final class SerialPortCounters {
+	private final int m_Rx;
+	private final int m_Tx;
+	private final int m_Overrun;
+	private final int m_BufferOverrun;
+	private final int m_Parity;
+	private final int m_Frame;
+	private final int m_Break;
+
+	SerialPortCounters(int rx, int tx, int overrun, int bufferOverrun, int parity, int frame, int brk) {
+		m_Rx = rx;
+		m_Tx = tx;
+		m_Overrun = overrun;
+		m_BufferOverrun = bufferOverrun;
+		m_Parity = parity;
+		m_Frame = frame;
+		m_Break = brk;
+	}
+
+	/**
+	 * Returns the number of bytes received.
+	 */
+	public int getRx() {
+		return m_Rx;
+	}
+
+	/**
+	 * Returns the number of bytes transmitted.
+	 */
+	public int getTx() {
+		return m_Tx;
+	}
+
+	/**
+	 * Returns the number of hardware overruns, bytes lost because the UART
+	 * FIFO was not emptied in time.
+	 */
+	public int getOverrun() {
+		return m_Overrun;
+	}
+
+	/**
+	 * Returns the number of buffer overruns, bytes lost because the tty
+	 * buffer was full.
+	 */
+	public int getBufferOverrun() {
+		return m_BufferOverrun;
+	}
+
+	/**
+	 * Returns the number of parity errors.
+	 */
+	public int getParity() {
+		return m_Parity;
+	}
+
+	/**
+	 * Returns the number of framing errors.
+	 */
+	public int getFrame() {
+		return m_Frame;
+	}
+
+	/**
+	 * Returns the number of break conditions received.
+	 */
+	public int getBreak() {
+		return m_Break;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("rx=%d tx=%d overrun=%d bufoverrun=%d parity=%d frame=%d break=%d", m_Rx, m_Tx, m_Overrun, m_BufferOverrun, m_Parity, m_Frame, m_Break);
+	}
+}
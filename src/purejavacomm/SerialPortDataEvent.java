@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A <code>DATA_AVAILABLE</code> event that carries the received bytes.
+ * <p>
+ * These are sent instead of plain <code>DATA_AVAILABLE</code> events when
+ * push mode is enabled with
+ * {@link PureJavaSerialPort#enableDataAvailablePush(int)}. The event thread
+ * has already read the bytes from the port, so the listener must not read
+ * the port itself, it just consumes the buffer returned by
+ * {@link #getData()}.
+ * <p>
+ * The buffer comes from a small pool owned by the port. Calling
+ * {@link #release()} once done with it hands it back for reuse, after which
+ * the buffer must not be touched. Not calling release() is harmless, the
+ * buffer is then simply left to the garbage collector.
+ * <p>
+ * Like the source of the event, the buffer is not serialized, a
+ * deserialized event carries no data.
+ * <p>
+ * This is not part of the JavaComm API.
+ */
+public class SerialPortDataEvent extends SerialPortEvent {
+	private static final long serialVersionUID = -6231269786820268200L;
+	private final transient ByteBuffer m_Data;
+	private transient volatile boolean m_Released;
+
+	/* package */SerialPortDataEvent(PureJavaSerialPort source, ByteBuffer data) {
+		super(source, DATA_AVAILABLE, false, true);
+		m_Data = data;
+	}
+
+	/**
+	 * Returns the received bytes, from the buffer position up to its limit.
+	 * 
+	 * @return the received bytes, null if this event was deserialized
+	 */
+	public ByteBuffer getData() {
+		return m_Data;
+	}
+
+	/**
+	 * Returns the number of bytes received.
+	 * 
+	 * @return the number of bytes received
+	 */
+	public int getLength() {
+		return m_Data != null ? m_Data.limit() : 0;
+	}
+
+	/**
+	 * Returns the buffer to the port's pool, only the first call has an
+	 * effect.
+	 */
+	public void release() {
+		if (!m_Released && m_Data != null) {
+			m_Released = true;
+			((PureJavaSerialPort) getSource()).releaseDataBuffer(m_Data);
+		}
+	}
+}
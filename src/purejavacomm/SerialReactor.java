@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm;
+
+import com.sun.jna.Platform;
+
+import jtermios.JTermios;
+import jtermios.linux.Epoll;
+import static jtermios.JTermios.JTermiosLogging.*;
+
+/**
+ * Dispatches the events of many ports from a few threads.
+ * <p>
+ * Normally each {@link PureJavaSerialPort} with an event listener has its own
+ * event thread that poll()s the port. A reactor instead registers the port
+ * file descriptors with a few Linux epoll instances, each serviced by one
+ * thread which calls the listeners, so the number of threads does not grow
+ * with the number of ports. <code>DATA_AVAILABLE</code> (including push mode,
+ * see {@link PureJavaSerialPort#enableDataAvailablePush(int)}) and
+ * <code>OUTPUT_BUFFER_EMPTY</code> events are driven by epoll, control line
+ * events are polled every <code>purejavacomm.pollperiod</code> ms and only
+ * while some port on that thread asks for them.
+ * <p>
+ * A port must be registered before its event listener is added and stays
+ * registered until it is closed. Ports in buffered read mode can't be
+ * registered as their reader thread drains the port.
+ * <p>
+ * This is only available on Linux and is not part of the JavaComm API.
+ */
+public final class SerialReactor {
+	private final Worker[] m_Workers;
+	private int m_Next;
+	private volatile boolean m_Closed;
+
+	/**
+	 * Creates a reactor with one thread.
+	 */
+	public SerialReactor() {
+		this(1);
+	}
+
+	/**
+	 * Creates a reactor with the given number of threads, ports are spread
+	 * over them round robin.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             if not running on Linux
+	 */
+	public SerialReactor(int threads) {
+		if (!Platform.isLinux())
+			throw new UnsupportedOperationException("SerialReactor needs epoll, which is only available on Linux");
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads " + threads + " <= 0");
+		m_Workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			m_Workers[i] = new Worker("SerialReactor-" + i);
+			m_Workers[i].m_Thread.start();
+		}
+	}
+
+	/**
+	 * Registers a port with this reactor, after which the events for the
+	 * listener added with <code>addEventListener()</code> are dispatched by
+	 * one of the reactor threads instead of a thread of the port's own.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the port already has an event listener, is registered
+	 *             with a reactor or is in buffered read mode
+	 */
+	public synchronized void register(PureJavaSerialPort port) {
+		if (m_Closed)
+			throw new IllegalStateException("SerialReactor closed");
+		Worker worker = m_Workers[m_Next];
+		m_Next = (m_Next + 1) % m_Workers.length;
+		// the port lock is always taken before the worker lock
+		synchronized (port) {
+			worker.add(port);
+		}
+	}
+
+	/**
+	 * Stops the reactor threads. Registered ports are not closed but are
+	 * unregistered, so they no longer receive events until they are
+	 * registered with another reactor.
+	 */
+	public synchronized void close() {
+		if (m_Closed)
+			return;
+		m_Closed = true;
+		for (Worker worker : m_Workers)
+			worker.close();
+	}
+
+	/**
+	 * @return the number of ports currently registered
+	 */
+	public int getPortCount() {
+		int count = 0;
+		for (Worker worker : m_Workers)
+			count += worker.m_PortCount;
+		return count;
+	}
+
+	/**
+	 * @return how many times the reactor threads have returned from
+	 *         epoll_wait(), for measuring idle wakeups
+	 */
+	public long getWakeupCount() {
+		long count = 0;
+		for (Worker worker : m_Workers)
+			count += worker.m_Wakeups;
+		return count;
+	}
+
+	/**
+	 * One epoll instance and the thread servicing it. The ports are kept in
+	 * an array indexed by the cookie registered with epoll, so dispatching an
+	 * event does not need a map lookup, and the port remembers its slot. The
+	 * events each port is registered for are cached so that epoll_ctl() is
+	 * only called when they change. The descriptors are closed by the thread
+	 * itself when it exits, under the worker lock, so nobody uses them after
+	 * that and they are never closed under a thread that is still running.
+	 */
+	/* package */static final class Worker implements Runnable {
+		private static final int WAKEUP = -1;
+		private final Epoll m_Epoll = new Epoll(64);
+		private final Thread m_Thread;
+		private final int[] m_Pipe = new int[2];
+		private final byte[] m_Drain = new byte[16];
+		private volatile PureJavaSerialPort[] m_Ports = new PureJavaSerialPort[16];
+		private int[] m_Interest = new int[16];
+		private volatile boolean m_PollingLines;
+		private volatile int m_PortCount;
+		private volatile boolean m_Closed;
+		// set once the thread has closed the descriptors, guarded by this
+		private boolean m_Released;
+		private volatile long m_Wakeups;
+		private final int m_PollPeriod = Integer.getInteger("purejavacomm.pollperiod", 10);
+
+		Worker(String name) {
+			if (JTermios.pipe(m_Pipe) != 0)
+				throw new IllegalStateException("pipe() failed, errno " + JTermios.errno());
+			JTermios.fcntl(m_Pipe[0], JTermios.F_SETFL, JTermios.fcntl(m_Pipe[0], JTermios.F_GETFL, 0) | JTermios.O_NONBLOCK);
+			m_Epoll.add(m_Pipe[0], Epoll.EPOLLIN, WAKEUP);
+			m_Thread = new Thread(this, name);
+			m_Thread.setDaemon(true);
+		}
+
+		synchronized void add(PureJavaSerialPort port) {
+			if (m_Closed)
+				throw new IllegalStateException("SerialReactor closed");
+			PureJavaSerialPort[] ports = m_Ports;
+			int slot = 0;
+			while (slot < ports.length && ports[slot] != null)
+				slot++;
+			port.setReactor(this, slot);
+			if (slot == ports.length) {
+				PureJavaSerialPort[] grown = new PureJavaSerialPort[ports.length * 2];
+				System.arraycopy(ports, 0, grown, 0, ports.length);
+				ports = grown;
+				int[] interest = new int[grown.length];
+				System.arraycopy(m_Interest, 0, interest, 0, m_Interest.length);
+				m_Interest = interest;
+			}
+			ports[slot] = port;
+			m_Ports = ports;
+			m_PortCount++;
+			m_Interest[slot] = port.getReactorInterest();
+			if (m_Epoll.add(port.getNativeFileDescriptor(), m_Interest[slot], slot) != 0)
+				log = log && log(1, "epoll_ctl(ADD) for %s failed, errno %d\n", port.getName(), JTermios.errno());
+		}
+
+		synchronized void remove(PureJavaSerialPort port, int fd) {
+			int slot = port.getReactorSlot();
+			if (!m_Released && m_Ports[slot] == port) {
+				m_Epoll.remove(fd);
+				m_Ports[slot] = null;
+				m_PortCount--;
+			}
+		}
+
+		/**
+		 * Re-evaluates what the port wants to be notified about, called when
+		 * the notification settings change or a notification is re-armed by
+		 * a read() or write(). epoll picks the change up even while we are
+		 * blocked in epoll_wait() so there is no need to wake the thread up,
+		 * except for starting to poll the control lines.
+		 */
+		synchronized void update(PureJavaSerialPort port) {
+			int fd = port.getNativeFileDescriptor();
+			int slot = port.getReactorSlot();
+			if (fd < 0 || m_Released || m_Ports[slot] != port)
+				return;
+			int interest = port.getReactorInterest();
+			if (interest != m_Interest[slot]) {
+				m_Interest[slot] = interest;
+				m_Epoll.modify(fd, interest, slot);
+			}
+			if (!m_PollingLines && port.isReactorPollingLines())
+				wakeup();
+		}
+
+		// only call holding the worker lock
+		private void wakeup() {
+			if (!m_Released)
+				JTermios.write(m_Pipe[1], m_Drain, 1);
+		}
+
+		/**
+		 * Stops the thread and unregisters the ports, which may then be
+		 * registered with another reactor. Waits up to 2 s for the thread to
+		 * finish a listener call it may be in, unless called from a listener.
+		 */
+		void close() {
+			PureJavaSerialPort[] ports;
+			synchronized (this) {
+				m_Closed = true;
+				wakeup();
+				ports = m_Ports.clone();
+				m_Ports = new PureJavaSerialPort[m_Ports.length];
+				m_PortCount = 0;
+			}
+			// the port lock comes before the worker lock, so outside of it
+			for (PureJavaSerialPort port : ports)
+				if (port != null)
+					port.clearReactor(this);
+			if (Thread.currentThread() != m_Thread) {
+				try {
+					m_Thread.join(2000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private synchronized void release() {
+			m_Closed = true;
+			m_Released = true;
+			m_Epoll.close();
+			JTermios.close(m_Pipe[0]);
+			JTermios.close(m_Pipe[1]);
+		}
+
+		private boolean pollingLines(PureJavaSerialPort[] ports) {
+			for (PureJavaSerialPort port : ports)
+				if (port != null && port.isReactorPollingLines())
+					return true;
+			return false;
+		}
+
+		public void run() {
+			try {
+				dispatch();
+			} finally {
+				release();
+			}
+		}
+
+		private void dispatch() {
+			long nextLinePoll = 0;
+			while (!m_Closed) {
+				PureJavaSerialPort[] ports = m_Ports;
+				boolean lines = pollingLines(ports);
+				m_PollingLines = lines;
+				int timeout = -1;
+				if (lines)
+					timeout = (int) Math.max(0, (nextLinePoll - System.nanoTime()) / 1000000);
+				int n = m_Epoll.waitFor(timeout);
+				m_Wakeups++;
+				if (n < 0) {
+					if (JTermios.errno() == JTermios.EINTR)
+						continue;
+					log = log && log(1, "epoll_wait() failed, errno %d\n", JTermios.errno());
+					break;
+				}
+				ports = m_Ports;
+				for (int i = 0; i < n; i++) {
+					int slot = m_Epoll.getCookie(i);
+					if (slot == WAKEUP) {
+						while (JTermios.read(m_Pipe[0], m_Drain, m_Drain.length) > 0)
+							;
+						continue;
+					}
+					PureJavaSerialPort port = slot < ports.length ? ports[slot] : null;
+					if (port == null)
+						continue;
+					try {
+						port.reactorEvent(m_Epoll.getEvents(i));
+						update(port);
+					} catch (RuntimeException e) {
+						log = log && log(1, "event dispatch for %s threw %s\n", port.getName(), e);
+					}
+				}
+				if (lines && System.nanoTime() - nextLinePoll >= 0) {
+					for (PureJavaSerialPort port : ports) {
+						if (port != null) {
+							try {
+								port.reactorPollLines();
+							} catch (RuntimeException e) {
+								log = log && log(1, "control line poll for %s threw %s\n", port.getName(), e);
+							}
+						}
+					}
+					nextLinePoll = System.nanoTime() + m_PollPeriod * 1000000L;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import jtermios.JTermios;
+import jtermios.Pollfd;
+import static jtermios.JTermios.*;
+import static jtermios.JTermios.JTermiosLogging.*;
+
+/**
+ * Writes to ports in the background for
+ * {@link PureJavaSerialPort#writeAsync(ByteBuffer, boolean, boolean)}.
+ * <p>
+ * A port that does not have a writer set with
+ * {@link PureJavaSerialPort#setAsyncWriter(SerialWriter)} gets a writer of
+ * its own, a writer created here can be shared by any number of ports. The
+ * thread writes to a second, non blocking descriptor of each port which it
+ * waits on for <code>POLLOUT</code>, so a slow port never holds up the
+ * others and the blocking mode of the port itself is left alone.
+ * <p>
+ * Each port has an urgent and a bulk lane, both first in first out. Urgent
+ * writes are handed to the operating system as fast as it takes them, bulk
+ * writes only in chunks of <code>purejavacomm.bulkchunk</code> (default
+ * 256) bytes and only once the port reports <code>POLLOUT</code> again
+ * after the previous chunk, which on Linux is when fewer than 256 bytes are
+ * queued. So bulk data never fills the output queue of the driver and an
+ * urgent write overtakes it within about one chunk.
+ * <p>
+ * A write that is to complete when drained completes once the operating
+ * system reports with <code>TIOCOUTQ</code> that all of its bytes have been
+ * transmitted, where that is not supported the thread calls tcdrain().
+ * <p>
+ * This is not part of the JavaComm API.
+ */
+public final class SerialWriter implements Runnable {
+	private static final int CHUNK = Integer.getInteger("purejavacomm.bulkchunk", 256);
+	// how long to wait between TIOCOUTQ checks at most
+	private static final long DRAIN_POLL_NANOS = 100000000L;
+
+	private final Nudge m_Nudge;
+	private final Thread m_Thread;
+	private final boolean m_Private;
+	// guarded by this
+	private final ArrayList<Queue> m_Queues = new ArrayList<Queue>();
+	private Pollfd[] m_PollFDs = new Pollfd[0];
+	private Queue[] m_Polled = new Queue[0];
+	private boolean m_Closed;
+	private final ArrayList<Write> m_Removed = new ArrayList<Write>();
+	// only used by the writer thread
+	private final ArrayList<Write> m_Done = new ArrayList<Write>();
+	private final int[] m_OutQ = { 0 };
+
+	/**
+	 * A write waiting in a lane or for the output to drain.
+	 */
+	private static final class Write {
+		final ByteBuffer m_Buffer;
+		final CompletableFuture<Integer> m_Future = new CompletableFuture<Integer>();
+		final int m_Length;
+		final boolean m_Drain;
+		// the total number of bytes handed over once this one was
+		long m_Mark;
+		Throwable m_Failure;
+
+		Write(ByteBuffer buffer, boolean drain) {
+			m_Buffer = buffer;
+			m_Length = buffer.remaining();
+			m_Drain = drain;
+		}
+	}
+
+	/**
+	 * The lanes and the write descriptor of one port.
+	 */
+	/* package */static final class Queue {
+		final PureJavaSerialPort m_Port;
+		final int m_FD;
+		final boolean m_OwnFD;
+		final ArrayDeque<Write> m_Urgent = new ArrayDeque<Write>();
+		final ArrayDeque<Write> m_Bulk = new ArrayDeque<Write>();
+		final ArrayDeque<Write> m_Draining = new ArrayDeque<Write>();
+		boolean m_Writable = true;
+		boolean m_Closed;
+		// bytes handed over to the operating system in total
+		long m_Handed;
+
+		Queue(PureJavaSerialPort port, int fd, boolean ownFD) {
+			m_Port = port;
+			m_FD = fd;
+			m_OwnFD = ownFD;
+		}
+
+		boolean hasPending() {
+			return !m_Urgent.isEmpty() || !m_Bulk.isEmpty();
+		}
+	}
+
+	/**
+	 * Creates a writer that can be shared by many ports and starts its
+	 * thread.
+	 */
+	public SerialWriter() {
+		this("SerialWriter", false);
+	}
+
+	/* package */SerialWriter(String name, boolean privateWriter) {
+		m_Nudge = Nudge.open();
+		if (m_Nudge == null)
+			throw new IllegalStateException("eventfd() and pipe() failed, errno " + errno());
+		m_Private = privateWriter;
+		m_Thread = new Thread(this, name);
+		m_Thread.setDaemon(true);
+		m_Thread.start();
+	}
+
+	/**
+	 * Stops the writer thread, the writes still queued fail with an
+	 * {@link AsynchronousCloseException}. The ports are not closed, a port
+	 * can't write asynchronously once its writer has been closed.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (m_Closed)
+				return;
+			m_Closed = true;
+			m_Nudge.nudge();
+		}
+		if (Thread.currentThread() != m_Thread) {
+			try {
+				m_Thread.join(2000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Adds a port, called with the port locked. The writer gets its own non
+	 * blocking descriptor for the port, if the port can't be opened a second
+	 * time its own descriptor is used and writes may block the thread.
+	 */
+	/* package */synchronized Queue add(PureJavaSerialPort port, String name, int portFD) throws IOException {
+		if (m_Closed)
+			throw new IOException("SerialWriter closed");
+		int fd = open(name, O_RDWR | O_NOCTTY | O_NONBLOCK);
+		Queue queue = fd >= 0 ? new Queue(port, fd, true) : new Queue(port, portFD, false);
+		m_Queues.add(queue);
+		return queue;
+	}
+
+	/**
+	 * Queues a write, called with the port locked.
+	 */
+	/* package */synchronized CompletableFuture<Integer> submit(Queue queue, ByteBuffer buffer, boolean urgent, boolean drain) {
+		Write write = new Write(buffer, drain);
+		if (m_Closed || queue.m_Closed)
+			write.m_Future.completeExceptionally(new AsynchronousCloseException());
+		else {
+			(urgent ? queue.m_Urgent : queue.m_Bulk).add(write);
+			m_Nudge.nudge();
+		}
+		return write.m_Future;
+	}
+
+	/**
+	 * Removes a port that is being closed, called with the port locked before
+	 * its descriptor is closed. Nothing is written to the port after this
+	 * returns, as the thread only writes with this locked, and its queued
+	 * writes fail with an {@link AsynchronousCloseException}. A private writer
+	 * then stops.
+	 */
+	/* package */synchronized void remove(Queue queue) {
+		if (queue.m_Closed)
+			return;
+		queue.m_Closed = true;
+		m_Queues.remove(queue);
+		fail(queue, new AsynchronousCloseException(), m_Removed);
+		if (queue.m_OwnFD)
+			JTermios.close(queue.m_FD);
+		if (m_Private)
+			m_Closed = true;
+		m_Nudge.nudge();
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				int n;
+				long timeout;
+				synchronized (this) {
+					m_Done.addAll(m_Removed);
+					m_Removed.clear();
+					if (m_Closed)
+						break;
+					timeout = service();
+					n = m_Polled.length;
+				}
+				complete();
+				Pollfd[] fds = m_PollFDs;
+				fds[n].fd = m_Nudge.getFD();
+				fds[n].events = POLLIN;
+				int ready = poll(fds, n + 1, timeout < 0 ? -1 : (int) ((timeout + 999999) / 1000000));
+				if (ready < 0 && errno() != EINTR) {
+					log = log && log(1, "SerialWriter poll() failed, errno %d\n", errno());
+					break;
+				}
+				if (ready <= 0)
+					continue;
+				if ((fds[n].revents & POLLIN) != 0)
+					m_Nudge.drain();
+				synchronized (this) {
+					for (int i = 0; i < n; i++) {
+						Queue queue = m_Polled[i];
+						int revents = fds[i].revents;
+						if (queue.m_Closed)
+							continue;
+						if ((revents & (POLLERR | POLLNVAL)) != 0)
+							fail(queue, new IOException("writing to " + queue.m_Port.getName() + " failed, revents " + revents), m_Done);
+						else if ((revents & (POLLOUT | POLLHUP)) != 0)
+							queue.m_Writable = true;
+					}
+				}
+			}
+		} finally {
+			synchronized (this) {
+				m_Closed = true;
+				while (!m_Queues.isEmpty())
+					remove(m_Queues.get(0));
+				m_Done.addAll(m_Removed);
+				m_Removed.clear();
+			}
+			complete();
+			m_Nudge.close();
+		}
+	}
+
+	// writes what can be written and sets up m_PollFDs for the ports that
+	// need to wait for POLLOUT, returns the nanoseconds until the next drain
+	// check or -1, called with this locked
+	private long service() {
+		long timeout = -1;
+		int polled = 0;
+		for (Queue queue : m_Queues) {
+			writeUrgent(queue);
+			if (queue.m_Urgent.isEmpty() && queue.m_Writable && !queue.m_Bulk.isEmpty())
+				writeBulk(queue);
+			if (!queue.m_Draining.isEmpty()) {
+				long wait = checkDrained(queue);
+				if (wait >= 0 && (timeout < 0 || wait < timeout))
+					timeout = wait;
+			}
+			if (queue.hasPending())
+				polled++;
+		}
+		if (m_PollFDs.length < polled + 1) {
+			Pollfd[] fds = new Pollfd[polled + 1 + polled / 2];
+			System.arraycopy(m_PollFDs, 0, fds, 0, m_PollFDs.length);
+			for (int i = m_PollFDs.length; i < fds.length; i++)
+				fds[i] = new Pollfd();
+			m_PollFDs = fds;
+		}
+		if (m_Polled.length != polled)
+			m_Polled = new Queue[polled];
+		polled = 0;
+		for (Queue queue : m_Queues) {
+			if (queue.hasPending()) {
+				m_PollFDs[polled].fd = queue.m_FD;
+				m_PollFDs[polled].events = POLLOUT;
+				m_Polled[polled++] = queue;
+			}
+		}
+		return timeout;
+	}
+
+	private void writeUrgent(Queue queue) {
+		while (!queue.m_Urgent.isEmpty()) {
+			Write write = queue.m_Urgent.peek();
+			if (!write(queue, write, write.m_Buffer.remaining()))
+				return;
+			if (write.m_Buffer.hasRemaining()) {
+				queue.m_Writable = false;
+				return;
+			}
+			handed(queue, queue.m_Urgent.poll());
+		}
+	}
+
+	// one chunk, the next one waits for POLLOUT
+	private void writeBulk(Queue queue) {
+		Write write = queue.m_Bulk.peek();
+		if (!write(queue, write, Math.min(CHUNK, write.m_Buffer.remaining())))
+			return;
+		queue.m_Writable = false;
+		if (!write.m_Buffer.hasRemaining())
+			handed(queue, queue.m_Bulk.poll());
+	}
+
+	// returns false if the port failed
+	private boolean write(Queue queue, Write write, int length) {
+		ByteBuffer buffer = write.m_Buffer;
+		int limit = buffer.limit();
+		buffer.limit(buffer.position() + length);
+		int n = JTermios.write(queue.m_FD, buffer);
+		buffer.limit(limit);
+		if (n < 0) {
+			if (errno() == EAGAIN) {
+				queue.m_Writable = false;
+				return true;
+			}
+			fail(queue, new IOException("writing to " + queue.m_Port.getName() + " failed, errno " + errno()), m_Done);
+			return false;
+		}
+		queue.m_Handed += n;
+		queue.m_Port.asyncWritten();
+		return true;
+	}
+
+	private void handed(Queue queue, Write write) {
+		if (write.m_Drain) {
+			write.m_Mark = queue.m_Handed;
+			queue.m_Draining.add(write);
+		} else
+			m_Done.add(write);
+	}
+
+	// completes the writes that have been transmitted, returns how long to
+	// wait before checking again or -1
+	private long checkDrained(Queue queue) {
+		long transmitted;
+		if (ioctl(queue.m_FD, TIOCOUTQ, m_OutQ) == 0)
+			transmitted = queue.m_Handed - m_OutQ[0];
+		else {
+			if (tcdrain(queue.m_FD) < 0)
+				log = log && log(1, "SerialWriter tcdrain() failed, errno %d\n", errno());
+			transmitted = queue.m_Handed;
+		}
+		while (!queue.m_Draining.isEmpty() && queue.m_Draining.peek().m_Mark <= transmitted)
+			m_Done.add(queue.m_Draining.poll());
+		if (queue.m_Draining.isEmpty())
+			return -1;
+		long bytes = queue.m_Draining.peek().m_Mark - transmitted;
+		return Math.min(DRAIN_POLL_NANOS, Math.max(1000000L, bytes * queue.m_Port.getCharacterNanos()));
+	}
+
+	private static void fail(Queue queue, Throwable failure, ArrayList<Write> done) {
+		fail(queue.m_Urgent, failure, done);
+		fail(queue.m_Bulk, failure, done);
+		fail(queue.m_Draining, failure, done);
+	}
+
+	private static void fail(ArrayDeque<Write> lane, Throwable failure, ArrayList<Write> done) {
+		while (!lane.isEmpty()) {
+			Write write = lane.poll();
+			write.m_Failure = failure;
+			done.add(write);
+		}
+	}
+
+	// completes the futures without holding the lock, as dependent actions
+	// run right here
+	private void complete() {
+		for (int i = 0; i < m_Done.size(); i++) {
+			Write write = m_Done.get(i);
+			try {
+				if (write.m_Failure != null)
+					write.m_Future.completeExceptionally(write.m_Failure);
+				else
+					write.m_Future.complete(write.m_Length);
+			} catch (RuntimeException e) {
+				log = log && log(1, "SerialWriter completion threw %s\n", e);
+			}
+		}
+		m_Done.clear();
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lets any number of threads write frames to a port at the same time, see
+ * {@link PureJavaSerialPort#enableConcurrentWrites()}.
+ * <p>
+ * A producer links its frame into a lock free multiple producer, single
+ * consumer queue and then either becomes the drainer, if nobody is
+ * draining, or parks until its frame has been written. The drainer copies as
+ * many whole frames as fit into its batch buffer and writes them with a
+ * single write(), so under contention a handful of system calls carry the
+ * frames of many threads. Only the drainer ever writes, so the bytes of a
+ * frame are never interleaved with those of another one even if the write
+ * takes several system calls. Frames larger than the batch buffer are
+ * written on their own straight from the caller's buffers.
+ * <p>
+ * There is no thread of its own, the drainer is always one of the
+ * producers. To bound the time a producer spends writing for others it
+ * hands over to the producer of the oldest queued frame once its own frame
+ * is done and it has written {@link #MAX_BATCHES} more batches.
+ * <p>
+ * The queue is the intrusive one by Dmitry Vyukov, producers swap
+ * themselves in at the tail and then link the previous tail to their frame,
+ * the consumer follows the links from a stub, which is always the last
+ * frame taken.
+ */
+final class WriteCombiner {
+	private static final int BATCH = Integer.getInteger("purejavacomm.writebatch", 4096);
+	private static final int MAX_BATCHES = 16;
+	// how often a producer checks on its frame before it parks, spinning
+	// only makes sense if the drainer can run at the same time
+	private static final int SPINS = Runtime.getRuntime().availableProcessors() < 2 ? 0 : 64;
+
+	private final PureJavaSerialPort m_Port;
+	private final AtomicReference<Frame> m_Tail;
+	private final AtomicBoolean m_Draining = new AtomicBoolean();
+	// the rest is only used by the drainer, m_Draining publishes it from
+	// one drainer to the next
+	private volatile Frame m_Head;
+	private final ByteBuffer m_Batch;
+	private Frame[] m_Frames = new Frame[64];
+
+	/**
+	 * A frame, the buffers are not touched by the producer until m_Done is
+	 * set.
+	 */
+	private static final class Frame {
+		final ByteBuffer[] m_Buffers;
+		final int m_Offset;
+		final int m_Length;
+		final long m_Size;
+		final Thread m_Producer;
+		volatile Frame m_Next;
+		volatile boolean m_Done;
+		// written before m_Done
+		Throwable m_Failure;
+
+		Frame(ByteBuffer[] buffers, int offset, int length) {
+			m_Buffers = buffers;
+			m_Offset = offset;
+			m_Length = length;
+			long size = 0;
+			for (int i = offset; i < offset + length; i++)
+				size += buffers[i].remaining();
+			m_Size = size;
+			m_Producer = Thread.currentThread();
+		}
+
+		// copies the bytes without moving the buffer positions, they are
+		// only advanced by as much as actually got written
+		void copyTo(ByteBuffer batch) {
+			for (int i = m_Offset; i < m_Offset + m_Length; i++) {
+				ByteBuffer buffer = m_Buffers[i];
+				int position = buffer.position();
+				batch.put(buffer);
+				buffer.position(position);
+			}
+		}
+
+		void advance(long n) {
+			for (int i = m_Offset; i < m_Offset + m_Length && n > 0; i++) {
+				ByteBuffer buffer = m_Buffers[i];
+				int k = (int) Math.min(n, buffer.remaining());
+				buffer.position(buffer.position() + k);
+				n -= k;
+			}
+		}
+	}
+
+	WriteCombiner(PureJavaSerialPort port) {
+		m_Port = port;
+		m_Batch = ByteBuffer.allocateDirect(BATCH);
+		Frame stub = new Frame(new ByteBuffer[0], 0, 0);
+		m_Head = stub;
+		m_Tail = new AtomicReference<Frame>(stub);
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffers as one frame, blocking until
+	 * they have been handed over to the operating system.
+	 */
+	long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+		Frame frame = new Frame(buffers, offset, length);
+		if (frame.m_Size == 0)
+			return 0;
+		Frame previous = m_Tail.getAndSet(frame);
+		previous.m_Next = frame;
+		// once queued the frame can't be taken back, so an interrupt is
+		// only passed on to the caller afterwards
+		boolean interrupted = false;
+		int spins = SPINS;
+		while (!frame.m_Done) {
+			if (m_Draining.compareAndSet(false, true))
+				drain(frame);
+			else if (spins > 0)
+				spins--;
+			else {
+				LockSupport.park(this);
+				if (Thread.interrupted())
+					interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		Throwable failure = frame.m_Failure;
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure != null)
+			throw (Error) failure;
+		return frame.m_Size;
+	}
+
+	private void drain(Frame own) {
+		try {
+			int batches = 0;
+			Frame frame;
+			while ((frame = first()) != null) {
+				writeBatch(frame);
+				if (own.m_Done && ++batches > MAX_BATCHES)
+					break;
+			}
+		} finally {
+			m_Draining.set(false);
+		}
+		// Anyone who queued a frame while we were draining and found us
+		// draining did so before we let go above, so their frame is visible
+		// here. Waking up the oldest one is enough, it will drain them all.
+		Frame frame = first();
+		if (frame != null)
+			LockSupport.unpark(frame.m_Producer);
+	}
+
+	// the oldest frame in the queue or null, waits for a producer that has
+	// swapped in its frame but not yet linked it
+	private Frame first() {
+		Frame head = m_Head;
+		Frame next = head.m_Next;
+		while (next == null && m_Tail.get() != head) {
+			Thread.yield();
+			next = head.m_Next;
+		}
+		return next;
+	}
+
+	private void writeBatch(Frame frame) {
+		ByteBuffer batch = m_Batch;
+		if (frame.m_Size > batch.capacity()) {
+			m_Head = frame;
+			Throwable failure = null;
+			try {
+				m_Port.writeFully(frame.m_Buffers, frame.m_Offset, frame.m_Length);
+			} catch (IOException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+			done(frame, failure);
+			return;
+		}
+		batch.clear();
+		int n = 0;
+		// a frame that is not linked yet just goes into the next batch
+		while (frame != null && frame.m_Size <= batch.remaining()) {
+			frame.copyTo(batch);
+			if (n == m_Frames.length) {
+				Frame[] frames = new Frame[n * 2];
+				System.arraycopy(m_Frames, 0, frames, 0, n);
+				m_Frames = frames;
+			}
+			m_Frames[n++] = frame;
+			m_Head = frame;
+			frame = frame.m_Next;
+		}
+		batch.flip();
+		long written = batch.remaining();
+		Throwable failure = null;
+		try {
+			m_Port.writeFully(batch);
+		} catch (InterruptedIOException e) {
+			failure = e;
+			written = e.bytesTransferred;
+		} catch (IOException e) {
+			failure = e;
+			written = 0;
+		} catch (RuntimeException e) {
+			failure = e;
+			written = 0;
+		}
+		for (int i = 0; i < n; i++) {
+			frame = m_Frames[i];
+			m_Frames[i] = null;
+			long k = Math.max(0, Math.min(written, frame.m_Size));
+			written -= k;
+			frame.advance(k);
+			if (k == frame.m_Size)
+				done(frame, null);
+			else if (failure instanceof InterruptedIOException) {
+				// a write timeout, tell each frame how much of it got out
+				InterruptedIOException e = new InterruptedIOException("write timed out after " + k + " of " + frame.m_Size + " bytes");
+				e.bytesTransferred = (int) k;
+				done(frame, e);
+			} else
+				done(frame, failure);
+		}
+	}
+
+	private static void done(Frame frame, Throwable failure) {
+		frame.m_Failure = failure;
+		frame.m_Done = true;
+		if (frame.m_Producer != Thread.currentThread())
+			LockSupport.unpark(frame.m_Producer);
+	}
+}
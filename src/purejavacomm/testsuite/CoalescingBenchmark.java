@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.OutputStream;
+
+import jtermios.Pollfd;
+import purejavacomm.CommPortIdentifier;
+import purejavacomm.PureJavaSerialPort;
+import static jtermios.JTermios.*;
+
+/**
+ * Measures writing a byte at a time to the output stream of a port with and
+ * without output coalescing, and how long a lone byte takes to arrive at
+ * the master side of a pseudo terminal, which with coalescing is about the
+ * linger time. Linux only.
+ * <p>
+ * Usage: CoalescingBenchmark [bytes [buffer size [linger microseconds]]]
+ */
+public class CoalescingBenchmark {
+	private static volatile long m_Received;
+
+	public static void main(String[] args) throws Exception {
+		int bytes = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		int linger = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+		Pty pty = new Pty();
+		PureJavaSerialPort port = (PureJavaSerialPort) CommPortIdentifier.getPortIdentifier(pty.getSlaveName()).open("CoalescingBenchmark", 1000);
+		port.setSerialPortParams(115200, 8, 1, 0);
+		System.out.printf("%d bytes, %d byte buffer, %d us linger%n", bytes, size, linger);
+		throughput("warm up", pty, port, bytes / 10);
+		throughput("write(int)", pty, port, bytes);
+		latency("write(int)", pty, port, 200);
+		port.enableOutputCoalescing(size, linger);
+		throughput("warm up", pty, port, bytes / 10);
+		throughput("coalesced", pty, port, bytes);
+		latency("coalesced", pty, port, 200);
+		port.close();
+		pty.close();
+	}
+
+	private static void throughput(String name, final Pty pty, PureJavaSerialPort port, final int bytes) throws Exception {
+		OutputStream out = port.getOutputStream();
+		m_Received = 0;
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[64 * 1024];
+				long received = 0;
+				while (received < bytes) {
+					int n = pty.receive(buffer);
+					if (n <= 0)
+						break;
+					received += n;
+				}
+				m_Received = received;
+			}
+		});
+		reader.start();
+		long writes = ProcStats.writeCalls();
+		long t0 = System.nanoTime();
+		for (int i = 0; i < bytes; i++)
+			out.write(i);
+		out.flush();
+		reader.join();
+		long t = System.nanoTime() - t0;
+		writes = ProcStats.writeCalls() - writes;
+		if (!name.startsWith("warm up"))
+			System.out.printf("%-10s %10.0f bytes/s %7.4f writes/byte%n", name, m_Received * 1e9 / t, (double) writes / m_Received);
+	}
+
+	// a byte at a time without flushing, the way a chatty driver writes
+	private static void latency(String name, Pty pty, PureJavaSerialPort port, int rounds) throws Exception {
+		OutputStream out = port.getOutputStream();
+		Pollfd[] fds = { new Pollfd() };
+		fds[0].fd = pty.getMaster();
+		fds[0].events = POLLIN;
+		byte[] buffer = new byte[16];
+		long total = 0;
+		long max = 0;
+		for (int i = 0; i < rounds; i++) {
+			long t0 = System.nanoTime();
+			out.write(i);
+			if (poll(fds, 1, 1000) <= 0)
+				throw new IllegalStateException("no byte within a second");
+			long t = System.nanoTime() - t0;
+			pty.receive(buffer);
+			total += t;
+			max = Math.max(max, t);
+		}
+		System.out.printf("%-10s %10.1f us mean %7.1f us max for a lone byte%n", name, total / 1e3 / rounds, max / 1e3);
+	}
+}
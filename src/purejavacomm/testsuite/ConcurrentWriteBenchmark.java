@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import purejavacomm.CommPortIdentifier;
+import purejavacomm.PureJavaSerialPort;
+
+/**
+ * Measures the frames per second that a number of threads get through when
+ * they all write to the output stream of the same port, first with each
+ * thread taking a lock around its write() and then with concurrent writes
+ * enabled. A reader thread on the master side of a pseudo terminal checks
+ * that no frame has been torn apart. Linux only.
+ * <p>
+ * Usage: ConcurrentWriteBenchmark [frames per thread [frame size]]
+ */
+public class ConcurrentWriteBenchmark {
+	private static volatile long m_Received;
+	private static volatile boolean m_Torn;
+
+	public static void main(String[] args) throws Exception {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		Pty pty = new Pty();
+		PureJavaSerialPort port = (PureJavaSerialPort) CommPortIdentifier.getPortIdentifier(pty.getSlaveName()).open("ConcurrentWriteBenchmark", 1000);
+		port.setSerialPortParams(115200, 8, 1, 0);
+		System.out.printf("%d frames of %d bytes per figure%n", frames, size);
+		run("warm up", pty, port, frames / 10, size, 4, false);
+		run("warm up", pty, port, frames / 10, size, 4, true);
+		for (int producers : new int[] { 1, 4, 16 }) {
+			run("locked", pty, port, frames, size, producers, false);
+			run("concurrent", pty, port, frames, size, producers, true);
+		}
+		port.close();
+		pty.close();
+	}
+
+	private static void run(String name, final Pty pty, final PureJavaSerialPort port, int frames, final int size, int producers, boolean concurrent) throws Exception {
+		if (concurrent)
+			port.enableConcurrentWrites();
+		else
+			port.disableConcurrentWrites();
+		final OutputStream out = port.getOutputStream();
+		final long expected = (long) frames * size;
+		m_Received = 0;
+		m_Torn = false;
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				receive(pty, expected, size);
+			}
+		});
+		final int perThread = frames / producers;
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			final byte[] frame = new byte[size];
+			// every byte of a frame is the same, so a torn frame shows up
+			// as a block of mixed bytes at the reader
+			Arrays.fill(frame, (byte) ('A' + i));
+			final boolean locked = !concurrent;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int n = 0; n < perThread; n++) {
+							if (locked) {
+								synchronized (out) {
+									out.write(frame);
+								}
+							} else
+								out.write(frame);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		long writes = ProcStats.writeCalls();
+		long t0 = System.nanoTime();
+		reader.start();
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		reader.join();
+		long t = System.nanoTime() - t0;
+		writes = ProcStats.writeCalls() - writes;
+		long received = m_Received / size;
+		if (!name.startsWith("warm up"))
+			System.out.printf("%-10s %2d producers %9.0f frames/s %6.3f writes/frame%s%n", name, producers, received * 1e9 / t, (double) writes / received, m_Torn ? " TORN FRAMES" : "");
+	}
+
+	private static void receive(Pty pty, long expected, int size) {
+		byte[] buffer = new byte[64 * 1024];
+		byte[] frame = new byte[size];
+		int partial = 0;
+		long received = 0;
+		while (received < expected) {
+			int n = pty.receive(buffer);
+			if (n <= 0)
+				break;
+			for (int i = 0; i < n; i++) {
+				frame[partial++] = buffer[i];
+				if (partial == size) {
+					for (int j = 1; j < size; j++)
+						if (frame[j] != frame[0])
+							m_Torn = true;
+					partial = 0;
+				}
+			}
+			received += n;
+		}
+		m_Received = received;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+import static jtermios.JTermios.*;
+
+import java.nio.ByteBuffer;
+
+import jtermios.JTermios.JTermiosInterface;
+import jtermios.Pollfd;
+import jtermios.linux.JTermiosImpl;
+
+/**
+ * Compares the JNA and the Foreign Function and Memory API versions of the
+ * Linux backend for read, write, poll and ioctl on a pseudo terminal. The FFM
+ * version is only there on Java 22 and later when run from the multi-release
+ * jar with <code>--enable-native-access=ALL-UNNAMED</code> or
+ * <code>-Dpurejavacomm.ffm=true</code>, otherwise only the JNA figures are
+ * printed. Linux only.
+ * <p>
+ * Usage: ForeignBenchmark [iterations]
+ */
+public class ForeignBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		JTermiosInterface jna = new JTermiosImpl();
+		JTermiosInterface ffm = JTermiosImpl.newInstance();
+
+		Pty pty = new Pty();
+		int fd = open(pty.getSlaveName(), O_RDWR | O_NOCTTY | O_NONBLOCK);
+		if (fd < 0)
+			throw new IllegalStateException("open(" + pty.getSlaveName() + ") failed, errno " + errno());
+		jtermios.Termios termios = new jtermios.Termios();
+		tcgetattr(fd, termios);
+		cfmakeraw(fd, termios);
+		tcsetattr(fd, TCSANOW, termios);
+
+		System.out.printf("%d iterations per figure%n", iterations);
+		run("JNA", jna, pty.getMaster(), fd, iterations);
+		if (ffm.getClass() == JTermiosImpl.class)
+			System.out.println("FFM backend not available, needs Java 22, the multi-release jar and native access");
+		else
+			run("FFM", ffm, pty.getMaster(), fd, iterations);
+
+		jtermios.JTermios.close(fd);
+		pty.close();
+	}
+
+	private static void run(String name, final JTermiosInterface termios, final int master, final int fd, int iterations) {
+		final byte[] one = { 0x55 };
+		final byte[] array = new byte[64];
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+		final ByteBuffer heap = ByteBuffer.allocate(64);
+		final Pollfd[] pollfd = { new Pollfd() };
+		pollfd[0].fd = fd;
+		pollfd[0].events = POLLIN;
+		final int[] available = { 0 };
+
+		termios.write(master, one, 1); // so that poll() returns at once
+		NativeAllocationBenchmark.measure(name + " poll", iterations, new NativeAllocationBenchmark.Op() {
+			public void run() {
+				termios.poll(pollfd, 1, 0);
+			}
+		});
+		NativeAllocationBenchmark.measure(name + " ioctl FIONREAD", iterations, new NativeAllocationBenchmark.Op() {
+			public void run() {
+				termios.ioctl(fd, FIONREAD, available);
+			}
+		});
+		termios.read(fd, array, array.length);
+		NativeAllocationBenchmark.measure(name + " write+poll+read, byte[]", iterations, new NativeAllocationBenchmark.Op() {
+			public void run() {
+				termios.write(master, one, 1);
+				termios.poll(pollfd, 1, -1);
+				termios.read(fd, array, array.length);
+			}
+		});
+		NativeAllocationBenchmark.measure(name + " write+poll+read, direct", iterations, new NativeAllocationBenchmark.Op() {
+			public void run() {
+				buffer.clear().limit(1);
+				termios.write(master, buffer);
+				termios.poll(pollfd, 1, -1);
+				buffer.clear();
+				termios.read(fd, buffer);
+			}
+		});
+		NativeAllocationBenchmark.measure(name + " write+poll+read, heap", iterations, new NativeAllocationBenchmark.Op() {
+			public void run() {
+				heap.clear().limit(1);
+				termios.write(master, heap);
+				termios.poll(pollfd, 1, -1);
+				heap.clear();
+				termios.read(fd, heap);
+			}
+		});
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm.testsuite;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import purejavacomm.CommPortIdentifier;
+import purejavacomm.PureJavaSerialPort;
+import purejavacomm.SerialPortEvent;
+import purejavacomm.SerialPortEventListener;
+
+/**
+ * Measures how often the process wakes up, as context switches per second,
+ * while a number of pseudo terminals with event listeners sit idle: with no
+ * data, with DATA_AVAILABLE notified but not yet read, and with
+ * OUTPUT_BUFFER_EMPTY notified but nothing written since. Finally checks that
+ * a read re-arms DATA_AVAILABLE without any polling. Linux only.
+ * <p>
+ * Usage: IdleWakeupBenchmark [ports [seconds]]
+ */
+public class IdleWakeupBenchmark {
+	private static volatile int m_DataEvents;
+	private static volatile int m_OutputEvents;
+
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		System.out.printf("%d ports, %d s per phase%n", n, seconds);
+
+		Pty[] ptys = new Pty[n];
+		PureJavaSerialPort[] ports = new PureJavaSerialPort[n];
+		for (int i = 0; i < n; i++)
+			ptys[i] = new Pty();
+		Thread.sleep(500);
+		double baseline = measure("no ports open", 0, seconds, 0);
+
+		for (int i = 0; i < n; i++) {
+			ports[i] = (PureJavaSerialPort) CommPortIdentifier.getPortIdentifier(ptys[i].getSlaveName()).open("IdleWakeupBenchmark", 1000);
+			ports[i].addEventListener(new SerialPortEventListener() {
+				public void serialEvent(SerialPortEvent event) {
+					if (event.getEventType() == SerialPortEvent.DATA_AVAILABLE)
+						m_DataEvents++;
+					if (event.getEventType() == SerialPortEvent.OUTPUT_BUFFER_EMPTY)
+						m_OutputEvents++;
+				}
+			});
+			ports[i].notifyOnDataAvailable(true);
+		}
+		Thread.sleep(500);
+		measure("listening, no data", n, seconds, baseline);
+
+		byte[] data = { 0x55 };
+		for (Pty pty : ptys)
+			pty.send(data);
+		Thread.sleep(500);
+		measure("DATA_AVAILABLE notified, not read", n, seconds, baseline);
+		System.out.printf("  %d DATA_AVAILABLE events%n", m_DataEvents);
+
+		m_DataEvents = 0;
+		byte[] buffer = new byte[16];
+		for (PureJavaSerialPort port : ports) {
+			InputStream in = port.getInputStream();
+			in.read(buffer, 0, in.available());
+		}
+		for (Pty pty : ptys)
+			pty.send(data);
+		Thread.sleep(500);
+		System.out.printf("after reading and sending again: %d DATA_AVAILABLE events%n", m_DataEvents);
+
+		for (PureJavaSerialPort port : ports) {
+			port.notifyOnOutputEmpty(true);
+			OutputStream out = port.getOutputStream();
+			out.write(data);
+		}
+		Thread.sleep(500);
+		measure("OUTPUT_BUFFER_EMPTY notified, nothing written", n, seconds, baseline);
+		System.out.printf("  %d OUTPUT_BUFFER_EMPTY events%n", m_OutputEvents);
+
+		for (int i = 0; i < n; i++) {
+			ports[i].close();
+			ptys[i].close();
+		}
+	}
+
+	private static double measure(String name, int n, int seconds, double baseline) throws IOException, InterruptedException {
+		long switches0 = ProcStats.contextSwitches();
+		Thread.sleep(seconds * 1000L);
+		double rate = (double) (ProcStats.contextSwitches() - switches0) / seconds;
+		System.out.printf("%s: %.1f wakeups/s", name, rate);
+		if (n > 0)
+			System.out.printf(", %.2f/s per port over the baseline", (rate - baseline) / n);
+		System.out.println();
+		return rate;
+	}
+}
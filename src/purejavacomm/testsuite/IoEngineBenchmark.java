@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import static jtermios.JTermios.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+
+import jtermios.Pollfd;
+import purejavacomm.CommPortIdentifier;
+import purejavacomm.PureJavaSerialPort;
+import purejavacomm.SerialIoEngine;
+
+/**
+ * Compares the system calls per message of a gateway that answers every
+ * message on a number of pseudo terminals, first with a poll() over all
+ * ports followed by a read() and a write() per port, then with a
+ * {@link SerialIoEngine}. A generator thread sends a message to every port
+ * and waits for all the answers before it sends the next round, the system
+ * calls of the generator are not counted. Linux only.
+ * <p>
+ * Usage: IoEngineBenchmark [ports [rounds [message size]]]
+ */
+public class IoEngineBenchmark {
+	private static volatile boolean m_Done;
+	private static volatile long m_Bytes;
+
+	public static void main(String[] args) throws Exception {
+		int ports = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		System.out.printf("%d ports, %d rounds, %d byte messages%n", ports, rounds, size);
+		Pty[] ptys = new Pty[ports];
+		PureJavaSerialPort[] serial = new PureJavaSerialPort[ports];
+		for (int i = 0; i < ports; i++) {
+			ptys[i] = new Pty();
+			serial[i] = (PureJavaSerialPort) CommPortIdentifier.getPortIdentifier(ptys[i].getSlaveName()).open("IoEngineBenchmark", 1000);
+		}
+		run("warm up", ptys, serial, rounds / 10, size, false);
+		run("warm up", ptys, serial, rounds / 10, size, true);
+		run("poll+read+write", ptys, serial, rounds, size, false);
+		run("SerialIoEngine", ptys, serial, rounds, size, true);
+		for (int i = 0; i < ports; i++) {
+			serial[i].close();
+			ptys[i].close();
+		}
+	}
+
+	private static void run(String name, final Pty[] ptys, final PureJavaSerialPort[] ports, final int rounds, final int size, boolean engine) throws Exception {
+		m_Done = false;
+		m_Bytes = 0;
+		Thread generator = new Thread(new Runnable() {
+			public void run() {
+				generate(ptys, rounds, size);
+			}
+		});
+		long t0 = System.nanoTime();
+		generator.start();
+		long syscalls = engine ? engine(ports, size) : classic(ports, size);
+		generator.join();
+		long t = System.nanoTime() - t0;
+		long messages = m_Bytes / size;
+		if (!name.startsWith("warm up"))
+			System.out.printf("%-16s %8d messages %6.2f system calls/message %8.0f messages/s%n", name, messages, (double) syscalls / messages, messages * 1e9 / t);
+	}
+
+	// sends a message to every port and reads the answers, rounds times
+	private static void generate(Pty[] ptys, int rounds, int size) {
+		byte[] message = new byte[size];
+		byte[] buffer = new byte[size * 4];
+		Pollfd[] fds = new Pollfd[ptys.length];
+		for (int i = 0; i < ptys.length; i++) {
+			fds[i] = new Pollfd();
+			fds[i].fd = ptys[i].getMaster();
+			fds[i].events = POLLIN;
+		}
+		for (int r = 0; r < rounds; r++) {
+			for (Pty pty : ptys)
+				pty.send(message);
+			long expected = (long) size * ptys.length;
+			long received = 0;
+			while (received < expected) {
+				if (poll(fds, fds.length, 1000) <= 0)
+					break;
+				for (int i = 0; i < fds.length; i++)
+					if ((fds[i].revents & POLLIN) != 0)
+						received += Math.max(0, ptys[i].receive(buffer));
+			}
+			m_Bytes += received;
+		}
+		m_Done = true;
+	}
+
+	// one poll() over all ports, then read() and write() the readable ones
+	private static long classic(PureJavaSerialPort[] ports, int size) {
+		Pollfd[] fds = new Pollfd[ports.length];
+		for (int i = 0; i < ports.length; i++) {
+			fds[i] = new Pollfd();
+			fds[i].fd = ports[i].getNativeFileDescriptor();
+			fds[i].events = POLLIN;
+		}
+		byte[] buffer = new byte[size * 4];
+		long syscalls = 0;
+		while (!m_Done) {
+			int n = poll(fds, fds.length, 10);
+			syscalls++;
+			for (int i = 0; n > 0 && i < fds.length; i++) {
+				if ((fds[i].revents & POLLIN) != 0) {
+					int len = read(fds[i].fd, buffer, buffer.length);
+					syscalls++;
+					if (len > 0) {
+						write(fds[i].fd, buffer, len);
+						syscalls++;
+					}
+				}
+			}
+		}
+		return syscalls;
+	}
+
+	// every port echoes what it reads with an engine read and write
+	private static long engine(final PureJavaSerialPort[] ports, int size) throws Exception {
+		final SerialIoEngine engine = new SerialIoEngine(4 * ports.length);
+		final CompletionHandler<Integer, Echo> written = new CompletionHandler<Integer, Echo>() {
+			public void completed(Integer result, Echo echo) {
+				echo.read(engine);
+			}
+
+			public void failed(Throwable t, Echo echo) {
+			}
+		};
+		final CompletionHandler<Integer, Echo> read = new CompletionHandler<Integer, Echo>() {
+			public void completed(Integer result, Echo echo) {
+				echo.m_Buffer.flip();
+				try {
+					engine.write(echo.m_Port, echo.m_Buffer, echo, written);
+				} catch (ClosedChannelException e) {
+				}
+			}
+
+			public void failed(Throwable t, Echo echo) {
+			}
+		};
+		for (PureJavaSerialPort port : ports)
+			new Echo(port, size, read).read(engine);
+		while (!m_Done)
+			Thread.sleep(10);
+		long enters = engine.getEnterCount();
+		engine.close();
+		return enters;
+	}
+
+	private static final class Echo {
+		final PureJavaSerialPort m_Port;
+		final ByteBuffer m_Buffer;
+		final CompletionHandler<Integer, Echo> m_Read;
+
+		Echo(PureJavaSerialPort port, int size, CompletionHandler<Integer, Echo> read) {
+			m_Port = port;
+			m_Buffer = ByteBuffer.allocateDirect(size * 4);
+			m_Read = read;
+		}
+
+		void read(SerialIoEngine engine) {
+			m_Buffer.clear();
+			try {
+				engine.read(m_Port, m_Buffer, this, m_Read);
+			} catch (ClosedChannelException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm.testsuite;
+import static jtermios.JTermios.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import jtermios.JTermios.FDSet;
+import jtermios.Pollfd;
+import jtermios.Termios;
+import jtermios.TimeVal;
+
+/**
+ * Measures the Java heap allocated per call by the JTermios calls on the
+ * read path, on a pseudo terminal so that no serial hardware is needed.
+ * Each figure is taken over a large number of calls after a warm up, so
+ * anything above zero is garbage made by every call. Needs a JVM that
+ * implements com.sun.management.ThreadMXBean, Linux only.
+ * <p>
+ * Usage: NativeAllocationBenchmark [iterations]
+ */
+public class NativeAllocationBenchmark {
+	private static com.sun.management.ThreadMXBean m_Bean;
+
+	interface Op {
+		void run();
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		final Pty pty = new Pty();
+		final int fd = open(pty.getSlaveName(), O_RDWR | O_NOCTTY | O_NONBLOCK);
+		if (fd < 0)
+			throw new IllegalStateException("open(" + pty.getSlaveName() + ") failed, errno " + errno());
+		final Termios termios = new Termios();
+		tcgetattr(fd, termios);
+		cfmakeraw(fd, termios);
+		tcsetattr(fd, TCSANOW, termios);
+
+		final byte[] one = { 0x55 };
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+		final byte[] array = new byte[64];
+		final Pollfd[] pollfd = { new Pollfd() };
+		pollfd[0].fd = fd;
+		pollfd[0].events = POLLIN;
+		final FDSet rset = newFDSet();
+		final TimeVal timeout = new TimeVal();
+
+		System.out.printf("%d iterations per figure%n", iterations);
+		write(pty.getMaster(), one, 1); // so that poll() and select() return at once
+		measure("poll", iterations, new Op() {
+			public void run() {
+				poll(pollfd, 1, 0);
+			}
+		});
+		measure("select", iterations, new Op() {
+			public void run() {
+				FD_ZERO(rset);
+				FD_SET(fd, rset);
+				select(fd + 1, rset, null, null, timeout);
+			}
+		});
+		measure("write+poll+read, direct ByteBuffer", iterations, new Op() {
+			public void run() {
+				write(pty.getMaster(), one, 1);
+				poll(pollfd, 1, -1);
+				buffer.clear();
+				read(fd, buffer);
+			}
+		});
+		measure("write+poll+read, byte[]", iterations, new Op() {
+			public void run() {
+				write(pty.getMaster(), one, 1);
+				poll(pollfd, 1, -1);
+				read(fd, array, array.length);
+			}
+		});
+		measure("tcgetattr+tcsetattr", iterations / 10, new Op() {
+			public void run() {
+				tcgetattr(fd, termios);
+				tcsetattr(fd, TCSANOW, termios);
+			}
+		});
+
+		jtermios.JTermios.close(fd);
+		pty.close();
+	}
+
+	// runs op iterations times after as many warm up runs and prints the
+	// heap allocated and the time taken per run
+	static void measure(String name, int iterations, Op op) {
+		if (m_Bean == null) {
+			m_Bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			m_Bean.setThreadAllocatedMemoryEnabled(true);
+		}
+		for (int i = 0; i < iterations; i++) // warm up
+			op.run();
+		long id = Thread.currentThread().getId();
+		long bytes0 = m_Bean.getThreadAllocatedBytes(id);
+		long t0 = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			op.run();
+		long t = System.nanoTime() - t0;
+		long bytes = m_Bean.getThreadAllocatedBytes(id) - bytes0;
+		System.out.printf("%-40s %8.1f B/op %8.0f ns/op%n", name, (double) bytes / iterations, (double) t / iterations);
+	}
+}
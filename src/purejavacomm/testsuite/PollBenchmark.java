@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm.testsuite;
+import static jtermios.JTermios.*;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+
+import jtermios.Pollfd;
+import jtermios.TimeSpec;
+import jtermios.linux.JTermiosImpl;
+
+/**
+ * Compares the per call cost of poll() through a JNA interface mapping with
+ * Structure arguments, the way the Linux backend used to call it, with the
+ * direct mapping over preallocated native memory that JTermios uses now. The
+ * descriptor always has data pending so that the figures are the call
+ * overhead rather than waiting. Linux only.
+ * <p>
+ * Usage: PollBenchmark [iterations]
+ */
+public class PollBenchmark {
+	public interface InterfaceMappedCLib extends Library {
+		public int poll(JTermiosImpl.pollfd.ByReference pfds, int nfds, int timeout);
+	}
+
+	// Native.load() only exists from JNA 5 on, we build against older ones
+	@SuppressWarnings("deprecation")
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+		final InterfaceMappedCLib clib = (InterfaceMappedCLib) Native.loadLibrary(Platform.C_LIBRARY_NAME, InterfaceMappedCLib.class);
+
+		Pty pty = new Pty();
+		final int fd = open(pty.getSlaveName(), O_RDWR | O_NOCTTY | O_NONBLOCK);
+		if (fd < 0)
+			throw new IllegalStateException("open(" + pty.getSlaveName() + ") failed, errno " + errno());
+		write(pty.getMaster(), new byte[] { 0x55 }, 1);
+
+		final Pollfd[] fds = { new Pollfd(), new Pollfd() };
+		fds[0].fd = fd;
+		fds[0].events = POLLIN;
+		fds[1].fd = pty.getMaster();
+		fds[1].events = POLLIN;
+		final TimeSpec zero = new TimeSpec();
+
+		System.out.printf("%d iterations per figure, 2 descriptors per call%n", iterations);
+		NativeAllocationBenchmark.measure("interface mapped poll(), Structures", iterations, new NativeAllocationBenchmark.Op() {
+			public void run() {
+				// this is what the backend did for every call
+				JTermiosImpl.pollfd.ByReference parampfds = new JTermiosImpl.pollfd.ByReference();
+				JTermiosImpl.pollfd[] pfds = (JTermiosImpl.pollfd[]) parampfds.toArray(2);
+				for (int i = 0; i < 2; i++) {
+					pfds[i].fd = fds[i].fd;
+					pfds[i].events = fds[i].events;
+				}
+				clib.poll(parampfds, 2, 0);
+				for (int i = 0; i < 2; i++)
+					fds[i].revents = pfds[i].revents;
+			}
+		});
+		NativeAllocationBenchmark.measure("direct mapped poll(), native memory", iterations, new NativeAllocationBenchmark.Op() {
+			public void run() {
+				poll(fds, 2, 0);
+			}
+		});
+		NativeAllocationBenchmark.measure("direct mapped ppoll(), native memory", iterations, new NativeAllocationBenchmark.Op() {
+			public void run() {
+				ppoll(fds, 2, zero);
+			}
+		});
+		if ((fds[0].revents & POLLIN) == 0)
+			System.out.println("poll() did not see the pending data");
+
+		jtermios.JTermios.close(fd);
+		pty.close();
+	}
+}
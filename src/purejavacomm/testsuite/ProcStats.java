@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm.testsuite;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Figures from /proc for the benchmarks, Linux only.
+ */
+class ProcStats {
+	// unlike the heap this includes the thread stacks
+	static long residentSetSize() throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				if (line.startsWith("VmRSS:"))
+					return 1024 * Long.parseLong(line.substring(6).replace("kB", "").trim());
+		} finally {
+			reader.close();
+		}
+		return 0;
+	}
+
+	// sum of the context switches of all threads of this process, which is
+	// a fair measure of how often they wake up
+	static long contextSwitches() throws IOException {
+		long sum = 0;
+		File[] tasks = new File("/proc/self/task").listFiles();
+		if (tasks == null)
+			return 0;
+		for (File task : tasks) {
+			BufferedReader reader;
+			try {
+				reader = new BufferedReader(new FileReader(new File(task, "status")));
+			} catch (IOException e) {
+				continue; // the thread is gone
+			}
+			try {
+				String line;
+				while ((line = reader.readLine()) != null)
+					if (line.contains("ctxt_switches:"))
+						sum += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+			} finally {
+				reader.close();
+			}
+		}
+		return sum;
+	}
+
+	// the write(), writev() and so on system calls made by this process,
+	// including those of threads that have finished
+	static long writeCalls() throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader("/proc/self/io"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				if (line.startsWith("syscw:"))
+					return Long.parseLong(line.substring(6).trim());
+		} finally {
+			reader.close();
+		}
+		return 0;
+	}
+}
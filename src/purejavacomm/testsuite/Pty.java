@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm.testsuite;
+
+import static jtermios.JTermios.*;
+
+import jtermios.Termios;
+
+/**
+ * A Linux pseudo terminal pair for the benchmarks, so that they can be run
+ * without any serial hardware. The slave side is opened as a port with
+ * <code>CommPortIdentifier.getPortIdentifier(pty.getSlaveName())</code> and
+ * the master side stands in for the device at the other end of the cable.
+ */
+class Pty {
+	private static final int TIOCGPTN = 0x80045430;
+	private static final int TIOCSPTLCK = 0x40045431;
+
+	private final int m_Master;
+	private final String m_SlaveName;
+
+	Pty() {
+		m_Master = open("/dev/ptmx", O_RDWR | O_NOCTTY);
+		if (m_Master < 0)
+			throw new IllegalStateException("open(/dev/ptmx) failed, errno " + errno());
+		int[] n = { 0 };
+		if (ioctl(m_Master, TIOCSPTLCK, n) < 0 || ioctl(m_Master, TIOCGPTN, n) < 0)
+			throw new IllegalStateException("unlocking the pty failed, errno " + errno());
+		m_SlaveName = "/dev/pts/" + n[0];
+		// no echo or translation on the master side
+		Termios termios = new Termios();
+		tcgetattr(m_Master, termios);
+		cfmakeraw(m_Master, termios);
+		tcsetattr(m_Master, TCSANOW, termios);
+	}
+
+	String getSlaveName() {
+		return m_SlaveName;
+	}
+
+	int getMaster() {
+		return m_Master;
+	}
+
+	void send(byte[] data) {
+		write(m_Master, data, data.length);
+	}
+
+	int receive(byte[] buffer) {
+		return read(m_Master, buffer, buffer.length);
+	}
+
+	void close() {
+		jtermios.JTermios.close(m_Master);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, 
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list 
+ * of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this 
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *  
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its 
+ * contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT 
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+
+package purejavacomm.testsuite;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import purejavacomm.CommPortIdentifier;
+import purejavacomm.PureJavaSerialPort;
+import purejavacomm.SerialPortEvent;
+import purejavacomm.SerialPortEventListener;
+import purejavacomm.SerialReactor;
+
+/**
+ * Compares the per port event threads with a {@link SerialReactor} on a
+ * number of pseudo terminals: threads, resident memory and idle wakeups per
+ * port and events delivered under light traffic. Linux only.
+ * <p>
+ * Usage: ReactorBenchmark [ports [seconds [reactor threads]]]
+ */
+public class ReactorBenchmark {
+	private static volatile long m_Events;
+
+	public static void main(String[] args) throws Exception {
+		int ports = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		System.out.printf("%d ports, %d s per phase, %d reactor threads%n", ports, seconds, threads);
+		run("warm up", ports, 1, 0); // so that class loading and JIT do not count
+		run("event thread per port", ports, seconds, 0);
+		run("reactor", ports, seconds, threads);
+	}
+
+	private static void run(String name, int n, int seconds, int reactorThreads) throws Exception {
+		Pty[] ptys = new Pty[n];
+		PureJavaSerialPort[] ports = new PureJavaSerialPort[n];
+		for (int i = 0; i < n; i++)
+			ptys[i] = new Pty();
+		int threads0 = Thread.activeCount();
+		gc();
+		long rss0 = ProcStats.residentSetSize();
+		SerialReactor reactor = reactorThreads > 0 ? new SerialReactor(reactorThreads) : null;
+		for (int i = 0; i < n; i++) {
+			ports[i] = (PureJavaSerialPort) CommPortIdentifier.getPortIdentifier(ptys[i].getSlaveName()).open("ReactorBenchmark", 1000);
+			if (reactor != null)
+				reactor.register(ports[i]);
+			final InputStream in = ports[i].getInputStream();
+			final byte[] buffer = new byte[256];
+			ports[i].addEventListener(new SerialPortEventListener() {
+				public void serialEvent(SerialPortEvent event) {
+					try {
+						if (event.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
+							m_Events++;
+							in.read(buffer, 0, in.available());
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			ports[i].notifyOnDataAvailable(true);
+		}
+		Thread.sleep(500);
+		int threads = Thread.activeCount() - threads0;
+		gc();
+		long rss = ProcStats.residentSetSize() - rss0;
+
+		long switches0 = ProcStats.contextSwitches();
+		long wakeups0 = reactor != null ? reactor.getWakeupCount() : 0;
+		Thread.sleep(seconds * 1000L);
+		long idle = ProcStats.contextSwitches() - switches0;
+		long reactorIdle = reactor != null ? reactor.getWakeupCount() - wakeups0 : 0;
+
+		m_Events = 0;
+		byte[] data = { 0x55 };
+		long t0 = System.currentTimeMillis();
+		long sent = 0;
+		while (System.currentTimeMillis() - t0 < seconds * 1000L) {
+			for (Pty pty : ptys)
+				pty.send(data);
+			sent += n;
+			Thread.sleep(10);
+		}
+		Thread.sleep(200);
+
+		System.out.printf("%s:%n", name);
+		System.out.printf("  threads %d, %.2f per port%n", threads, (double) threads / n);
+		System.out.printf("  resident memory %d bytes per port%n", rss / n);
+		System.out.printf("  idle context switches %.1f/s per port", (double) idle / seconds / n);
+		if (reactor != null)
+			System.out.printf(", epoll wakeups %.1f/s in total", (double) reactorIdle / seconds);
+		System.out.println();
+		System.out.printf("  traffic: %d bytes sent, %d DATA_AVAILABLE events%n", sent, m_Events);
+
+		for (int i = 0; i < n; i++) {
+			ports[i].close();
+			ptys[i].close();
+		}
+		if (reactor != null)
+			reactor.close();
+	}
+
+	private static void gc() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+	}
+}
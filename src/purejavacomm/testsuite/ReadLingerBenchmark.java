@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+
+import purejavacomm.CommPortIdentifier;
+import purejavacomm.PureJavaSerialPort;
+
+/**
+ * Counts the reads it takes to receive messages that trickle in a byte or
+ * two at a time, the way a device at a high baud rate that writes byte by
+ * byte sends them, with and without the receive linger. The other end of a
+ * pseudo terminal stands in for the device. Linux only.
+ * <p>
+ * Usage: ReadLingerBenchmark [messages [message size [linger microseconds]]]
+ */
+public class ReadLingerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int linger = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+		Pty pty = new Pty();
+		PureJavaSerialPort port = (PureJavaSerialPort) CommPortIdentifier.getPortIdentifier(pty.getSlaveName()).open("ReadLingerBenchmark", 1000);
+		port.setSerialPortParams(115200, 8, 1, 0);
+		System.out.printf("%d messages of %d bytes, %d us linger%n", messages, size, linger);
+		run("warm up", pty, port, messages / 10, size);
+		run("no linger", pty, port, messages, size);
+		port.enableReceiveLinger(linger);
+		run("warm up", pty, port, messages / 10, size);
+		run("linger", pty, port, messages, size);
+		port.close();
+		pty.close();
+	}
+
+	private static void run(String name, final Pty pty, PureJavaSerialPort port, final int messages, final int size) throws Exception {
+		InputStream in = port.getInputStream();
+		Thread device = new Thread(new Runnable() {
+			public void run() {
+				byte[] one = { 0x55 };
+				for (int m = 0; m < messages; m++) {
+					for (int i = 0; i < size; i++) {
+						pty.send(one);
+						// about the time a byte takes at 115200 baud
+						LockSupport.parkNanos(80000);
+					}
+					// idle line between the messages
+					LockSupport.parkNanos(5000000);
+				}
+			}
+		});
+		device.start();
+		byte[] buffer = new byte[4096];
+		long expected = (long) messages * size;
+		long received = 0;
+		long reads = 0;
+		while (received < expected) {
+			int n = in.read(buffer);
+			if (n < 0)
+				break;
+			received += n;
+			reads++;
+		}
+		device.join();
+		if (!name.startsWith("warm up"))
+			System.out.printf("%-10s %8d reads %6.2f reads/message %6.1f bytes/read%n", name, reads, (double) reads / messages, (double) received / reads);
+	}
+}
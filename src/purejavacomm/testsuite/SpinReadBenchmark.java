@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import purejavacomm.CommPortIdentifier;
+import purejavacomm.PureJavaSerialPort;
+
+/**
+ * Measures the round trip time of a request that an echo thread on the
+ * master side of a pseudo terminal sends straight back, with the reads
+ * blocking in poll() and in spin read mode. Linux only.
+ * <p>
+ * Usage: SpinReadBenchmark [round trips [message size [max spin microseconds]]]
+ */
+public class SpinReadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int spin = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		final Pty pty = new Pty();
+		PureJavaSerialPort port = (PureJavaSerialPort) CommPortIdentifier.getPortIdentifier(pty.getSlaveName()).open("SpinReadBenchmark", 1000);
+		port.setSerialPortParams(115200, 8, 1, 0);
+		port.enableReceiveThreshold(size);
+		Thread echo = new Thread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[1024];
+				int n;
+				while ((n = pty.receive(buffer)) > 0)
+					pty.send(Arrays.copyOf(buffer, n));
+			}
+		});
+		echo.setDaemon(true);
+		echo.start();
+		System.out.printf("%d round trips of %d bytes, %d us max spin%n", rounds, size, spin);
+		run("warm up", port, rounds / 10, size);
+		run("poll", port, rounds, size);
+		port.enableSpinRead(spin);
+		run("warm up", port, rounds / 10, size);
+		long spins = port.getSpinReadCount();
+		long parks = port.getParkedReadCount();
+		run("spin", port, rounds, size);
+		System.out.printf("spin budget %d us, %d reads spun, %d parked%n", port.getSpinBudgetNanos() / 1000, port.getSpinReadCount() - spins, port.getParkedReadCount() - parks);
+		port.close();
+		pty.close();
+	}
+
+	private static void run(String name, PureJavaSerialPort port, int rounds, int size) throws Exception {
+		OutputStream out = port.getOutputStream();
+		InputStream in = port.getInputStream();
+		byte[] message = new byte[size];
+		byte[] answer = new byte[size];
+		long[] times = new long[rounds];
+		for (int r = 0; r < rounds; r++) {
+			long t0 = System.nanoTime();
+			out.write(message);
+			int received = 0;
+			while (received < size) {
+				int n = in.read(answer, received, size - received);
+				if (n <= 0)
+					throw new IllegalStateException("no answer");
+				received += n;
+			}
+			times[r] = System.nanoTime() - t0;
+		}
+		Arrays.sort(times);
+		if (!name.startsWith("warm up"))
+			System.out.printf("%-6s p50 %6.1f us p99 %7.1f us p99.9 %7.1f us max %8.1f us%n", name, times[rounds / 2] / 1e3, times[rounds * 99 / 100] / 1e3, times[rounds * 999 / 1000] / 1e3, times[rounds - 1] / 1e3);
+	}
+}
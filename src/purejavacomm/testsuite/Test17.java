@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.InputStream;
+
+import purejavacomm.PureJavaSerialPort;
+
+public class Test17 extends TestBase {
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		for (String mode : READ_MODES)
+			run(mode);
+	}
+
+	private static void run(String mode) throws Exception {
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test17 - threshold/timeout, " + modeName(mode));
+			port = openPty(pty, mode);
+			InputStream in = port.getInputStream();
+			byte[] buffer = new byte[2000];
+
+			// timeout alone, nothing arrives, in raw read mode the timeout is
+			// VTIME which only starts with the first byte so there this blocks
+			port.enableReceiveTimeout(200);
+			long t0 = System.currentTimeMillis();
+			int n = 0;
+			long t = 200;
+			if (!"purejavacomm.rawreadmode".equals(mode)) {
+				n = in.read(buffer);
+				t = System.currentTimeMillis() - t0;
+			}
+			if (n != 0 || t < 150 || t > 700)
+				fail("timeout 200 ms: read %d bytes in %d ms", n, t);
+
+			// the threshold is reached in three parts
+			port.enableReceiveTimeout(1000);
+			port.enableReceiveThreshold(10);
+			sendLater(pty, 0, new byte[10], 4, 100);
+			n = in.read(buffer);
+			if (n != 10)
+				fail("threshold 10: read %d bytes", n);
+
+			// the threshold is not reached before the timeout
+			port.enableReceiveTimeout(300);
+			sendLater(pty, 0, new byte[4], 4, 0);
+			t0 = System.currentTimeMillis();
+			n = in.read(buffer);
+			t = System.currentTimeMillis() - t0;
+			if (n != 4 || t < 200 || t > 1000)
+				fail("threshold 10, timeout 300 ms: read %d bytes in %d ms", n, t);
+
+			// a threshold above what VMIN can hold, in 100 byte chunks
+			port.enableReceiveTimeout(2000);
+			port.enableReceiveThreshold(1000);
+			sendLater(pty, 0, new byte[1000], 100, 20);
+			t0 = System.currentTimeMillis();
+			n = in.read(buffer);
+			t = System.currentTimeMillis() - t0;
+			if (n != 1000)
+				fail("threshold 1000, timeout 2000 ms: read %d bytes in %d ms", n, t);
+
+			// neither, the read returns what is there once there is something
+			port.disableReceiveTimeout();
+			port.disableReceiveThreshold();
+			sendLater(pty, 100, new byte[3], 3, 0);
+			n = in.read(buffer);
+			if (n != 3)
+				fail("no threshold, no timeout: read %d bytes", n);
+
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+}
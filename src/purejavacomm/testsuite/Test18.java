@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.InputStream;
+
+import purejavacomm.PureJavaSerialPort;
+
+public class Test18 extends TestBase {
+	// default mode sets VMIN/VTIME once for the first read, the other two
+	// wait in poll() and never touch termios for a read
+	private static final String[] MODES = { null, "purejavacomm.optimisticread", "purejavacomm.pollreadmode" };
+
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		for (String mode : MODES)
+			run(mode);
+	}
+
+	private static void run(String mode) throws Exception {
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test18 - termios updates, " + modeName(mode));
+			port = openPty(pty, mode);
+			InputStream in = port.getInputStream();
+			byte[] buffer = new byte[100];
+			port.enableReceiveTimeout(100);
+			int count = port.getTermiosUpdateCount();
+			for (int i = 0; i < 20; i++) {
+				// every other read has data waiting, the others time out
+				if (i % 2 == 0)
+					pty.send(new byte[8]);
+				int n = in.read(buffer);
+				if (n != (i % 2 == 0 ? 8 : 0))
+					fail("read %d returned %d", i, n);
+			}
+			int updates = port.getTermiosUpdateCount() - count;
+			if (updates != (mode == null ? 1 : 0))
+				fail("20 reads made %d tcsetattr() calls", updates);
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+}
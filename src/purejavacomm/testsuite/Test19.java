@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.nio.ByteBuffer;
+
+import purejavacomm.PureJavaSerialPort;
+
+public class Test19 extends TestBase {
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		for (String mode : READ_MODES)
+			run(mode);
+	}
+
+	private static void run(String mode) throws Exception {
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test19 - ByteBuffer read/write, " + modeName(mode));
+			port = openPty(pty, mode);
+			port.enableReceiveTimeout(1000);
+			byte[] data = { 1, 2, 3, 4, 5, 6, 7, 8 };
+			ByteBuffer[] buffers = { ByteBuffer.allocate(16), ByteBuffer.allocateDirect(16) };
+			for (ByteBuffer buffer : buffers) {
+				String kind = buffer.isDirect() ? "direct" : "heap";
+
+				// a read fills from the position up to the limit, no further
+				buffer.clear();
+				buffer.position(3);
+				buffer.limit(8);
+				pty.send(data);
+				port.enableReceiveThreshold(5);
+				int n = port.read(buffer);
+				if (n != 5 || buffer.position() != 8 || buffer.limit() != 8)
+					fail("%s read returned %d, position %d, limit %d", kind, n, buffer.position(), buffer.limit());
+				buffer.limit(buffer.capacity());
+				if (buffer.get(2) != 0 || buffer.get(8) != 0)
+					fail("%s read wrote outside position..limit", kind);
+				for (int i = 0; i < 5; i++)
+					if (buffer.get(3 + i) != data[i])
+						fail("%s read byte %d is %d", kind, i, buffer.get(3 + i));
+
+				// the rest is still there for the next read
+				buffer.clear();
+				port.enableReceiveThreshold(3);
+				n = port.read(buffer);
+				if (n != 3 || buffer.position() != 3 || buffer.get(0) != 6 || buffer.get(2) != 8)
+					fail("%s read of the rest returned %d, position %d", kind, n, buffer.position());
+
+				// nothing to read in a full buffer
+				buffer.limit(3);
+				n = port.read(buffer);
+				if (n != 0 || buffer.position() != 3)
+					fail("%s read into a full buffer returned %d", kind, n);
+
+				// a write takes the bytes from position to limit
+				buffer.clear();
+				buffer.put(data);
+				buffer.position(2);
+				buffer.limit(6);
+				n = port.write(buffer);
+				if (n != 4 || buffer.position() != 6 || buffer.limit() != 6)
+					fail("%s write returned %d, position %d, limit %d", kind, n, buffer.position(), buffer.limit());
+				byte[] received = receive(pty, 4);
+				for (int i = 0; i < 4; i++)
+					if (received[i] != data[2 + i])
+						fail("%s write sent %d as byte %d", kind, received[i], i);
+			}
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+}
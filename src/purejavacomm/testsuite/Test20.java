@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import purejavacomm.PureJavaSerialPort;
+
+public class Test20 extends TestBase {
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		for (String mode : READ_MODES)
+			run(mode);
+	}
+
+	private static void run(String mode) throws Exception {
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test20 - stream offsets, " + modeName(mode));
+			port = openPty(pty, mode);
+			port.enableReceiveTimeout(1000);
+			InputStream in = port.getInputStream();
+			OutputStream out = port.getOutputStream();
+			byte[] data = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+			// a read at an offset, shorter than what is there
+			byte[] buffer = new byte[16];
+			Arrays.fill(buffer, (byte) -1);
+			pty.send(data);
+			port.enableReceiveThreshold(3);
+			int n = in.read(buffer, 5, 3);
+			if (n != 3)
+				fail("read(buffer, 5, 3) returned %d", n);
+			for (int i = 0; i < buffer.length; i++) {
+				byte expected = i >= 5 && i < 8 ? data[i - 5] : -1;
+				if (buffer[i] != expected)
+					fail("read(buffer, 5, 3) left %d at %d", buffer[i], i);
+			}
+
+			// the rest at the very end of the array
+			Arrays.fill(buffer, (byte) -1);
+			port.enableReceiveThreshold(5);
+			n = in.read(buffer, 11, 5);
+			if (n != 5)
+				fail("read(buffer, 11, 5) returned %d", n);
+			for (int i = 0; i < buffer.length; i++) {
+				byte expected = i >= 11 ? data[i - 8] : -1;
+				if (buffer[i] != expected)
+					fail("read(buffer, 11, 5) left %d at %d", buffer[i], i);
+			}
+
+			// a zero length read returns at once
+			if ((n = in.read(buffer, 16, 0)) != 0)
+				fail("read(buffer, 16, 0) returned %d", n);
+
+			// a write at an offset sends just that part
+			out.write(data, 3, 4);
+			byte[] received = receive(pty, 4);
+			if (!Arrays.equals(received, Arrays.copyOfRange(data, 3, 7)))
+				fail("write(data, 3, 4) sent %s", Arrays.toString(received));
+			out.write(data, 7, 1);
+			received = receive(pty, 1);
+			if (received[0] != 8)
+				fail("write(data, 7, 1) sent %d", received[0]);
+
+			// and the bounds are checked
+			try {
+				in.read(buffer, 10, 7);
+				fail("read(buffer, 10, 7) did not throw");
+			} catch (IndexOutOfBoundsException e) {
+			}
+			try {
+				out.write(data, -1, 2);
+				fail("write(data, -1, 2) did not throw");
+			} catch (IndexOutOfBoundsException e) {
+			}
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+
+import purejavacomm.PureJavaSerialPort;
+import purejavacomm.SerialPortChannel;
+
+public class Test21 extends TestBase {
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test21 - channel");
+			port = openPty(pty, null);
+			port.enableReceiveTimeout(100);
+			SerialPortChannel channel = port.getChannel();
+			if (port.getChannel() != channel || channel.getPort() != port || !channel.isOpen())
+				fail("getChannel() does not return the one open channel of the port");
+
+			// a read times out like the port does
+			ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+			int n = channel.read(buffer);
+			if (n != 0 || buffer.position() != 0)
+				fail("read with nothing to read returned %d", n);
+
+			pty.send(new byte[] { 1, 2, 3 });
+			port.enableReceiveThreshold(3);
+			n = channel.read(buffer);
+			if (n != 3 || buffer.position() != 3 || buffer.get(0) != 1 || buffer.get(2) != 3)
+				fail("read returned %d, position %d", n, buffer.position());
+			port.disableReceiveThreshold();
+
+			// gathering writes send the buffers back to back
+			ByteBuffer header = ByteBuffer.wrap(new byte[] { 9, 9, 4, 5 }, 2, 2);
+			ByteBuffer payload = ByteBuffer.allocateDirect(3);
+			payload.put(new byte[] { 6, 7, 8 });
+			payload.flip();
+			long m = channel.write(new ByteBuffer[] { header, payload });
+			if (m != 5 || header.hasRemaining() || payload.hasRemaining())
+				fail("gathering write returned %d", m);
+			byte[] received = receive(pty, 5);
+			if (!Arrays.equals(received, new byte[] { 4, 5, 6, 7, 8 }))
+				fail("gathering write sent %s", Arrays.toString(received));
+
+			n = channel.write(ByteBuffer.wrap(new byte[] { 10 }));
+			if (n != 1 || receive(pty, 1)[0] != 10)
+				fail("write returned %d", n);
+
+			// closing the channel leaves the port open
+			channel.close();
+			if (channel.isOpen())
+				fail("channel still open after close()");
+			try {
+				channel.write(ByteBuffer.wrap(new byte[] { 11 }));
+				fail("write on a closed channel did not throw");
+			} catch (ClosedChannelException e) {
+			}
+			port.getOutputStream().write(12);
+			if (receive(pty, 1)[0] != 12)
+				fail("port not usable after closing its channel");
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+}
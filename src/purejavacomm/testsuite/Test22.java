@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import jtermios.JTermios;
+import purejavacomm.PureJavaSerialPort;
+
+public class Test22 extends TestBase {
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		final Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test22 - gathering writes");
+			port = openPty(pty, null);
+
+			// a subrange of heap, direct, read only and empty buffers
+			ByteBuffer direct = ByteBuffer.allocateDirect(4);
+			direct.put(new byte[] { 3, 4, 5, 6 });
+			direct.flip();
+			direct.position(1);
+			ByteBuffer[] buffers = { ByteBuffer.wrap(new byte[] { 0 }), ByteBuffer.wrap(new byte[] { 9, 1, 2 }, 1, 2), ByteBuffer.allocate(0), direct, ByteBuffer.wrap(new byte[] { 7 }).asReadOnlyBuffer(), ByteBuffer.wrap(new byte[] { 0 }) };
+			long n = port.write(buffers, 1, 4);
+			if (n != 6)
+				fail("write(buffers, 1, 4) returned %d", n);
+			for (int i = 0; i < buffers.length; i++)
+				if (buffers[i].hasRemaining() != (i == 0 || i == 5))
+					fail("buffer %d has %d bytes left", i, buffers[i].remaining());
+			byte[] received = receive(pty, 6);
+			if (!Arrays.equals(received, new byte[] { 1, 2, 4, 5, 6, 7 }))
+				fail("write(buffers, 1, 4) sent %s", Arrays.toString(received));
+
+			n = port.write(new byte[] { 10, 11 }, new byte[0], new byte[] { 12 });
+			received = receive(pty, 3);
+			if (n != 3 || !Arrays.equals(received, new byte[] { 10, 11, 12 }))
+				fail("write(byte[]...) returned %d and sent %s", n, Arrays.toString(received));
+
+			// more buffers than one writev() takes and more bytes than the
+			// pty holds, so it takes several partial writes
+			final byte[] data = new byte[3000 * 20];
+			for (int i = 0; i < data.length; i++)
+				data[i] = (byte) (i * 7);
+			buffers = new ByteBuffer[3000];
+			for (int i = 0; i < buffers.length; i++)
+				buffers[i] = ByteBuffer.wrap(data, i * 20, 20);
+			final byte[][] result = { null };
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					try {
+						result[0] = receive(pty, data.length);
+					} catch (Exception e) {
+					}
+				}
+			});
+			reader.start();
+			n = port.write(buffers);
+			reader.join(5000);
+			if (n != data.length || !Arrays.equals(result[0], data))
+				fail("write of %d buffers returned %d, sent %s", buffers.length, n, result[0] == null ? "too little" : "other bytes");
+
+			// and the scattering read of the backend
+			pty.send(new byte[] { 1, 2, 3, 4, 5, 6 });
+			sleep(100);
+			ByteBuffer[] parts = { ByteBuffer.allocate(2), ByteBuffer.allocateDirect(3), ByteBuffer.allocate(5) };
+			int m = JTermios.readv(port.getNativeFileDescriptor(), parts, 0, 3);
+			if (m != 6 || parts[0].position() != 2 || parts[1].position() != 3 || parts[2].position() != 1)
+				fail("readv returned %d, positions %d %d %d", m, parts[0].position(), parts[1].position(), parts[2].position());
+			if (parts[0].get(0) != 1 || parts[1].get(0) != 3 || parts[2].get(0) != 6)
+				fail("readv scattered the bytes wrong");
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import purejavacomm.PureJavaSerialPort;
+
+public class Test23 extends TestBase {
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		for (String mode : READ_MODES)
+			run(mode);
+	}
+
+	private static void run(String mode) throws Exception {
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test23 - nanosecond timeouts, " + modeName(mode));
+			port = openPty(pty, mode);
+			InputStream in = port.getInputStream();
+			byte[] buffer = new byte[100];
+
+			// well below the 100 ms resolution of VTIME
+			port.enableReceiveTimeoutNanos(20000000L);
+			if (port.getReceiveTimeoutNanos() != 20000000L || port.getReceiveTimeout() != 20)
+				fail("timeout reads back as %d ns, %d ms", port.getReceiveTimeoutNanos(), port.getReceiveTimeout());
+			long t0 = System.nanoTime();
+			int n = in.read(buffer);
+			long t = (System.nanoTime() - t0) / 1000000;
+			if (n != 0 || t < 15 || t > 90)
+				fail("timeout 20 ms: read %d bytes in %d ms", n, t);
+
+			// a deadline instead of the timeout
+			port.disableReceiveTimeout();
+			t0 = System.nanoTime();
+			n = port.read(ByteBuffer.allocate(100), t0 + 50000000L);
+			t = (System.nanoTime() - t0) / 1000000;
+			if (n != 0 || t < 45 || t > 150)
+				fail("deadline 50 ms: read %d bytes in %d ms", n, t);
+
+			// the threshold is honoured up to the deadline
+			port.enableReceiveThreshold(6);
+			sendLater(pty, 0, new byte[6], 3, 30);
+			n = port.read(buffer, 0, 100, System.nanoTime() + 1000000000L);
+			if (n != 6)
+				fail("threshold 6, deadline 1 s: read %d bytes", n);
+			sendLater(pty, 0, new byte[2], 2, 0);
+			t0 = System.nanoTime();
+			n = port.read(buffer, 0, 100, t0 + 100000000L);
+			t = (System.nanoTime() - t0) / 1000000;
+			if (n != 2 || t < 90 || t > 300)
+				fail("threshold 6, deadline 100 ms: read %d bytes in %d ms", n, t);
+
+			// beyond the 25.5 s VTIME can hold, the data arrives well before
+			port.enableReceiveTimeout(30000);
+			port.enableReceiveThreshold(4);
+			if (port.getReceiveTimeout() != 30000)
+				fail("timeout 30 s reads back as %d ms", port.getReceiveTimeout());
+			sendLater(pty, 0, new byte[4], 2, 300);
+			t0 = System.nanoTime();
+			n = in.read(buffer);
+			t = (System.nanoTime() - t0) / 1000000;
+			if (n != 4 || t > 2000)
+				fail("threshold 4, timeout 30 s: read %d bytes in %d ms", n, t);
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.InputStream;
+
+import purejavacomm.PureJavaSerialPort;
+
+public class Test24 extends TestBase {
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test24 - buffered read available()");
+			port = openPty(pty, "purejavacomm.bufferedread");
+			port.enableReceiveTimeout(1000);
+			InputStream in = port.getInputStream();
+			if (in.available() != 0)
+				fail("available() %d before anything was sent", in.available());
+
+			// the reader thread moves the bytes into the ring without a read
+			byte[] data = new byte[1000];
+			for (int i = 0; i < data.length; i++)
+				data[i] = (byte) (i * 13);
+			pty.send(data);
+			int n = waitForAvailable(in, 1000);
+			if (n != 1000)
+				fail("available() %d after sending 1000 bytes", n);
+			byte[] buffer = new byte[1000];
+			port.enableReceiveThreshold(300);
+			if ((n = in.read(buffer, 0, 300)) != 300)
+				fail("read returned %d", n);
+			if ((n = in.available()) != 700)
+				fail("available() %d after reading 300 of 1000 bytes", n);
+			port.enableReceiveThreshold(700);
+			if ((n = in.read(buffer, 300, 700)) != 700)
+				fail("read returned %d", n);
+			if (in.available() != 0)
+				fail("available() %d after reading everything", in.available());
+			for (int i = 0; i < data.length; i++)
+				if (buffer[i] != data[i])
+					fail("byte %d is %d instead of %d", i, buffer[i], data[i]);
+
+			// a small ring never holds more than its capacity, the rest
+			// waits in the driver, and wraps around without losing a byte
+			port.setInputBufferSize(100);
+			if (port.getInputBufferSize() != 128)
+				fail("input buffer size %d instead of 128", port.getInputBufferSize());
+			pty.send(data);
+			n = waitForAvailable(in, 128);
+			if (n != 128)
+				fail("available() %d with a 128 byte ring", n);
+			port.enableReceiveThreshold(77);
+			for (int total = 0; total < data.length;) {
+				if ((n = in.available()) > 128)
+					fail("available() %d with a 128 byte ring", n);
+				n = in.read(buffer, 0, Math.min(77, data.length - total));
+				if (n <= 0)
+					fail("read returned %d after %d bytes", n, total);
+				for (int i = 0; i < n; i++)
+					if (buffer[i] != data[total + i])
+						fail("byte %d is %d instead of %d", total + i, buffer[i], data[total + i]);
+				total += n;
+			}
+
+			port.close();
+			if (in.available() != 0)
+				fail("available() %d after close", in.available());
+			port = null;
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+
+	// waits up to a second for at least 'expected' bytes to be available
+	private static int waitForAvailable(InputStream in, int expected) throws Exception {
+		long t0 = System.currentTimeMillis();
+		while (in.available() < expected && System.currentTimeMillis() - t0 < 1000)
+			sleep(10);
+		// and a while longer to see that no more show up
+		sleep(50);
+		return in.available();
+	}
+}
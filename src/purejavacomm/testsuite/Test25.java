@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import purejavacomm.PureJavaSerialPort;
+import purejavacomm.SerialPortDataEvent;
+import purejavacomm.SerialPortEvent;
+import purejavacomm.SerialPortEventListener;
+
+public class Test25 extends TestBase {
+	private static final String[] MODES = { null, "purejavacomm.bufferedread" };
+
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		for (String mode : MODES)
+			run(mode);
+	}
+
+	private static class Listener implements SerialPortEventListener {
+		final ByteArrayOutputStream m_Received = new ByteArrayOutputStream();
+		final IdentityHashMap<ByteBuffer, Boolean> m_Buffers = new IdentityHashMap<ByteBuffer, Boolean>();
+		final List<ByteBuffer> m_Kept = new ArrayList<ByteBuffer>();
+		volatile boolean m_Release = true;
+		volatile int m_Events;
+		volatile int m_MaxLength;
+		volatile int m_Capacity;
+
+		public synchronized void serialEvent(SerialPortEvent event) {
+			if (!(event instanceof SerialPortDataEvent))
+				return;
+			SerialPortDataEvent data = (SerialPortDataEvent) event;
+			ByteBuffer buffer = data.getData();
+			m_Events++;
+			m_MaxLength = Math.max(m_MaxLength, data.getLength());
+			m_Capacity = buffer.capacity();
+			m_Buffers.put(buffer, Boolean.TRUE);
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.duplicate().get(bytes);
+			m_Received.write(bytes, 0, bytes.length);
+			if (m_Release) {
+				data.release();
+				data.release(); // only the first one counts
+			} else
+				m_Kept.add(buffer);
+		}
+
+		synchronized void reset(boolean release) {
+			m_Received.reset();
+			m_Buffers.clear();
+			m_Kept.clear();
+			m_Release = release;
+			m_Events = 0;
+			m_MaxLength = 0;
+		}
+
+		synchronized byte[] received() {
+			return m_Received.toByteArray();
+		}
+	}
+
+	private static void run(String mode) throws Exception {
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test25 - push buffer release, " + modeName(mode));
+			port = openPty(pty, mode);
+			Listener listener = new Listener();
+			port.addEventListener(listener);
+			port.enableDataAvailablePush(32);
+			port.notifyOnDataAvailable(true);
+			byte[] data = new byte[2000];
+			for (int i = 0; i < data.length; i++)
+				data[i] = (byte) (i * 31);
+
+			// released buffers are used again
+			listener.reset(true);
+			receiveAll(pty, listener, data);
+			if (listener.m_MaxLength > 32)
+				fail("an event carried %d bytes with a batch size of 32", listener.m_MaxLength);
+			if (listener.m_Buffers.size() > 8)
+				fail("%d events used %d buffers although each was released", listener.m_Events, listener.m_Buffers.size());
+
+			// buffers that are not released are never reused, so what the
+			// listener holds on to stays intact
+			listener.reset(false);
+			receiveAll(pty, listener, data);
+			if (listener.m_Buffers.size() != listener.m_Events)
+				fail("%d events used only %d buffers although none was released", listener.m_Events, listener.m_Buffers.size());
+			ByteArrayOutputStream kept = new ByteArrayOutputStream();
+			for (ByteBuffer buffer : listener.m_Kept) {
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.duplicate().get(bytes);
+				kept.write(bytes, 0, bytes.length);
+			}
+			if (!Arrays.equals(kept.toByteArray(), data))
+				fail("the buffers kept by the listener were overwritten");
+
+			// a new batch size does not pick up the released buffers of the old one
+			listener.reset(true);
+			port.enableDataAvailablePush(64);
+			receiveAll(pty, listener, data);
+			if (listener.m_Capacity != 64 || listener.m_MaxLength > 64)
+				fail("batch size 64 delivered %d bytes in a buffer of %d", listener.m_MaxLength, listener.m_Capacity);
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+
+	private static void receiveAll(Pty pty, Listener listener, byte[] data) throws Exception {
+		sendLater(pty, 0, data, 100, 5).join();
+		long t0 = System.currentTimeMillis();
+		while (listener.received().length < data.length && System.currentTimeMillis() - t0 < 2000)
+			sleep(10);
+		byte[] received = listener.received();
+		if (!Arrays.equals(received, data))
+			fail("received %d bytes of %d%s", received.length, data.length, received.length == data.length ? " but not the same" : "");
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import jtermios.JTermios;
+import jtermios.linux.SerialStatus;
+
+public class Test26 extends TestBase {
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		Pty pty = new Pty();
+		try {
+			// ptys have no modem lines, so the control line watcher can't be
+			// tested here, only what its close() relies on to get it out of
+			// TIOCMIWAIT, here ending a blocking read() with nothing to read
+			begin("Test26 - interrupting blocking calls");
+			System.setProperty("purejavacomm.interrupthandler", "true");
+			if (!SerialStatus.canInterrupt())
+				fail("SerialStatus.canInterrupt() returned false");
+			final int fd = JTermios.open(pty.getSlaveName(), JTermios.O_RDWR | JTermios.O_NOCTTY);
+			if (fd < 0)
+				fail("open(%s) failed, errno %d", pty.getSlaveName(), JTermios.errno());
+			final long[] id = { 0 };
+			// result[2] is set once the reader is done, which it can't be
+			// while we hold the lock, so it is alive when it is signalled
+			final int[] result = { 0, 0, 0 };
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					synchronized (id) {
+						id[0] = SerialStatus.currentThread();
+						id.notifyAll();
+					}
+					byte[] buffer = new byte[1];
+					int n = JTermios.read(fd, buffer, 1);
+					int errno = JTermios.errno();
+					synchronized (result) {
+						result[0] = n;
+						result[1] = errno;
+						result[2] = 1;
+					}
+				}
+			});
+			reader.start();
+			synchronized (id) {
+				while (id[0] == 0)
+					id.wait();
+			}
+			sleep(100);
+			long t0 = System.currentTimeMillis();
+			while (reader.isAlive() && System.currentTimeMillis() - t0 < 1000) {
+				synchronized (result) {
+					if (result[2] == 0)
+						SerialStatus.interrupt(id[0]);
+				}
+				reader.join(5);
+			}
+			boolean alive = reader.isAlive();
+			JTermios.close(fd);
+			if (alive) // closing the master below hangs up on it
+				fail("SerialStatus.interrupt() did not end a blocking read()");
+			if (result[0] != -1 || result[1] != JTermios.EINTR)
+				fail("interrupted read() returned %d, errno %d", result[0], result[1]);
+			finishedOK();
+		} finally {
+			pty.close();
+		}
+	}
+}
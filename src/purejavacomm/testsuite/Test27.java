@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import purejavacomm.PureJavaSerialPort;
+import purejavacomm.SerialPortCounters;
+import purejavacomm.SerialPortEvent;
+import purejavacomm.SerialPortEventListener;
+import purejavacomm.UnsupportedCommOperationException;
+
+public class Test27 extends TestBase {
+	private static volatile int m_DataEvents;
+	private static volatile int m_ErrorEvents;
+	private static volatile int m_BreakEvents;
+
+	private static final SerialPortEventListener m_Listener = new SerialPortEventListener() {
+		public void serialEvent(SerialPortEvent event) {
+			switch (event.getEventType()) {
+			case SerialPortEvent.DATA_AVAILABLE:
+				m_DataEvents++;
+				try {
+					drain(m_In);
+				} catch (Exception e) {
+				}
+				break;
+			case SerialPortEvent.BI:
+				m_BreakEvents++;
+				m_ErrorEvents++;
+				break;
+			case SerialPortEvent.OE:
+			case SerialPortEvent.PE:
+			case SerialPortEvent.FE:
+				m_ErrorEvents++;
+				break;
+			}
+		}
+	};
+
+	static void run() throws Exception {
+		if (havePty())
+			runPty();
+		runLoopback();
+	}
+
+	// ptys don't keep the counters, which must not get in the way of the
+	// other events
+	private static void runPty() throws Exception {
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test27 - line error events, pty");
+			port = openPty(pty, null);
+			try {
+				port.getCounters();
+				fail("getCounters() on a pty did not throw");
+			} catch (UnsupportedCommOperationException e) {
+			}
+			m_DataEvents = 0;
+			m_ErrorEvents = 0;
+			m_In = port.getInputStream();
+			port.addEventListener(m_Listener);
+			port.notifyOnOverrunError(true);
+			port.notifyOnParityError(true);
+			port.notifyOnFramingError(true);
+			port.notifyOnBreakInterrupt(true);
+			port.notifyOnDataAvailable(true);
+			pty.send(new byte[] { 1, 2, 3 });
+			sleep(300);
+			if (m_DataEvents == 0)
+				fail("no DATA_AVAILABLE event with the error events enabled");
+			if (m_ErrorEvents != 0)
+				fail("%d error events without any errors", m_ErrorEvents);
+			finishedOK();
+		} finally {
+			m_In = null;
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+
+	// a break we send ourselves comes back as a BI event
+	private static void runLoopback() throws Exception {
+		try {
+			begin("Test27 - line error events, loopback");
+			openPort();
+			if (!(m_Port instanceof PureJavaSerialPort)) {
+				finishedOK("skipped, not a PureJavaSerialPort");
+				return;
+			}
+			PureJavaSerialPort port = (PureJavaSerialPort) m_Port;
+			SerialPortCounters before;
+			try {
+				before = port.getCounters();
+			} catch (UnsupportedCommOperationException e) {
+				finishedOK("skipped, the driver has no line counters");
+				return;
+			}
+			m_BreakEvents = 0;
+			m_ErrorEvents = 0;
+			m_Port.addEventListener(m_Listener);
+			m_Port.notifyOnBreakInterrupt(true);
+			m_Port.notifyOnDataAvailable(true);
+			m_Port.sendBreak(100);
+			sleep(500);
+			SerialPortCounters after = port.getCounters();
+			if (after.getBreak() == before.getBreak())
+				fail("the break counter did not change, %s", after);
+			if (m_BreakEvents == 0)
+				fail("no BI event, counters %s", after);
+			finishedOK();
+		} finally {
+			closePort();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import purejavacomm.PureJavaSerialPort;
+
+public class Test28 extends TestBase {
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test28 - writeAsync urgent lane");
+			port = openPty(pty, null);
+			byte[] bulk = new byte[64000];
+			Arrays.fill(bulk, (byte) 'b');
+			byte[] urgent = "URG".getBytes();
+
+			// nobody reads the master yet, so the bulk write stalls once the
+			// pty is full and the urgent one has to overtake what is left
+			CompletableFuture<Integer> bulkDone = port.writeAsync(ByteBuffer.wrap(bulk));
+			sleep(100);
+			if (bulkDone.isDone())
+				fail("64000 bytes were written to a pty nobody reads");
+			CompletableFuture<Integer> urgentDone = port.writeAsync(ByteBuffer.wrap(urgent), true, false);
+			byte[] received = receive(pty, bulk.length + urgent.length);
+			int at = -1;
+			for (int i = 0; i < received.length && at < 0; i++)
+				if (received[i] == 'U')
+					at = i;
+			if (at < 0 || at + urgent.length > received.length || !Arrays.equals(Arrays.copyOfRange(received, at, at + urgent.length), urgent))
+				fail("the urgent bytes did not arrive in one piece");
+			if (at >= bulk.length)
+				fail("the urgent write arrived after all of the bulk data");
+			if (bulkDone.get(1, TimeUnit.SECONDS) != bulk.length || urgentDone.get(1, TimeUnit.SECONDS) != urgent.length)
+				fail("the futures completed with %d and %d", bulkDone.get(), urgentDone.get());
+
+			// a drained write completes once the bytes have left
+			CompletableFuture<Integer> drained = port.writeAsync(ByteBuffer.wrap(new byte[] { 'x' }), false, true);
+			if (drained.get(1, TimeUnit.SECONDS) != 1)
+				fail("drained write completed with %d", drained.get());
+			if (receive(pty, 1)[0] != 'x')
+				fail("drained write sent the wrong byte");
+
+			// closing the port fails what is still queued
+			CompletableFuture<Integer> pending = port.writeAsync(ByteBuffer.wrap(bulk));
+			sleep(100);
+			port.close();
+			port = null;
+			try {
+				pending.get(1, TimeUnit.SECONDS);
+				fail("a write stalled on a pty nobody reads completed after close");
+			} catch (ExecutionException e) {
+				if (!(e.getCause() instanceof AsynchronousCloseException))
+					fail("close failed the pending write with %s", e.getCause());
+			}
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+}
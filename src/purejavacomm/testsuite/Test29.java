@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import static jtermios.JTermios.*;
+
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import purejavacomm.PureJavaSerialPort;
+
+public class Test29 extends TestBase {
+	// the optimistic read mode writes on its own non blocking descriptor,
+	// the others open a second one
+	private static final String[] MODES = { null, "purejavacomm.optimisticread" };
+
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		for (String mode : MODES)
+			run(mode);
+	}
+
+	private static void run(String mode) throws Exception {
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test29 - write timeout, " + modeName(mode));
+			port = openPty(pty, mode);
+			port.enableWriteTimeout(200);
+			if (!port.isWriteTimeoutEnabled() || port.getWriteTimeout() != 200)
+				fail("write timeout not enabled");
+			fcntl(pty.getMaster(), F_SETFL, fcntl(pty.getMaster(), F_GETFL, 0) | O_NONBLOCK);
+			byte[] big = new byte[200000];
+
+			// nobody reads the master, so the write stops once the pty is full
+			OutputStream out = port.getOutputStream();
+			long t0 = System.currentTimeMillis();
+			try {
+				out.write(big);
+				fail("wrote %d bytes to a pty nobody reads", big.length);
+			} catch (InterruptedIOException e) {
+				long time = System.currentTimeMillis() - t0;
+				if (e.bytesTransferred <= 0 || e.bytesTransferred >= big.length)
+					fail("timed out write transferred %d bytes of %d", e.bytesTransferred, big.length);
+				if (time < 150 || time > 2000)
+					fail("write timed out after %d ms with a timeout of 200 ms", time);
+			}
+
+			// a write with a deadline returns what it got done
+			drain(pty);
+			ByteBuffer buffer = ByteBuffer.wrap(big);
+			int n = port.write(buffer, System.nanoTime() + 50000000L);
+			if (n <= 0 || n >= big.length)
+				fail("write with a deadline returned %d of %d", n, big.length);
+			if (buffer.position() != n)
+				fail("write with a deadline returned %d but moved the position to %d", n, buffer.position());
+
+			// as does a gathering write that times out
+			drain(pty);
+			try {
+				port.write(new ByteBuffer[] { ByteBuffer.wrap(big), ByteBuffer.wrap(big) });
+				fail("gathering write of %d bytes to a pty nobody reads returned", 2 * big.length);
+			} catch (InterruptedIOException e) {
+				if (e.bytesTransferred <= 0 || e.bytesTransferred >= 2 * big.length)
+					fail("timed out gathering write transferred %d bytes of %d", e.bytesTransferred, 2 * big.length);
+			}
+
+			port.disableWriteTimeout();
+			if (port.isWriteTimeoutEnabled())
+				fail("write timeout still enabled");
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+
+	// empties the pty, the master was made non blocking
+	private static void drain(Pty pty) throws Exception {
+		byte[] buffer = new byte[4096];
+		sleep(20);
+		while (pty.receive(buffer) > 0)
+			;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.InputStream;
+
+import purejavacomm.PureJavaSerialPort;
+
+public class Test30 extends TestBase {
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		for (String mode : READ_MODES)
+			run(mode);
+	}
+
+	private static void run(String mode) throws Exception {
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		try {
+			begin("Test30 - receive linger, " + modeName(mode));
+			port = openPty(pty, mode);
+			InputStream in = port.getInputStream();
+			byte[] buffer = new byte[1000];
+
+			port.enableReceiveLinger(100000);
+			if (!port.isReceiveLingerEnabled() || port.getReceiveLinger() != 100000)
+				fail("linger reads back as %d us", port.getReceiveLinger());
+			port.enableReceiveTimeout(5000);
+
+			// gaps of 20 ms within a linger of 100 ms, one read gets it all
+			Thread sender = sendLater(pty, 0, new byte[100], 10, 20);
+			int n = in.read(buffer);
+			sender.join();
+			if (n != 100)
+				fail("burst with 20 ms gaps, linger 100 ms: read %d bytes of 100", n);
+
+			// a gap of 300 ms ends the read
+			sender = sendLater(pty, 0, new byte[20], 10, 300);
+			n = in.read(buffer);
+			if (n != 10)
+				fail("300 ms gap, linger 100 ms: first read got %d bytes instead of 10", n);
+			n = in.read(buffer);
+			sender.join();
+			if (n != 10)
+				fail("300 ms gap, linger 100 ms: second read got %d bytes instead of 10", n);
+
+			// the receive timeout limits the read as a whole while lingering
+			port.enableReceiveTimeout(200);
+			sender = sendLater(pty, 0, new byte[500], 10, 20);
+			long t0 = System.nanoTime();
+			n = in.read(buffer);
+			long t = (System.nanoTime() - t0) / 1000000;
+			sender.join();
+			if (n <= 0 || n >= 500 || t > 600)
+				fail("timeout 200 ms, 20 ms gaps: read %d bytes of 500 in %d ms", n, t);
+			int total = n;
+			while (total < 500 && (n = in.read(buffer)) > 0)
+				total += n;
+			if (total != 500)
+				fail("timeout 200 ms, 20 ms gaps: read %d bytes of 500 in all", total);
+
+			// the threshold must be reached before the linger counts
+			port.enableReceiveTimeout(5000);
+			port.enableReceiveThreshold(20);
+			sender = sendLater(pty, 0, new byte[20], 10, 300);
+			n = in.read(buffer);
+			sender.join();
+			if (n != 20)
+				fail("threshold 20, 300 ms gap, linger 100 ms: read %d bytes", n);
+
+			// and a linger of zero turns it off
+			port.disableReceiveThreshold();
+			port.disableReceiveLinger();
+			if (port.isReceiveLingerEnabled())
+				fail("linger still enabled");
+			sender = sendLater(pty, 0, new byte[20], 10, 300);
+			n = in.read(buffer);
+			sender.join();
+			if (n != 10)
+				fail("no linger, 300 ms gap: read %d bytes instead of 10", n);
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011, Kustaa Nyholm / SpareTimeLabs
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list
+ * of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * Neither the name of the Kustaa Nyholm or SpareTimeLabs nor the names of its
+ * contributors may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package purejavacomm.testsuite;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import purejavacomm.PureJavaSerialPort;
+import purejavacomm.UnsupportedCommOperationException;
+
+public class Test31 extends TestBase {
+	static void run() throws Exception {
+		if (!havePty())
+			return;
+		for (String mode : READ_MODES)
+			run(mode);
+	}
+
+	private static void run(String mode) throws Exception {
+		Pty pty = new Pty();
+		PureJavaSerialPort port = null;
+		Thread echo = null;
+		try {
+			begin("Test31 - spin read, " + modeName(mode));
+			port = openPty(pty, mode);
+			if ("purejavacomm.bufferedread".equals(mode)) {
+				try {
+					port.enableSpinRead(50000);
+					fail("spin read enabled in buffered read mode");
+				} catch (UnsupportedCommOperationException e) {
+				}
+				finishedOK();
+				return;
+			}
+			InputStream in = port.getInputStream();
+			OutputStream out = port.getOutputStream();
+			byte[] buffer = new byte[10];
+
+			// a reply that comes at once is got while spinning
+			echo = echo(pty);
+			port.enableSpinRead(50000);
+			if (!port.isSpinReadEnabled() || port.getSpinBudgetNanos() != 50000000L)
+				fail("spin read enabled with a budget of %d ns", port.getSpinBudgetNanos());
+			port.enableReceiveTimeout(2000);
+			long spun = port.getSpinReadCount();
+			for (int i = 0; i < 20; i++) {
+				out.write(i);
+				int n = in.read(buffer);
+				if (n != 1 || buffer[0] != i)
+					fail("round trip %d: read %d bytes", i, n);
+			}
+			spun = port.getSpinReadCount() - spun;
+			if (spun == 0)
+				fail("none of 20 echoed bytes was read while spinning");
+			if (port.getSpinBudgetNanos() >= 50000000L)
+				fail("fast replies left the budget at the maximum of 50 ms");
+
+			// an idle link takes the budget down
+			port.enableSpinRead(20000);
+			port.enableReceiveTimeout(50);
+			long parked = port.getParkedReadCount();
+			for (int i = 0; i < 12; i++)
+				if (in.read(buffer) != 0)
+					fail("read something from an idle link");
+			parked = port.getParkedReadCount() - parked;
+			if (parked != 12)
+				fail("12 reads from an idle link, %d counted as parked", parked);
+			if (port.getSpinBudgetNanos() > 2000000L)
+				fail("12 idle reads left a budget of %d ns of 20 ms", port.getSpinBudgetNanos());
+
+			port.disableSpinRead();
+			if (port.isSpinReadEnabled())
+				fail("spin read still enabled");
+			port.close();
+			port = null;
+
+			// a hang up while spinning ends the read like without spinning
+			final Pty hungUp = new Pty();
+			port = openPty(hungUp, mode);
+			port.enableSpinRead(50000);
+			port.enableReceiveTimeout(2000);
+			Thread hangUp = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+					}
+					hungUp.close();
+				}
+			});
+			hangUp.start();
+			long t0 = System.nanoTime();
+			int n = port.getInputStream().read(buffer);
+			long t = (System.nanoTime() - t0) / 1000000;
+			hangUp.join();
+			if (n > 0 || t > 1000)
+				fail("hang up while spinning: read returned %d after %d ms", n, t);
+			finishedOK();
+		} finally {
+			if (port != null)
+				port.close();
+			pty.close();
+			if (echo != null)
+				echo.join(1000);
+		}
+	}
+
+	// sends back whatever arrives on the master until it is closed
+	private static Thread echo(final Pty pty) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[64];
+				int n;
+				while ((n = pty.receive(buffer)) > 0) {
+					byte[] reply = new byte[n];
+					System.arraycopy(buffer, 0, reply, 0, n);
+					pty.send(reply);
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
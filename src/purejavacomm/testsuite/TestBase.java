@@ -35,8 +35,11 @@ import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.Random;
 
+import com.sun.jna.Platform;
+
 import purejavacomm.CommPortIdentifier;
 import purejavacomm.NoSuchPortException;
+import purejavacomm.PureJavaSerialPort;
 import purejavacomm.SerialPort;
 
 public class TestBase {
@@ -162,4 +165,82 @@ public class TestBase {
 		return m_TestPortName;
 
 	}
+
+	// The properties that select the read modes, null for the default mode.
+	// They are only looked at when a port is opened.
+	static final String[] READ_MODES = { null, "purejavacomm.rawreadmode", "purejavacomm.optimisticread", "purejavacomm.pollreadmode", "purejavacomm.bufferedread" };
+
+	/**
+	 * The pseudo terminal tests don't need the loopback port, but they only
+	 * run on Linux.
+	 */
+	static boolean havePty() {
+		return Platform.isLinux();
+	}
+
+	static String modeName(String mode) {
+		return mode == null ? "default" : mode.substring(mode.indexOf('.') + 1);
+	}
+
+	/**
+	 * Opens the slave side of the pty as a port in the given read mode.
+	 */
+	static protected PureJavaSerialPort openPty(Pty pty, String mode) throws Exception {
+		if (mode != null)
+			System.setProperty(mode, "true");
+		try {
+			CommPortIdentifier portid = CommPortIdentifier.getPortIdentifier(pty.getSlaveName());
+			return (PureJavaSerialPort) portid.open(APPLICATION_NAME, 1000);
+		} finally {
+			if (mode != null)
+				System.clearProperty(mode);
+		}
+	}
+
+	/**
+	 * Sends the data from the master side of the pty after a delay, in
+	 * chunks of <code>chunk</code> bytes <code>interval</code> ms apart.
+	 */
+	static protected Thread sendLater(final Pty pty, final int delay, final byte[] data, final int chunk, final int interval) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(delay);
+					for (int i = 0; i < data.length; i += chunk) {
+						byte[] part = new byte[Math.min(chunk, data.length - i)];
+						System.arraycopy(data, i, part, 0, part.length);
+						pty.send(part);
+						if (i + chunk < data.length)
+							Thread.sleep(interval);
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Reads exactly <code>length</code> bytes from the master side of the
+	 * pty, failing if they don't arrive within a second.
+	 */
+	static protected byte[] receive(Pty pty, int length) throws Exception {
+		byte[] data = new byte[length];
+		int received = 0;
+		jtermios.Pollfd[] fds = { new jtermios.Pollfd() };
+		fds[0].fd = pty.getMaster();
+		fds[0].events = jtermios.JTermios.POLLIN;
+		while (received < length) {
+			if (jtermios.JTermios.poll(fds, 1, 1000) <= 0)
+				fail("received %d bytes of %d", received, length);
+			byte[] buffer = new byte[length - received];
+			int n = pty.receive(buffer);
+			if (n <= 0)
+				fail("read from the pty master failed");
+			System.arraycopy(buffer, 0, data, received, n);
+			received += n;
+		}
+		return data;
+	}
 }
@@ -58,6 +58,21 @@ public class TestSuite {
 			Test13.run();
 			Test15.run();
 			Test16.run();
+			Test17.run();
+			Test18.run();
+			Test19.run();
+			Test20.run();
+			Test21.run();
+			Test22.run();
+			Test23.run();
+			Test24.run();
+			Test25.run();
+			Test26.run();
+			Test27.run();
+			Test28.run();
+			Test29.run();
+			Test30.run();
+			Test31.run();
 			System.out.println("All tests passed OK.");
 		} catch (TestBase.TestFailedException e) {
 			System.out.println("Test failure");